@@ -34,6 +34,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Semaphore;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -189,14 +190,71 @@ public class BackoffHttpHandler implements IHttpHandler {
     
     private DefaultHttpClient _httpClient;
     private Random _random;
+    private int _maxAwsRetries;
+    private Semaphore _requestPermits;
     
     public BackoffHttpHandler() {
         this(DEFAULT_MAX_THREADS);
     }
 
     public BackoffHttpHandler(int maxThreads) {
+        this(maxThreads, MAX_AWS_RETRIES);
+    }
+
+    /**
+     * Create a handler that retries requests which fail with a retriable error (e.g. 503)
+     * up to <maxAwsRetries> times, sleeping between attempts. Callers that want to handle
+     * the backoff themselves (without tying up the calling thread) can use zero, and
+     * then use isRetriable() and getRetryDelay() to schedule their own retries.
+     * 
+     * @param maxThreads max number of simultaneous connections
+     * @param maxAwsRetries max number of retries for retriable errors
+     */
+    public BackoffHttpHandler(int maxThreads, int maxAwsRetries) {
         _httpClient = createClient(maxThreads);
         _random = new Random(System.currentTimeMillis());
+        _maxAwsRetries = maxAwsRetries;
+        _requestPermits = null;
+    }
+    
+    /**
+     * Limit the number of requests that are in progress at the same time, independent of how
+     * many threads are using this handler. A thread that's waiting to retry a request doesn't
+     * hold on to one of these permits.
+     * 
+     * @param maxRequests max number of simultaneous requests, or 0 for no limit (other than
+     *        the max number of connections)
+     */
+    public void setMaxRequests(int maxRequests) {
+        _requestPermits = (maxRequests > 0) ? new Semaphore(maxRequests, true) : null;
+    }
+    
+    /**
+     * @param statusCode HTTP status code from a failed request
+     * @return true if the request should be retried after a backoff delay
+     */
+    public static boolean isRetriable(int statusCode) {
+        return (statusCode == 500) || (statusCode == 503) || (statusCode == 408);
+    }
+    
+    /**
+     * Calculate an increasing delay, capped at a max value, that randomly varies so we don't
+     * keep re-hitting the server at roughly the same time.
+     * 
+     * @param numRetries number of the retry (starting with 1)
+     * @param random
+     * @return delay in milliseconds before making the retry
+     */
+    public static long getRetryDelay(int numRetries, Random random) {
+        double targetDelay = Math.min(Math.pow(4.0, numRetries) * 20L, MAX_AWS_BACKOFF);
+        return (long)(targetDelay * (1.0 + (random.nextDouble() * AWS_BACKOFF_RANDOM_PERCENT)));
+    }
+    
+    /**
+     * @return default max number of retries for requests that fail with a retriable error.
+     */
+    public static int getMaxAwsRetries() {
+        return MAX_AWS_RETRIES;
     }
 
     @Override
@@ -247,18 +305,14 @@ public class BackoffHttpHandler implements IHttpHandler {
         
         while (true) {
             try {
-                return doRequest(request, url);
+                return doLimitedRequest(request, url);
             } catch (HttpException e) {
-                int statusCode = e.getStatusCode();
-                if ((statusCode == 500) || (statusCode == 503) || (statusCode == 408)) {
+                if (isRetriable(e.getStatusCode())) {
                     numRetries += 1;
-                    if (numRetries > MAX_AWS_RETRIES) {
+                    if (numRetries > _maxAwsRetries) {
                         throw e;
                     } else {
-                        // Calculate an increasing delay, capped at a max value, that randomly varies so we don't
-                        // keep re-hitting the server at roughly the same time.
-                        double targetDelay = Math.min(Math.pow(4.0, numRetries) * 20L, MAX_AWS_BACKOFF);
-                        long delay = (long)(targetDelay * (1.0 + (_random.nextDouble() * AWS_BACKOFF_RANDOM_PERCENT)));
+                        long delay = getRetryDelay(numRetries, _random);
                         LOGGER.debug("Retriable error detected, will retry in " + delay + "ms, attempt number: " + numRetries);
                         Thread.sleep(delay);
                     }
@@ -269,6 +323,21 @@ public class BackoffHttpHandler implements IHttpHandler {
         }
     }
 
+    private String doLimitedRequest(HttpRequestBase request, URL url) throws IOException, HttpException, InterruptedException {
+        Semaphore permits = _requestPermits;
+        if (permits == null) {
+            return doRequest(request, url);
+        }
+        
+        permits.acquire();
+        
+        try {
+            return doRequest(request, url);
+        } finally {
+            permits.release();
+        }
+    }
+    
     private String doRequest(HttpRequestBase request, URL url) throws IOException, HttpException, InterruptedException {
         boolean needAbort = true;
         InputStream in = null;
@@ -49,6 +49,12 @@ public class SimpleDB {
     private static final Logger LOGGER = Logger.getLogger(SimpleDB.class);
     
     public static final String TIMESTAMP_METADATA = "Timestamp";
+    public static final String ITEM_COUNT_METADATA = "ItemCount";
+    public static final String ATTRIBUTE_VALUE_COUNT_METADATA = "AttributeValueCount";
+    public static final String ATTRIBUTE_NAME_COUNT_METADATA = "AttributeNameCount";
+    public static final String ITEM_NAMES_SIZE_METADATA = "ItemNamesSizeBytes";
+    public static final String ATTRIBUTE_VALUES_SIZE_METADATA = "AttributeValuesSizeBytes";
+    public static final String ATTRIBUTE_NAMES_SIZE_METADATA = "AttributeNamesSizeBytes";
     public static final String DEFAULT_HOST = "sdb.amazonaws.com";
     
     private static final String SIGNATURE_METHOD = "HmacSHA1";
@@ -321,13 +327,13 @@ public class SimpleDB {
         
         Map<String, String> el = new HashMap<String, String>();
         
-        putIfElementExists(el, resp, "Timestamp");
-        putIfElementExists(el, resp, "ItemCount");
-        putIfElementExists(el, resp, "AttributeValueCount");
-        putIfElementExists(el, resp, "AttributeNameCount");
-        putIfElementExists(el, resp, "ItemNamesSizeBytes");
-        putIfElementExists(el, resp, "AttributeValuesSizeBytes");
-        putIfElementExists(el, resp, "AttributeNamesSizeBytes");
+        putIfElementExists(el, resp, TIMESTAMP_METADATA);
+        putIfElementExists(el, resp, ITEM_COUNT_METADATA);
+        putIfElementExists(el, resp, ATTRIBUTE_VALUE_COUNT_METADATA);
+        putIfElementExists(el, resp, ATTRIBUTE_NAME_COUNT_METADATA);
+        putIfElementExists(el, resp, ITEM_NAMES_SIZE_METADATA);
+        putIfElementExists(el, resp, ATTRIBUTE_VALUES_SIZE_METADATA);
+        putIfElementExists(el, resp, ATTRIBUTE_NAMES_SIZE_METADATA);
         
         return el;
     }
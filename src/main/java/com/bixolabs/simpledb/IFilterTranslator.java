@@ -0,0 +1,29 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import cascading.operation.Filter;
+
+public interface IFilterTranslator {
+    
+    /**
+     * Return the predicate that's equivalent to <filter>, or null if it can't be translated.
+     * 
+     * @param filter Cascading filter operation
+     * @return equivalent predicate, or null
+     */
+    SimpleDBPredicate translate(Filter<?> filter);
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.bixolabs.aws.SimpleDB;
+
+/**
+ * Calculates counts for a sharded table using select count(*) requests, versus having to
+ * read every item through a flow just to count them.
+ * 
+ * The count for each shard is calculated by a separate thread, and the results are summed.
+ */
+public class SimpleDBAggregator {
+    private static final Logger LOGGER = Logger.getLogger(SimpleDBAggregator.class);
+
+    private class CountTask implements Callable<Long> {
+        private String _shardName;
+        private String _expression;
+        
+        public CountTask(String shardName, String expression) {
+            _shardName = shardName;
+            _expression = expression;
+        }
+        
+        @Override
+        public Long call() throws Exception {
+            // Each request needs its own SimpleDB, since that's where the next token is tracked.
+            return (long)SimpleDBUtils.getItemCount(new SimpleDB(_sdb), _shardName, _expression, SimpleDBUtils.NO_SELECT_LIMIT);
+        }
+    }
+    
+    private SimpleDB _sdb;
+    private List<String> _shardNames;
+    private int _maxThreads;
+    
+    public SimpleDBAggregator(SimpleDB sdb, String baseDomainName, int numShards) {
+        this(sdb, baseDomainName, numShards, numShards);
+    }
+    
+    public SimpleDBAggregator(SimpleDB sdb, String baseDomainName, int numShards, int maxThreads) {
+        _sdb = sdb;
+        _shardNames = SimpleDBUtils.getShardNames(baseDomainName, numShards);
+        _maxThreads = maxThreads;
+    }
+    
+    /**
+     * Return the number of items in the table that match <query>.
+     * 
+     * @param query expression to use with selection, or "" to count all items.
+     * @return total count, across all shards
+     * @throws IOException
+     */
+    public long count(String query) throws IOException {
+        List<String> expressions = new ArrayList<String>(1);
+        expressions.add(query);
+        return countAll(expressions)[0];
+    }
+    
+    /**
+     * Return the number of items in the table that match <query>, for each of <values> for
+     * the attribute <attributeName>. This issues one count request per value, per shard.
+     * 
+     * @param attributeName name of attribute to group by
+     * @param values values of the attribute that we want counts for
+     * @param query additional expression that items must match, or "".
+     * @return map from value to count, in the same order as <values>
+     * @throws IOException
+     */
+    public Map<String, Long> countByValue(String attributeName, List<String> values, String query) throws IOException {
+        List<String> expressions = new ArrayList<String>(values.size());
+        for (String value : values) {
+            String valueExpression = SimpleDBPredicate.eq(attributeName, value).toExpression(null);
+            expressions.add(SimpleDBUtils.combineExpressions(query, valueExpression));
+        }
+        
+        long[] counts = countAll(expressions);
+        Map<String, Long> result = new LinkedHashMap<String, Long>(values.size());
+        for (int i = 0; i < counts.length; i++) {
+            result.put(values.get(i), counts[i]);
+        }
+        
+        return result;
+    }
+    
+    private long[] countAll(List<String> expressions) throws IOException {
+        List<CountTask> tasks = new ArrayList<CountTask>(expressions.size() * _shardNames.size());
+        for (String expression : expressions) {
+            for (String shardName : _shardNames) {
+                tasks.add(new CountTask(shardName, expression));
+            }
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(_maxThreads, tasks.size())));
+        
+        try {
+            List<Future<Long>> results = executor.invokeAll(tasks);
+            long[] counts = new long[expressions.size()];
+            for (int i = 0; i < results.size(); i++) {
+                counts[i / _shardNames.size()] += results.get(i).get();
+            }
+            
+            LOGGER.debug(String.format("Made %d count requests for %d expressions", tasks.size(), expressions.size()));
+            return counts;
+        } catch (ExecutionException e) {
+            throw new IOException("Error counting items", e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while counting items");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
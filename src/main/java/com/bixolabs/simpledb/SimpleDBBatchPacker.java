@@ -0,0 +1,257 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs items into batches for BatchPutAttributes requests, keeping each request under the
+ * service limits of 25 items, 256 attributes per item, and 1MB of (encoded) request data.
+ * 
+ * A batch is closed as soon as it has the max number of items, or when the next item won't
+ * fit. A second write to an item that's still in the current batch gets merged with the
+ * first (last write wins for each attribute). Items with too many attributes (or bytes)
+ * for one request are split up into several pieces, each of which winds up in a different
+ * batch.
+ */
+public class SimpleDBBatchPacker {
+
+    public static final int MAX_BATCH_ITEMS = 25;
+    public static final int MAX_BATCH_BYTES = 1024 * 1024;
+    public static final int MAX_ITEM_ATTRIBUTES = 256;
+    
+    // Room for the standard request parameters (action, domain name, access key id, timestamp,
+    // signature, etc).
+    private static final int REQUEST_OVERHEAD = 1024;
+    
+    // Room for the per-item and per-attribute parameter names, e.g. "Item.24.Attribute.255.Name=",
+    // plus the separators and the optional Replace parameter (which insert-only writes don't use).
+    private static final int ITEM_OVERHEAD = 32;
+    private static final int ATTRIBUTE_OVERHEAD = 96;
+    private static final int INSERT_ATTRIBUTE_OVERHEAD = 64;
+
+    private int _maxItems;
+    private int _maxBytes;
+    private int _maxAttributes;
+    private int _attributeOverhead;
+    private boolean _addContentHash;
+    
+    private Map<String, Map<String, String>> _batch;
+    private Map<String, Integer> _itemBytes;
+    private int _batchBytes;
+    
+    public SimpleDBBatchPacker() {
+        this(false);
+    }
+    
+    /**
+     * @param insertOnly true if batches will be written without Replace parameters, which
+     *        makes each attribute take up less room in the request.
+     */
+    public SimpleDBBatchPacker(boolean insertOnly) {
+        this(MAX_BATCH_ITEMS, MAX_BATCH_BYTES, MAX_ITEM_ATTRIBUTES, insertOnly);
+    }
+    
+    public SimpleDBBatchPacker(int maxItems, int maxBytes, int maxAttributes) {
+        this(maxItems, maxBytes, maxAttributes, false);
+    }
+    
+    public SimpleDBBatchPacker(int maxItems, int maxBytes, int maxAttributes, boolean insertOnly) {
+        _maxItems = maxItems;
+        _maxBytes = maxBytes;
+        _maxAttributes = maxAttributes;
+        _attributeOverhead = insertOnly ? INSERT_ATTRIBUTE_OVERHEAD : ATTRIBUTE_OVERHEAD;
+        _addContentHash = false;
+        
+        startBatch();
+    }
+    
+    /**
+     * Set whether each item added to a batch gets a content hash attribute (see
+     * SimpleDBChangeDetector). The hash is calculated after merging with any earlier write
+     * to the same item, so that it describes everything that will actually be stored.
+     * 
+     * @param addContentHash true to add the content hash attribute
+     */
+    public void setAddContentHash(boolean addContentHash) {
+        _addContentHash = addContentHash;
+    }
+    
+    public boolean isAddContentHash() {
+        return _addContentHash;
+    }
+    
+    /**
+     * Add an item to the current batch. If the item is already in the current batch, the
+     * attributes are merged.
+     * 
+     * @param itemName
+     * @param attributes
+     * @return list of batches that are now ready to be written (often empty)
+     */
+    public List<Map<String, Map<String, String>>> add(String itemName, Map<String, String> attributes) {
+        List<Map<String, Map<String, String>>> result = Collections.emptyList();
+        
+        Integer oldBytes = _itemBytes.remove(itemName);
+        if (oldBytes != null) {
+            Map<String, String> merged = new HashMap<String, String>(_batch.remove(itemName));
+            merged.putAll(attributes);
+            attributes = merged;
+            _batchBytes -= oldBytes;
+        }
+        
+        if (_addContentHash) {
+            SimpleDBChangeDetector.setContentHash(attributes);
+        }
+        
+        // Typically the whole item fits into one request, so we can add it as-is.
+        int itemBytes = getItemBytes(itemName, attributes);
+        if ((attributes.size() <= _maxAttributes) && (itemBytes <= _maxBytes - REQUEST_OVERHEAD)) {
+            return addPiece(itemName, attributes, itemBytes, result);
+        }
+        
+        for (Map<String, String> piece : splitItem(itemName, attributes)) {
+            result = addPiece(itemName, piece, getItemBytes(itemName, piece), result);
+        }
+        
+        return result;
+    }
+    
+    private List<Map<String, Map<String, String>>> addPiece(String itemName, Map<String, String> piece, int itemBytes, List<Map<String, Map<String, String>>> result) {
+        // A batch can only contain one piece of an item.
+        if (!_batch.isEmpty() && (_batch.containsKey(itemName) || (_batchBytes + itemBytes > _maxBytes))) {
+            result = addReadyBatch(result, closeBatch());
+        }
+        
+        _batch.put(itemName, piece);
+        _itemBytes.put(itemName, itemBytes);
+        _batchBytes += itemBytes;
+        
+        if (_batch.size() >= _maxItems) {
+            result = addReadyBatch(result, closeBatch());
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Add <batch> to <result>, only allocating a (mutable) list once there's a ready batch.
+     */
+    private static List<Map<String, Map<String, String>>> addReadyBatch(List<Map<String, Map<String, String>>> result, Map<String, Map<String, String>> batch) {
+        if (result.isEmpty()) {
+            result = new ArrayList<Map<String, Map<String, String>>>(2);
+        }
+        
+        result.add(batch);
+        return result;
+    }
+    
+    /**
+     * @return the current (partial) batch, or null if it's empty
+     */
+    public Map<String, Map<String, String>> flush() {
+        return _batch.isEmpty() ? null : closeBatch();
+    }
+    
+    public int getNumItems() {
+        return _batch.size();
+    }
+    
+    public int getNumBytes() {
+        return _batchBytes;
+    }
+    
+    private Map<String, Map<String, String>> closeBatch() {
+        Map<String, Map<String, String>> result = _batch;
+        startBatch();
+        return result;
+    }
+    
+    private void startBatch() {
+        _batch = new LinkedHashMap<String, Map<String, String>>();
+        _itemBytes = new HashMap<String, Integer>();
+        _batchBytes = REQUEST_OVERHEAD;
+    }
+    
+    /**
+     * Split up <attributes> into pieces that each fit into a single request.
+     */
+    private List<Map<String, String>> splitItem(String itemName, Map<String, String> attributes) {
+        List<Map<String, String>> result = new ArrayList<Map<String, String>>();
+        int maxPieceBytes = _maxBytes - REQUEST_OVERHEAD - ITEM_OVERHEAD - getEncodedLength(itemName);
+        
+        Map<String, String> piece = new HashMap<String, String>();
+        int pieceBytes = 0;
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            int attrBytes = getAttributeBytes(entry.getKey(), entry.getValue());
+            if (!piece.isEmpty() && ((piece.size() >= _maxAttributes) || (pieceBytes + attrBytes > maxPieceBytes))) {
+                result.add(piece);
+                piece = new HashMap<String, String>();
+                pieceBytes = 0;
+            }
+            
+            piece.put(entry.getKey(), entry.getValue());
+            pieceBytes += attrBytes;
+        }
+        
+        result.add(piece);
+        return result;
+    }
+    
+    private int getItemBytes(String itemName, Map<String, String> attributes) {
+        int result = ITEM_OVERHEAD + getEncodedLength(itemName);
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            result += getAttributeBytes(entry.getKey(), entry.getValue());
+        }
+        
+        return result;
+    }
+    
+    private int getAttributeBytes(String name, String value) {
+        return _attributeOverhead + getEncodedLength(name) + getEncodedLength(value);
+    }
+    
+    /**
+     * Return the number of bytes that <s> will take up once it's been UTF-8 and URL encoded.
+     */
+    protected static int getEncodedLength(String s) {
+        int result = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'))
+                            || (c == '-') || (c == '_') || (c == '.') || (c == '~')) {
+                result += 1;
+            } else if (c < 0x80) {
+                result += 3;
+            } else if (c < 0x800) {
+                result += 6;
+            } else if (Character.isHighSurrogate(c)) {
+                // Surrogate pair turns into four UTF-8 bytes.
+                result += 12;
+                i += 1;
+            } else {
+                result += 9;
+            }
+        }
+        
+        return result;
+    }
+}
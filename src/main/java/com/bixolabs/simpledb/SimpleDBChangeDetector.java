@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.bixolabs.aws.AWSException;
+import com.bixolabs.aws.SimpleDB;
+
+/**
+ * Removes items from a batch that haven't changed since they were last written, by comparing
+ * each item's content hash attribute with the one that's currently stored in SimpleDB.
+ * 
+ * This assumes that the only writer of the content hash attribute is this code, so that the
+ * stored hash always reflects the stored attribute values.
+ */
+public class SimpleDBChangeDetector {
+    private static final Logger LOGGER = Logger.getLogger(SimpleDBChangeDetector.class);
+
+    // SimpleDB limits the number of comparisons in a select expression, so we look up the
+    // hashes for a batch of items using several smaller requests.
+    private static final int MAX_LOOKUP_ITEMS = 20;
+    
+    // Field name we use when creating the itemName() in (...) expression.
+    private static final String ITEM_NAME_FIELD = "ItemName";
+    
+    /**
+     * Set the content hash attribute for <attributes>, based on the current attribute values.
+     * 
+     * @param attributes
+     */
+    public static void setContentHash(Map<String, String> attributes) {
+        attributes.put(SimpleDBUtils.CONTENT_HASH_ATTR_NAME, SimpleDBUtils.getContentHash(attributes));
+    }
+    
+    /**
+     * Remove every item from <items> that has the same content hash as the version that's already
+     * in <shardName>. Items without a content hash attribute are always kept.
+     * 
+     * @param sdb SimpleDB to copy for making requests
+     * @param shardName shard (domain) that the items are written to
+     * @param items map from item name to attributes (including the content hash)
+     * @return number of items that were removed
+     * @throws AWSException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static int removeUnchangedItems(SimpleDB sdb, String shardName, Map<String, Map<String, String>> items) throws AWSException, IOException, InterruptedException {
+        Map<String, String> oldHashes = getContentHashes(new SimpleDB(sdb), shardName, new ArrayList<String>(items.keySet()));
+        
+        int result = 0;
+        Iterator<Map.Entry<String, Map<String, String>>> iter = items.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Map<String, String>> entry = iter.next();
+            String newHash = entry.getValue().get(SimpleDBUtils.CONTENT_HASH_ATTR_NAME);
+            if ((newHash != null) && newHash.equals(oldHashes.get(entry.getKey()))) {
+                iter.remove();
+                result += 1;
+            }
+        }
+        
+        LOGGER.trace(String.format("Skipping %d unchanged items for %s", result, shardName));
+        return result;
+    }
+    
+    private static Map<String, String> getContentHashes(SimpleDB sdb, String shardName, List<String> itemNames) throws AWSException, IOException, InterruptedException {
+        Map<String, String> result = new HashMap<String, String>(itemNames.size() * 2);
+        List<String> attributes = Arrays.asList(SimpleDBUtils.CONTENT_HASH_ATTR_NAME);
+        
+        for (int i = 0; i < itemNames.size(); i += MAX_LOOKUP_ITEMS) {
+            List<String> names = itemNames.subList(i, Math.min(itemNames.size(), i + MAX_LOOKUP_ITEMS));
+            String expression = SimpleDBPredicate.in(ITEM_NAME_FIELD, names.toArray(new String[names.size()])).toExpression(ITEM_NAME_FIELD);
+            String selectStr = SimpleDBUtils.makeSelectStatement(shardName, attributes, expression, SimpleDBUtils.NO_SELECT_LIMIT);
+            
+            // The lookup has to see our own earlier writes, as otherwise an item that's changed
+            // back to an older version (in a later batch) could be skipped as unchanged.
+            for (Map<String, String[]> item : sdb.select(selectStr, null, true)) {
+                String[] itemName = item.get(ITEM_NAME_FIELD);
+                String[] hash = item.get(SimpleDBUtils.CONTENT_HASH_ATTR_NAME);
+                if ((itemName != null) && (hash != null) && (hash.length > 0)) {
+                    result.put(itemName[0], hash[0]);
+                }
+            }
+        }
+        
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * The state needed to resume reading from a shard part-way through: the select statement
+ * being used, the select next token for the next page of items, and how many items have
+ * already been read.
+ * 
+ * Checkpoints are saved as side files in a checkpoint directory, with one sub-directory
+ * per shard and one file per task attempt that read the shard.
+ */
+public class SimpleDBCheckpoint implements Writable {
+
+    private String _selectStatement;
+    private String _nextToken;
+    private int _itemsRead;
+    
+    public SimpleDBCheckpoint() {
+        // Empty constructor for Writable support
+    }
+    
+    public SimpleDBCheckpoint(String selectStatement, String nextToken, int itemsRead) {
+        _selectStatement = selectStatement;
+        _nextToken = nextToken;
+        _itemsRead = itemsRead;
+    }
+    
+    /**
+     * @return the select statement used when reading, since a next token is only valid for
+     *         the same statement (query, attributes and limit).
+     */
+    public String getSelectStatement() {
+        return _selectStatement;
+    }
+    
+    public String getNextToken() {
+        return _nextToken;
+    }
+    
+    public int getItemsRead() {
+        return _itemsRead;
+    }
+    
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        _selectStatement = in.readUTF();
+        _nextToken = in.readUTF();
+        _itemsRead = in.readInt();
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(_selectStatement);
+        out.writeUTF(_nextToken);
+        out.writeInt(_itemsRead);
+    }
+    
+    /**
+     * Return the checkpoint that got furthest through <shardName>, out of the ones saved by
+     * <attemptIds>, or by any attempt if <attemptIds> is null. Checkpoints saved using a
+     * different select statement (e.g. a different query or set of scheme fields) are ignored.
+     * 
+     * @param conf
+     * @param checkpointDir
+     * @param shardName
+     * @param attemptIds task attempts to consider, or null for all of them.
+     * @param selectStatement statement that will be used to continue reading
+     * @return checkpoint, or null if there isn't a valid one.
+     * @throws IOException
+     */
+    public static SimpleDBCheckpoint read(JobConf conf, String checkpointDir, String shardName, Collection<String> attemptIds, String selectStatement) throws IOException {
+        Path shardPath = new Path(checkpointDir, shardName);
+        FileSystem fs = shardPath.getFileSystem(conf);
+        if (!fs.exists(shardPath)) {
+            return null;
+        }
+        
+        SimpleDBCheckpoint result = null;
+        for (FileStatus status : fs.listStatus(shardPath)) {
+            String attemptId = status.getPath().getName();
+            if (attemptId.startsWith("_") || ((attemptIds != null) && !attemptIds.contains(attemptId))) {
+                continue;
+            }
+            
+            SimpleDBCheckpoint checkpoint = new SimpleDBCheckpoint();
+            FSDataInputStream in = fs.open(status.getPath());
+            
+            try {
+                checkpoint.readFields(in);
+            } finally {
+                in.close();
+            }
+            
+            if (checkpoint.getSelectStatement().equals(selectStatement)
+                            && ((result == null) || (checkpoint.getItemsRead() > result.getItemsRead()))) {
+                result = checkpoint;
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Save <checkpoint> for <shardName> to <checkpointDir>, replacing any previous one from
+     * the same task attempt. Each attempt gets its own file, since speculative attempts at
+     * reading the same shard can be running at the same time.
+     * 
+     * @param conf
+     * @param checkpointDir
+     * @param shardName
+     * @param attemptId task attempt that's reading the shard
+     * @param checkpoint
+     * @throws IOException
+     */
+    public static void write(JobConf conf, String checkpointDir, String shardName, String attemptId, SimpleDBCheckpoint checkpoint) throws IOException {
+        Path shardPath = new Path(checkpointDir, shardName);
+        Path path = new Path(shardPath, attemptId);
+        Path tempPath = new Path(shardPath, "_" + attemptId);
+        FileSystem fs = path.getFileSystem(conf);
+        
+        // Write to a temp file first, so we never leave behind a partial checkpoint.
+        FSDataOutputStream out = fs.create(tempPath, true);
+        
+        try {
+            checkpoint.write(out);
+        } finally {
+            out.close();
+        }
+        
+        fs.delete(path, false);
+        if (!fs.rename(tempPath, path)) {
+            throw new IOException("Unable to save checkpoint to " + path);
+        }
+    }
+    
+    /**
+     * Remove all checkpoints for <shardName> from <checkpointDir>, once the shard has been
+     * completely read.
+     * 
+     * @param conf
+     * @param checkpointDir
+     * @param shardName
+     * @throws IOException
+     */
+    public static void delete(JobConf conf, String checkpointDir, String shardName) throws IOException {
+        Path path = new Path(checkpointDir, shardName);
+        path.getFileSystem(conf).delete(path, true);
+    }
+}
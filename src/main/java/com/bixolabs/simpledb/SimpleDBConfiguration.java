@@ -16,6 +16,8 @@
 package com.bixolabs.simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.hadoop.mapred.JobConf;
 
@@ -25,6 +27,7 @@ import cascading.util.Util;
 public class SimpleDBConfiguration {
     
     public static final long DEFAULT_CLOSE_TIMEOUT = 300 * 1000L;
+    public static final long DEFAULT_WRITE_QUEUE_BYTES = 16 * 1024 * 1024L;
     
     private static final String DOMAIN_NAME_PROPERTY = makePropertyName("domainName");
     private static final String NUM_SHARDS_PROPERTY = makePropertyName("numShards");
@@ -35,8 +38,27 @@ public class SimpleDBConfiguration {
     private static final String SECRET_ACCESS_KEY_PROPERTY = makePropertyName("secretAccessKey");
     private static final String SELECT_LIMIT_PROPERTY = makePropertyName("selectLimit");
     private static final String MAX_THREADS_PROPERTY = makePropertyName("maxThreads");
+    private static final String MAX_THREADS_PER_SHARD_PROPERTY = makePropertyName("maxThreadsPerShard");
+    private static final String MAX_REQUESTS_PROPERTY = makePropertyName("maxRequests");
     private static final String SDB_HOST_PROPERTY = makePropertyName("sdbHost");
     private static final String CLOSE_TIMEOUT_PROPERTY = makePropertyName("closeTimeout");
+    private static final String READ_STREAMS_PROPERTY = makePropertyName("readStreams");
+    private static final String CHECKPOINT_DIR_PROPERTY = makePropertyName("checkpointDir");
+    private static final String RESUME_FAILED_ATTEMPTS_PROPERTY = makePropertyName("resumeFailedAttempts");
+    private static final String RESUME_FAILED_JOBS_PROPERTY = makePropertyName("resumeFailedJobs");
+    private static final String ESTIMATE_SPLIT_SIZES_PROPERTY = makePropertyName("estimateSplitSizes");
+    private static final String COMBINE_SPLIT_ITEMS_PROPERTY = makePropertyName("combineSplitItems");
+    private static final String CONCURRENT_READ_LIMIT_PROPERTY = makePropertyName("concurrentReadLimit");
+    private static final String SNAPSHOT_DIR_PROPERTY = makePropertyName("snapshotDir");
+    private static final String DEAD_LETTER_DIR_PROPERTY = makePropertyName("deadLetterDir");
+    private static final String JOURNAL_DIR_PROPERTY = makePropertyName("journalDir");
+    private static final String SAMPLE_FRACTION_PROPERTY = makePropertyName("sampleFraction");
+    private static final String SAMPLE_SEED_PROPERTY = makePropertyName("sampleSeed");
+    private static final String WRITE_LINGER_PROPERTY = makePropertyName("writeLinger");
+    private static final String SKIP_UNCHANGED_ITEMS_PROPERTY = makePropertyName("skipUnchangedItems");
+    private static final String INSERT_ONLY_PROPERTY = makePropertyName("insertOnly");
+    private static final String WRITE_QUEUE_BATCHES_PROPERTY = makePropertyName("writeQueueBatches");
+    private static final String WRITE_QUEUE_BYTES_PROPERTY = makePropertyName("writeQueueBytes");
     
     private JobConf _conf;
     
@@ -76,6 +98,30 @@ public class SimpleDBConfiguration {
         return _conf.get(ITEM_FIELD_NAME_PROPERTY);
     }
     
+    /**
+     * Return the list of attributes we need to select, which is every scheme field
+     * except for the item field (the item name always gets returned).
+     * 
+     * @return list of attribute names, or null (for all attributes) if there are no scheme fields.
+     */
+    public List<String> getSelectAttributes() {
+        Fields schemeFields = getSchemeFields();
+        if (schemeFields == null) {
+            return null;
+        }
+        
+        String itemFieldName = getItemFieldName();
+        List<String> result = new ArrayList<String>(schemeFields.size());
+        for (int i = 0; i < schemeFields.size(); i++) {
+            String attrName = schemeFields.get(i).toString();
+            if (!attrName.equals(itemFieldName)) {
+                result.add(attrName);
+            }
+        }
+        
+        return result;
+    }
+    
     public void setQuery(String query) {
         _conf.set(QUERY_PROPERTY, query);
     }
@@ -116,6 +162,27 @@ public class SimpleDBConfiguration {
         return _conf.getInt(MAX_THREADS_PROPERTY, getNumShards());
     }
     
+    public void setMaxThreadsPerShard(int maxThreadsPerShard) {
+        _conf.setInt(MAX_THREADS_PER_SHARD_PROPERTY, maxThreadsPerShard);
+    }
+    
+    /**
+     * @return max simultaneous writes to one shard, which defaults to the max number of
+     *         threads (i.e. no per-shard cap).
+     */
+    public int getMaxThreadsPerShard() {
+        int maxThreadsPerShard = _conf.getInt(MAX_THREADS_PER_SHARD_PROPERTY, 0);
+        return (maxThreadsPerShard > 0) ? maxThreadsPerShard : getMaxThreads();
+    }
+    
+    public void setMaxRequests(int maxRequests) {
+        _conf.setInt(MAX_REQUESTS_PROPERTY, maxRequests);
+    }
+    
+    public int getMaxRequests() {
+        return _conf.getInt(MAX_REQUESTS_PROPERTY, 0);
+    }
+    
     public void setSdbHost(String sdbHost) {
         _conf.set(SDB_HOST_PROPERTY, sdbHost);
     }
@@ -132,6 +199,166 @@ public class SimpleDBConfiguration {
         return _conf.getLong(CLOSE_TIMEOUT_PROPERTY, DEFAULT_CLOSE_TIMEOUT);
     }
     
+    public void setWriteLinger(long writeLinger) {
+        _conf.setLong(WRITE_LINGER_PROPERTY, writeLinger);
+    }
+    
+    public long getWriteLinger() {
+        return _conf.getLong(WRITE_LINGER_PROPERTY, 0);
+    }
+    
+    public void setSkipUnchangedItems(boolean skipUnchangedItems) {
+        _conf.setBoolean(SKIP_UNCHANGED_ITEMS_PROPERTY, skipUnchangedItems);
+    }
+    
+    public boolean isSkipUnchangedItems() {
+        return _conf.getBoolean(SKIP_UNCHANGED_ITEMS_PROPERTY, false);
+    }
+    
+    public void setInsertOnly(boolean insertOnly) {
+        _conf.setBoolean(INSERT_ONLY_PROPERTY, insertOnly);
+    }
+    
+    public boolean isInsertOnly() {
+        return _conf.getBoolean(INSERT_ONLY_PROPERTY, false);
+    }
+    
+    public void setWriteQueueBatches(int writeQueueBatches) {
+        _conf.setInt(WRITE_QUEUE_BATCHES_PROPERTY, writeQueueBatches);
+    }
+    
+    public int getWriteQueueBatches() {
+        return _conf.getInt(WRITE_QUEUE_BATCHES_PROPERTY, 2 * getMaxThreads());
+    }
+    
+    public void setWriteQueueBytes(long writeQueueBytes) {
+        _conf.setLong(WRITE_QUEUE_BYTES_PROPERTY, writeQueueBytes);
+    }
+    
+    public long getWriteQueueBytes() {
+        return _conf.getLong(WRITE_QUEUE_BYTES_PROPERTY, DEFAULT_WRITE_QUEUE_BYTES);
+    }
+    
+    public void setReadStreams(int readStreams) {
+        _conf.setInt(READ_STREAMS_PROPERTY, readStreams);
+    }
+    
+    public int getReadStreams() {
+        return _conf.getInt(READ_STREAMS_PROPERTY, 1);
+    }
+    
+    public void setCheckpointDir(String checkpointDir) {
+        _conf.set(CHECKPOINT_DIR_PROPERTY, checkpointDir);
+    }
+    
+    public String getCheckpointDir() {
+        return _conf.get(CHECKPOINT_DIR_PROPERTY);
+    }
+    
+    public void setResumeFailedAttempts(boolean resumeFailedAttempts) {
+        _conf.setBoolean(RESUME_FAILED_ATTEMPTS_PROPERTY, resumeFailedAttempts);
+    }
+    
+    public boolean isResumeFailedAttempts() {
+        return _conf.getBoolean(RESUME_FAILED_ATTEMPTS_PROPERTY, false);
+    }
+    
+    public void setResumeFailedJobs(boolean resumeFailedJobs) {
+        _conf.setBoolean(RESUME_FAILED_JOBS_PROPERTY, resumeFailedJobs);
+    }
+    
+    public boolean isResumeFailedJobs() {
+        return _conf.getBoolean(RESUME_FAILED_JOBS_PROPERTY, false);
+    }
+    
+    public void setSnapshotDir(String snapshotDir) {
+        _conf.set(SNAPSHOT_DIR_PROPERTY, snapshotDir);
+    }
+    
+    public String getSnapshotDir() {
+        return _conf.get(SNAPSHOT_DIR_PROPERTY);
+    }
+    
+    public void setDeadLetterDir(String deadLetterDir) {
+        _conf.set(DEAD_LETTER_DIR_PROPERTY, deadLetterDir);
+    }
+    
+    public String getDeadLetterDir() {
+        return _conf.get(DEAD_LETTER_DIR_PROPERTY);
+    }
+    
+    public void setJournalDir(String journalDir) {
+        _conf.set(JOURNAL_DIR_PROPERTY, journalDir);
+    }
+    
+    public String getJournalDir() {
+        return _conf.get(JOURNAL_DIR_PROPERTY);
+    }
+    
+    public void setSampleFraction(double sampleFraction) {
+        _conf.setFloat(SAMPLE_FRACTION_PROPERTY, (float)sampleFraction);
+    }
+    
+    public double getSampleFraction() {
+        return _conf.getFloat(SAMPLE_FRACTION_PROPERTY, (float)SimpleDBUtils.NO_SAMPLING);
+    }
+    
+    public void setSampleSeed(long sampleSeed) {
+        _conf.setLong(SAMPLE_SEED_PROPERTY, sampleSeed);
+    }
+    
+    public long getSampleSeed() {
+        return _conf.getLong(SAMPLE_SEED_PROPERTY, 0);
+    }
+    
+    public boolean isSampling() {
+        return getSampleFraction() < SimpleDBUtils.NO_SAMPLING;
+    }
+    
+    /**
+     * Return the query to use when selecting from <shardName>, which is the scheme's query
+     * plus the hash ranges for the shard's sample (if we're sampling).
+     * 
+     * @param shardName name of shard (domain)
+     * @return expression to use with selection, or "".
+     */
+    public String getShardQuery(String shardName) {
+        if (!isSampling()) {
+            return getQuery();
+        }
+        
+        String sampleExpression = SimpleDBUtils.makeSampleExpression(shardName, getNumShards(), getSampleFraction(), getSampleSeed());
+        return SimpleDBUtils.combineExpressions(getQuery(), sampleExpression);
+    }
+    
+    public JobConf getJobConf() {
+        return _conf;
+    }
+    
+    public void setEstimateSplitSizes(boolean estimateSplitSizes) {
+        _conf.setBoolean(ESTIMATE_SPLIT_SIZES_PROPERTY, estimateSplitSizes);
+    }
+    
+    public boolean getEstimateSplitSizes() {
+        return _conf.getBoolean(ESTIMATE_SPLIT_SIZES_PROPERTY, false);
+    }
+    
+    public void setCombineSplitItems(int combineSplitItems) {
+        _conf.setInt(COMBINE_SPLIT_ITEMS_PROPERTY, combineSplitItems);
+    }
+    
+    public int getCombineSplitItems() {
+        return _conf.getInt(COMBINE_SPLIT_ITEMS_PROPERTY, 0);
+    }
+    
+    public void setConcurrentReadLimit(int concurrentReadLimit) {
+        _conf.setInt(CONCURRENT_READ_LIMIT_PROPERTY, concurrentReadLimit);
+    }
+    
+    public int getConcurrentReadLimit() {
+        return _conf.getInt(CONCURRENT_READ_LIMIT_PROPERTY, 0);
+    }
+    
     private static String safeSerializeBase64(Object o) {
         try {
             return Util.serializeBase64(o);
@@ -148,7 +375,7 @@ public class SimpleDBConfiguration {
         }
     }
     
-    private static String makePropertyName(String baseName) {
+    protected static String makePropertyName(String baseName) {
         return String.format("%s-%s", SimpleDBConfiguration.class.getSimpleName(), baseName);
     }
 
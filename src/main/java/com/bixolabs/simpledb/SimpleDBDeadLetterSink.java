@@ -0,0 +1,151 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+
+/**
+ * Where items go that SimpleDB won't accept (e.g. a value that's too long, or too many
+ * attributes), so that one bad record doesn't cause the whole task to fail.
+ * 
+ * When a dead letter directory is set, each record writer saves its bad items to a text
+ * file in that directory named <name>-<task attempt id>, with one line per item. The line
+ * has the shard name, the item name, the error message and then the attribute name/value
+ * pairs, all separated by tabs. Tabs, newlines and backslashes in these strings are escaped
+ * with a backslash. The file is only created once the first bad item shows up.
+ * 
+ * Every attempt at a task gets its own file, so the files of a failed or speculative attempt
+ * can repeat items that are also in the file of the attempt that succeeded.
+ * 
+ * Without a dead letter directory, bad items are just logged.
+ */
+public class SimpleDBDeadLetterSink {
+    private static final Logger LOGGER = Logger.getLogger(SimpleDBDeadLetterSink.class);
+
+    private JobConf _conf;
+    private Path _path;
+    private Writer _out;
+    private int _numItems;
+    
+    /**
+     * @param conf
+     * @param deadLetterDir directory for the dead letter file, or null to only log bad items
+     * @param name name for this sink's file, e.g. the task's output file name
+     */
+    public SimpleDBDeadLetterSink(JobConf conf, String deadLetterDir, String name) {
+        _conf = conf;
+        _path = (deadLetterDir == null) ? null : new Path(deadLetterDir, makeFileName(name, TaskAttemptUtils.getAttemptId(conf)));
+        _out = null;
+        _numItems = 0;
+    }
+    
+    /**
+     * @return true if bad items get saved, versus just being logged.
+     */
+    public boolean isSaving() {
+        return _path != null;
+    }
+    
+    public synchronized void add(String shardName, String itemName, Map<String, String> attributes, String reason) throws IOException {
+        _numItems += 1;
+        LOGGER.warn(String.format("Item %s in %s rejected by SimpleDB: %s", itemName, shardName, reason));
+        
+        if (_path == null) {
+            return;
+        }
+        
+        if (_out == null) {
+            FileSystem fs = _path.getFileSystem(_conf);
+            _out = new OutputStreamWriter(fs.create(_path, true), "UTF-8");
+        }
+        
+        StringBuilder line = new StringBuilder();
+        line.append(escape(shardName));
+        line.append('\t');
+        line.append(escape(itemName));
+        line.append('\t');
+        line.append(escape(reason));
+        
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            line.append('\t');
+            line.append(escape(attribute.getKey()));
+            line.append('\t');
+            line.append(escape(attribute.getValue()));
+        }
+        
+        line.append('\n');
+        _out.write(line.toString());
+    }
+    
+    /**
+     * @return number of items that have been added.
+     */
+    public synchronized int getNumItems() {
+        return _numItems;
+    }
+    
+    public synchronized void close() throws IOException {
+        if (_out != null) {
+            _out.close();
+            _out = null;
+        }
+    }
+    
+    protected static String makeFileName(String name, String attemptId) {
+        return name + "-" + attemptId;
+    }
+    
+    protected static String escape(String s) {
+        if (s == null) {
+            return "";
+        }
+        
+        StringBuilder result = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\t':
+                    result.append("\\t");
+                    break;
+                    
+                case '\n':
+                    result.append("\\n");
+                    break;
+                    
+                case '\r':
+                    result.append("\\r");
+                    break;
+                    
+                case '\\':
+                    result.append("\\\\");
+                    break;
+                    
+                default:
+                    result.append(c);
+            }
+        }
+        
+        return result.toString();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cascading.operation.Filter;
+
+/**
+ * Registry of Cascading {@link Filter} classes that we know how to turn into a
+ * {@link SimpleDBPredicate}, and thus push down into the SimpleDB select expression.
+ */
+public class SimpleDBFilterRegistry {
+
+    private static final Map<Class<? extends Filter<?>>, IFilterTranslator> TRANSLATORS = new LinkedHashMap<Class<? extends Filter<?>>, IFilterTranslator>();
+    
+    static {
+        register(SimpleDBPredicateFilter.class, new IFilterTranslator() {
+            
+            @Override
+            public SimpleDBPredicate translate(Filter<?> filter) {
+                return ((SimpleDBPredicateFilter)filter).getPredicate();
+            }
+        });
+    }
+    
+    /**
+     * Register <translator> as the way to turn instances of <filterClass> (or subclasses) into
+     * a predicate.
+     * 
+     * @param filterClass class of Cascading filter
+     * @param translator translator for instances of that class
+     */
+    public static synchronized void register(Class<? extends Filter<?>> filterClass, IFilterTranslator translator) {
+        TRANSLATORS.put(filterClass, translator);
+    }
+    
+    /**
+     * Return the predicate that's equivalent to <filter>, or null if there's no registered
+     * translator that can handle it.
+     * 
+     * @param filter Cascading filter operation
+     * @return equivalent predicate, or null
+     */
+    public static synchronized SimpleDBPredicate translate(Filter<?> filter) {
+        for (Map.Entry<Class<? extends Filter<?>>, IFilterTranslator> entry : TRANSLATORS.entrySet()) {
+            if (entry.getKey().isInstance(filter)) {
+                SimpleDBPredicate result = entry.getValue().translate(filter);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        
+        return null;
+    }
+}
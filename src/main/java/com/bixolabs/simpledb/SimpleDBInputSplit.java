@@ -23,9 +23,12 @@ import org.apache.hadoop.mapred.InputSplit;
 
 public class SimpleDBInputSplit implements InputSplit {
 
-    private int _length;
+    private int _numItems;
+    private long _length;
     private int _selectLimit;
     private String _shardname;
+    private String _startToken;
+    private int _startItemCount;
     
     public SimpleDBInputSplit() {
         // Empty constructor for Writable support
@@ -36,6 +39,19 @@ public class SimpleDBInputSplit implements InputSplit {
     }
 
     public SimpleDBInputSplit(int length, int selectLimit, String shardName) {
+        this(length, length, selectLimit, shardName);
+    }
+
+    /**
+     * Create a split where the size (in bytes) is known separately from the number of items.
+     * 
+     * @param numItems number of items we expect to read from the shard
+     * @param length size of the split, typically the number of attribute value bytes
+     * @param selectLimit limit for the select request, or NO_SELECT_LIMIT
+     * @param shardName name of the shard (domain) to read from
+     */
+    public SimpleDBInputSplit(int numItems, long length, int selectLimit, String shardName) {
+        _numItems = numItems;
         _length = length;
         _selectLimit = selectLimit;
         _shardname = shardName;
@@ -46,9 +62,32 @@ public class SimpleDBInputSplit implements InputSplit {
         return _length;
     }
 
+    public int getNumItems() {
+        return _numItems;
+    }
+    
     public int getSelectLimit() throws IOException {
         return _selectLimit;
     }
+    
+    /**
+     * Start reading from a point part-way through the shard.
+     * 
+     * @param startToken select next token for the first page to read, or null to read from the beginning.
+     * @param startItemCount number of items that were read before <startToken>
+     */
+    public void setStart(String startToken, int startItemCount) {
+        _startToken = startToken;
+        _startItemCount = startItemCount;
+    }
+    
+    public String getStartToken() {
+        return _startToken;
+    }
+    
+    public int getStartItemCount() {
+        return _startItemCount;
+    }
 
     @Override
     public String[] getLocations() throws IOException {
@@ -57,16 +96,32 @@ public class SimpleDBInputSplit implements InputSplit {
 
     @Override
     public void readFields(DataInput in) throws IOException {
-        _length = in.readInt();
+        _numItems = in.readInt();
+        _length = in.readLong();
         _selectLimit = in.readInt();
         _shardname = in.readUTF();
+        
+        if (in.readBoolean()) {
+            _startToken = in.readUTF();
+            _startItemCount = in.readInt();
+        } else {
+            _startToken = null;
+            _startItemCount = 0;
+        }
     }
 
     @Override
     public void write(DataOutput out) throws IOException {
-        out.writeInt(_length);
+        out.writeInt(_numItems);
+        out.writeLong(_length);
         out.writeInt(_selectLimit);
         out.writeUTF(_shardname);
+        
+        out.writeBoolean(_startToken != null);
+        if (_startToken != null) {
+            out.writeUTF(_startToken);
+            out.writeInt(_startItemCount);
+        }
     }
 
 }
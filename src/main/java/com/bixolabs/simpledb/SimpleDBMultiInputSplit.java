@@ -0,0 +1,115 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.mapred.InputSplit;
+
+/**
+ * An input split that combines several (small) shard splits, so that one map task
+ * reads all of them, versus having task startup time dominate.
+ * 
+ * If the split has its own select limit, then the shards are read concurrently until
+ * that many items (in total) have been returned.
+ */
+public class SimpleDBMultiInputSplit implements InputSplit {
+
+    private List<SimpleDBInputSplit> _splits;
+    private int _selectLimit;
+    
+    public SimpleDBMultiInputSplit() {
+        // Empty constructor for Writable support
+        _splits = new ArrayList<SimpleDBInputSplit>();
+        _selectLimit = SimpleDBUtils.NO_SELECT_LIMIT;
+    }
+    
+    public SimpleDBMultiInputSplit(List<SimpleDBInputSplit> splits) {
+        this(splits, SimpleDBUtils.NO_SELECT_LIMIT);
+    }
+    
+    public SimpleDBMultiInputSplit(List<SimpleDBInputSplit> splits, int selectLimit) {
+        _splits = new ArrayList<SimpleDBInputSplit>(splits);
+        _selectLimit = selectLimit;
+    }
+    
+    public int getSelectLimit() {
+        return _selectLimit;
+    }
+    
+    public boolean isConcurrent() {
+        return _selectLimit != SimpleDBUtils.NO_SELECT_LIMIT;
+    }
+    
+    public List<SimpleDBInputSplit> getSplits() {
+        return _splits;
+    }
+    
+    public int getNumItems() {
+        int result = 0;
+        for (SimpleDBInputSplit split : _splits) {
+            result += split.getNumItems();
+        }
+        
+        return result;
+    }
+    
+    @Override
+    public long getLength() throws IOException {
+        long result = 0;
+        for (SimpleDBInputSplit split : _splits) {
+            result += split.getLength();
+        }
+        
+        return result;
+    }
+
+    @Override
+    public String[] getLocations() throws IOException {
+        String[] result = new String[_splits.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = _splits.get(i).getLocations()[0];
+        }
+        
+        return result;
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        _selectLimit = in.readInt();
+        int numSplits = in.readInt();
+        _splits = new ArrayList<SimpleDBInputSplit>(numSplits);
+        for (int i = 0; i < numSplits; i++) {
+            SimpleDBInputSplit split = new SimpleDBInputSplit();
+            split.readFields(in);
+            _splits.add(split);
+        }
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(_selectLimit);
+        out.writeInt(_splits.size());
+        for (SimpleDBInputSplit split : _splits) {
+            split.write(out);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapred.RecordReader;
+
+import cascading.tuple.Tuple;
+
+/**
+ * Record reader for a {@link SimpleDBMultiInputSplit}, which reads each of the combined
+ * shards in turn.
+ */
+public class SimpleDBMultiRecordReader implements RecordReader<NullWritable, Tuple> {
+
+    private SimpleDBConfiguration _sdbConf;
+    private List<SimpleDBInputSplit> _splits;
+    private int _numItems;
+    
+    private int _curSplitIndex;
+    private SimpleDBRecordReader _curReader;
+    private int _itemsInDoneSplits;
+    private long _posInDoneSplits;
+    
+    public SimpleDBMultiRecordReader(SimpleDBMultiInputSplit split, SimpleDBConfiguration sdbConf) throws IOException {
+        _sdbConf = sdbConf;
+        _splits = split.getSplits();
+        _numItems = split.getNumItems();
+        
+        _curSplitIndex = 0;
+        _curReader = _splits.isEmpty() ? null : new SimpleDBRecordReader(_splits.get(0), _sdbConf);
+        _itemsInDoneSplits = 0;
+        _posInDoneSplits = 0;
+    }
+    
+    @Override
+    public boolean next(NullWritable key, Tuple value) throws IOException {
+        while (_curReader != null) {
+            if (_curReader.next(key, value)) {
+                return true;
+            }
+            
+            // Move on to the next shard.
+            _itemsInDoneSplits += _splits.get(_curSplitIndex).getNumItems();
+            _posInDoneSplits += _curReader.getPos();
+            _curReader.close();
+            _curReader = null;
+            
+            _curSplitIndex += 1;
+            if (_curSplitIndex < _splits.size()) {
+                _curReader = new SimpleDBRecordReader(_splits.get(_curSplitIndex), _sdbConf);
+            }
+        }
+        
+        return false;
+    }
+
+    @Override
+    public NullWritable createKey() {
+        return NullWritable.get();
+    }
+
+    @Override
+    public Tuple createValue() {
+        return new Tuple(new Object[_sdbConf.getSchemeFields().size()]);
+    }
+
+    @Override
+    public long getPos() throws IOException {
+        return _posInDoneSplits + (_curReader == null ? 0 : _curReader.getPos());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_curReader != null) {
+            _curReader.close();
+            _curReader = null;
+        }
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+        if (_curReader == null) {
+            return 1.0f;
+        } else if (_numItems == 0) {
+            return (float)_curSplitIndex / (float)_splits.size();
+        }
+        
+        float curItems = _curReader.getProgress() * _splits.get(_curSplitIndex).getNumItems();
+        return Math.min(1.0f, (_itemsInDoneSplits + curItems) / (float)_numItems);
+    }
+
+}
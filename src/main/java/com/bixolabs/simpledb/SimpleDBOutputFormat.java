@@ -35,7 +35,7 @@ public class SimpleDBOutputFormat implements OutputFormat<NullWritable, Tuple> {
 
     @Override
     public RecordWriter<NullWritable, Tuple> getRecordWriter(FileSystem fs, JobConf conf, String name, Progressable progressable) throws IOException {
-        return new SimpleDBRecordWriter(new SimpleDBConfiguration(conf));
+        return new SimpleDBRecordWriter(new SimpleDBConfiguration(conf), name, progressable);
     }
 
 }
@@ -0,0 +1,297 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.bixolabs.aws.SimpleDB;
+
+/**
+ * Reads items using multiple concurrent select streams. Either one shard is divided into
+ * sub-ranges using the item hash attribute, and each stream pages through one of these
+ * sub-ranges, or (for small limited reads) each stream pages through a different shard.
+ * Items from all of the streams wind up in a bounded queue, which the caller drains via
+ * next().
+ */
+public class SimpleDBParallelReader {
+    private static final Logger LOGGER = Logger.getLogger(SimpleDBParallelReader.class);
+
+    public static final int DEFAULT_QUEUE_SIZE_PER_STREAM = 1000;
+    
+    // How long a stream waits when the queue is full, before checking to see if it's been stopped.
+    private static final long QUEUE_OFFER_TIMEOUT = 100L;
+    
+    // How long we wait for streams to finish up, once they've been told to stop.
+    private static final long TERMINATION_TIMEOUT = 10 * 1000L;
+    
+    // Marker that a stream puts into the queue when it's done.
+    private static final Map<String, String[]> END_OF_STREAM = new HashMap<String, String[]>();
+
+    private class SliceReader implements Runnable {
+        private SimpleDB _sdb;
+        private String _shardName;
+        private String _expression;
+        
+        public SliceReader(SimpleDB sdb, String shardName, String expression) {
+            _sdb = sdb;
+            _shardName = shardName;
+            _expression = expression;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                String nextToken = null;
+                
+                do {
+                    int pageLimit = reservePage();
+                    if (pageLimit == 0) {
+                        break;
+                    }
+                    
+                    String selectStr = SimpleDBUtils.makeSelectStatement(_shardName, _attributes, _expression, pageLimit);
+                    LOGGER.trace(String.format("Making select request: %s", selectStr));
+                    
+                    List<Map<String, String[]>> items = null;
+                    try {
+                        items = _sdb.select(selectStr, nextToken);
+                        nextToken = _sdb.getLastToken();
+                    } finally {
+                        releasePage(pageLimit, items == null ? 0 : items.size());
+                    }
+                    
+                    for (Map<String, String[]> item : items) {
+                        if (!enqueue(item)) {
+                            return;
+                        }
+                    }
+                } while (nextToken != null);
+            } catch (Exception e) {
+                LOGGER.error("Error while selecting from " + _shardName, e);
+                _exceptions.add(new IOException("Error selecting from " + _shardName, e));
+            } finally {
+                endFetching();
+                enqueue(END_OF_STREAM);
+            }
+        }
+        
+        private boolean enqueue(Map<String, String[]> item) {
+            try {
+                while (!_stopped) {
+                    if (_queue.offer(item, QUEUE_OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            
+            return false;
+        }
+    }
+    
+    private String _name;
+    private List<String> _attributes;
+    private int _selectLimit;
+    private int _numStreams;
+    private BlockingQueue<Map<String, String[]>> _queue;
+    private List<IOException> _exceptions;
+    private ThreadedExecutor _executor;
+    private volatile boolean _stopped;
+    
+    // Select limit bookkeeping, shared by all of the streams. Access is synchronized.
+    private int _itemsReserved;
+    private int _itemsFetched;
+    private int _fetchingStreams;
+    
+    private int _activeStreams;
+    private int _itemsReturned;
+    
+    /**
+     * Create a reader for <shardName>, and start up <numStreams> select streams.
+     * 
+     * @param sdb SimpleDB instance to copy for each stream.
+     * @param shardName name of shard (domain)
+     * @param numShards total number of shards in the table
+     * @param attributes names of attributes to return, or null for all attributes.
+     * @param query expression to use with selection, or "".
+     * @param selectLimit max number of items to return, or NO_SELECT_LIMIT
+     * @param numStreams number of concurrent select streams
+     */
+    public SimpleDBParallelReader(SimpleDB sdb, String shardName, int numShards, List<String> attributes, String query, int selectLimit, int numStreams) {
+        init(shardName, attributes, selectLimit, numStreams);
+        
+        long[] shardRange = SimpleDBUtils.getShardHashRange(SimpleDBUtils.getShardNumber(shardName) - 1, numShards);
+        long sliceSize = (shardRange[1] - shardRange[0]) / numStreams;
+        for (int i = 0; i < numStreams; i++) {
+            long startHash = shardRange[0] + (i * sliceSize);
+            long endHash = (i == numStreams - 1) ? shardRange[1] : startHash + sliceSize;
+            String expression = SimpleDBUtils.combineExpressions(query, SimpleDBUtils.makeItemHashExpression(startHash, endHash));
+            
+            // Each stream needs its own SimpleDB, since that's where the next token is tracked.
+            _executor.execute(new SliceReader(new SimpleDB(sdb), shardName, expression));
+        }
+    }
+    
+    /**
+     * Create a reader that uses one select stream per shard, and stops once <selectLimit>
+     * items have been returned from all of the shards combined.
+     * 
+     * @param sdb SimpleDB instance to copy for each stream.
+     * @param shardNames names of shards (domains) to read from
+     * @param attributes names of attributes to return, or null for all attributes.
+     * @param queries expression to use with selection for each shard, or "".
+     * @param selectLimit max number of items to return, or NO_SELECT_LIMIT
+     */
+    public SimpleDBParallelReader(SimpleDB sdb, List<String> shardNames, List<String> attributes, List<String> queries, int selectLimit) {
+        init(shardNames.size() + " shards", attributes, selectLimit, shardNames.size());
+        
+        for (int i = 0; i < shardNames.size(); i++) {
+            _executor.execute(new SliceReader(new SimpleDB(sdb), shardNames.get(i), queries.get(i)));
+        }
+    }
+    
+    private void init(String name, List<String> attributes, int selectLimit, int numStreams) {
+        _name = name;
+        _attributes = attributes;
+        _selectLimit = selectLimit;
+        _numStreams = numStreams;
+        
+        _queue = new ArrayBlockingQueue<Map<String, String[]>>(numStreams * DEFAULT_QUEUE_SIZE_PER_STREAM);
+        _exceptions = Collections.synchronizedList(new ArrayList<IOException>());
+        _executor = new ThreadedExecutor(numStreams, TERMINATION_TIMEOUT);
+        _stopped = false;
+        _itemsReserved = 0;
+        _itemsFetched = 0;
+        _fetchingStreams = numStreams;
+        _activeStreams = numStreams;
+        _itemsReturned = 0;
+    }
+    
+    /**
+     * Reserve items for a stream's next page. Each stream that's still fetching gets an
+     * even share of the unreserved part of the select limit, so that N streams don't wind
+     * up fetching N times as many items as we'll return. If everything is reserved but
+     * the limit hasn't been reached yet, we wait to see whether other streams come up short.
+     * 
+     * @return page limit, NO_SELECT_LIMIT, or 0 if the stream should stop.
+     * @throws InterruptedException
+     */
+    private synchronized int reservePage() throws InterruptedException {
+        if (_selectLimit == SimpleDBUtils.NO_SELECT_LIMIT) {
+            return SimpleDBUtils.NO_SELECT_LIMIT;
+        }
+        
+        while (!_stopped && (_itemsFetched < _selectLimit)) {
+            int remaining = _selectLimit - _itemsReserved;
+            if (remaining > 0) {
+                int numStreams = Math.max(1, _fetchingStreams);
+                int pageLimit = (remaining + numStreams - 1) / numStreams;
+                _itemsReserved += pageLimit;
+                return pageLimit;
+            }
+            
+            wait(QUEUE_OFFER_TIMEOUT);
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Record that a page reserved via reservePage() returned <numItems> items, and free
+     * up the rest of the reservation for other streams.
+     */
+    private synchronized void releasePage(int pageLimit, int numItems) {
+        if (_selectLimit == SimpleDBUtils.NO_SELECT_LIMIT) {
+            return;
+        }
+        
+        _itemsReserved -= (pageLimit - numItems);
+        _itemsFetched += numItems;
+        notifyAll();
+    }
+    
+    private synchronized void endFetching() {
+        _fetchingStreams -= 1;
+        notifyAll();
+    }
+    
+    /**
+     * Return the next item from any of the streams, blocking until one is available.
+     * 
+     * @return map of attribute names to values (including "ItemName"), or null if there are no more items.
+     * @throws IOException
+     */
+    public Map<String, String[]> next() throws IOException {
+        if ((_selectLimit != SimpleDBUtils.NO_SELECT_LIMIT) && (_itemsReturned >= _selectLimit)) {
+            // No point in having the streams keep fetching items we'll never return.
+            _stopped = true;
+            return null;
+        }
+        
+        try {
+            while (_activeStreams > 0) {
+                throwAsyncException();
+                
+                Map<String, String[]> item = _queue.take();
+                if (item == END_OF_STREAM) {
+                    _activeStreams -= 1;
+                } else {
+                    _itemsReturned += 1;
+                    return item;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while reading from " + _name);
+        }
+        
+        throwAsyncException();
+        return null;
+    }
+    
+    public int getNumStreams() {
+        return _numStreams;
+    }
+    
+    public void close() throws IOException {
+        _stopped = true;
+        _queue.clear();
+        
+        try {
+            if (!_executor.terminate(TERMINATION_TIMEOUT)) {
+                LOGGER.warn("Had to do a hard termination of select streams for " + _name);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while terminating select streams for " + _name);
+        }
+    }
+    
+    private void throwAsyncException() throws IOException {
+        if (_exceptions.size() > 0) {
+            throw _exceptions.remove(0);
+        }
+    }
+}
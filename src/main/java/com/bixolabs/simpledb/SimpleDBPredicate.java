@@ -0,0 +1,293 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import cascading.tuple.TupleEntry;
+
+/**
+ * A typed predicate on item attributes, that can be compiled into a SimpleDB select
+ * expression (for use as the scheme's query) and also evaluated against a tuple.
+ * 
+ * All values in SimpleDB are strings, so comparisons (lt, gt, etc) are lexicographic. This
+ * means numeric values must already be encoded (e.g. zero-padded) for range comparisons to
+ * work as expected.
+ */
+@SuppressWarnings("serial")
+public abstract class SimpleDBPredicate implements Serializable {
+
+    private static final String ITEM_NAME_FUNCTION = "itemName()";
+    
+    private static class Comparison extends SimpleDBPredicate {
+        private String _fieldName;
+        private String _operator;
+        private String _value;
+        
+        public Comparison(String fieldName, String operator, String value) {
+            if (value == null) {
+                throw new IllegalArgumentException("Value can't be null, use isNull() or isNotNull() instead");
+            }
+            
+            _fieldName = fieldName;
+            _operator = operator;
+            _value = value;
+        }
+        
+        @Override
+        public String toExpression(String itemFieldName) {
+            return String.format("%s %s %s", quoteField(_fieldName, itemFieldName), _operator, quoteValue(_value));
+        }
+        
+        @Override
+        public boolean isMatch(TupleEntry entry) {
+            String value = entry.getString(_fieldName);
+            if (value == null) {
+                return false;
+            }
+            
+            int result = value.compareTo(_value);
+            if (_operator.equals("=")) {
+                return result == 0;
+            } else if (_operator.equals("!=")) {
+                return result != 0;
+            } else if (_operator.equals("<")) {
+                return result < 0;
+            } else if (_operator.equals("<=")) {
+                return result <= 0;
+            } else if (_operator.equals(">")) {
+                return result > 0;
+            } else if (_operator.equals(">=")) {
+                return result >= 0;
+            } else {
+                throw new IllegalStateException("Unknown operator: " + _operator);
+            }
+        }
+    }
+    
+    private static class Prefix extends SimpleDBPredicate {
+        private String _fieldName;
+        private String _prefix;
+        
+        public Prefix(String fieldName, String prefix) {
+            if (prefix == null) {
+                throw new IllegalArgumentException("Prefix can't be null");
+            }
+            
+            _fieldName = fieldName;
+            _prefix = prefix;
+        }
+        
+        @Override
+        public String toExpression(String itemFieldName) {
+            // Escape any special characters in the prefix, so they're matched literally.
+            String pattern = _prefix.replace("\\", "\\\\").replace("%", "\\%") + "%";
+            return String.format("%s like %s", quoteField(_fieldName, itemFieldName), quoteValue(pattern));
+        }
+        
+        @Override
+        public boolean isMatch(TupleEntry entry) {
+            String value = entry.getString(_fieldName);
+            return (value != null) && value.startsWith(_prefix);
+        }
+    }
+    
+    private static class In extends SimpleDBPredicate {
+        private String _fieldName;
+        private List<String> _values;
+        
+        public In(String fieldName, String... values) {
+            if (values.length == 0) {
+                throw new IllegalArgumentException("There must be at least one value");
+            }
+            
+            _fieldName = fieldName;
+            _values = Arrays.asList(values);
+            if (_values.contains(null)) {
+                throw new IllegalArgumentException("Values can't be null");
+            }
+        }
+        
+        @Override
+        public String toExpression(String itemFieldName) {
+            StringBuilder result = new StringBuilder();
+            for (String value : _values) {
+                if (result.length() > 0) {
+                    result.append(", ");
+                }
+                
+                result.append(quoteValue(value));
+            }
+            
+            return String.format("%s in (%s)", quoteField(_fieldName, itemFieldName), result);
+        }
+        
+        @Override
+        public boolean isMatch(TupleEntry entry) {
+            return _values.contains(entry.getString(_fieldName));
+        }
+    }
+    
+    private static class Null extends SimpleDBPredicate {
+        private String _fieldName;
+        private boolean _isNull;
+        
+        public Null(String fieldName, boolean isNull) {
+            _fieldName = fieldName;
+            _isNull = isNull;
+        }
+        
+        @Override
+        public String toExpression(String itemFieldName) {
+            return String.format("%s is %s", quoteField(_fieldName, itemFieldName), _isNull ? "null" : "not null");
+        }
+        
+        @Override
+        public boolean isMatch(TupleEntry entry) {
+            return (entry.getString(_fieldName) == null) == _isNull;
+        }
+    }
+    
+    private static class Junction extends SimpleDBPredicate {
+        private String _operator;
+        private SimpleDBPredicate[] _predicates;
+        
+        public Junction(String operator, SimpleDBPredicate... predicates) {
+            if (predicates.length == 0) {
+                throw new IllegalArgumentException("There must be at least one predicate");
+            }
+            
+            _operator = operator;
+            _predicates = predicates;
+        }
+        
+        @Override
+        public String toExpression(String itemFieldName) {
+            StringBuilder result = new StringBuilder();
+            for (SimpleDBPredicate predicate : _predicates) {
+                if (result.length() > 0) {
+                    result.append(' ');
+                    result.append(_operator);
+                    result.append(' ');
+                }
+                
+                result.append('(');
+                result.append(predicate.toExpression(itemFieldName));
+                result.append(')');
+            }
+            
+            return result.toString();
+        }
+        
+        @Override
+        public boolean isMatch(TupleEntry entry) {
+            boolean isAnd = _operator.equals("and");
+            for (SimpleDBPredicate predicate : _predicates) {
+                if (predicate.isMatch(entry) != isAnd) {
+                    return !isAnd;
+                }
+            }
+            
+            return isAnd;
+        }
+    }
+    
+    public static SimpleDBPredicate eq(String fieldName, String value) {
+        return new Comparison(fieldName, "=", value);
+    }
+    
+    public static SimpleDBPredicate ne(String fieldName, String value) {
+        return new Comparison(fieldName, "!=", value);
+    }
+    
+    public static SimpleDBPredicate lt(String fieldName, String value) {
+        return new Comparison(fieldName, "<", value);
+    }
+    
+    public static SimpleDBPredicate le(String fieldName, String value) {
+        return new Comparison(fieldName, "<=", value);
+    }
+    
+    public static SimpleDBPredicate gt(String fieldName, String value) {
+        return new Comparison(fieldName, ">", value);
+    }
+    
+    public static SimpleDBPredicate ge(String fieldName, String value) {
+        return new Comparison(fieldName, ">=", value);
+    }
+    
+    public static SimpleDBPredicate in(String fieldName, String... values) {
+        return new In(fieldName, values);
+    }
+    
+    /**
+     * Match values that start with <prefix>. Any '%' or '\' characters in the prefix
+     * are escaped, so they're matched literally.
+     * 
+     * @param fieldName
+     * @param prefix
+     * @return predicate
+     */
+    public static SimpleDBPredicate startsWith(String fieldName, String prefix) {
+        return new Prefix(fieldName, prefix);
+    }
+    
+    public static SimpleDBPredicate isNull(String fieldName) {
+        return new Null(fieldName, true);
+    }
+    
+    public static SimpleDBPredicate isNotNull(String fieldName) {
+        return new Null(fieldName, false);
+    }
+    
+    public static SimpleDBPredicate and(SimpleDBPredicate... predicates) {
+        return new Junction("and", predicates);
+    }
+    
+    public static SimpleDBPredicate or(SimpleDBPredicate... predicates) {
+        return new Junction("or", predicates);
+    }
+    
+    /**
+     * Return the SimpleDB select expression for this predicate.
+     * 
+     * @param itemFieldName name of the scheme's item field, which is matched using itemName().
+     * @return expression suitable for use as a scheme's query
+     */
+    public abstract String toExpression(String itemFieldName);
+    
+    /**
+     * Return true if <entry> is matched by this predicate.
+     * 
+     * @param entry tuple entry with (at least) the fields used by the predicate
+     * @return true if the predicate is satisfied
+     */
+    public abstract boolean isMatch(TupleEntry entry);
+    
+    protected static String quoteField(String fieldName, String itemFieldName) {
+        if (fieldName.equals(itemFieldName)) {
+            return ITEM_NAME_FUNCTION;
+        } else {
+            return SimpleDBUtils.quoteAttributeName(fieldName);
+        }
+    }
+    
+    protected static String quoteValue(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+}
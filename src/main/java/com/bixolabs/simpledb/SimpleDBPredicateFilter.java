@@ -0,0 +1,46 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Filter;
+import cascading.operation.FilterCall;
+
+/**
+ * A Cascading {@link Filter} that removes tuples which don't match a {@link SimpleDBPredicate}.
+ * 
+ * This is recognized by {@link SimpleDBScheme#pushFilter(Filter)}, so the same filtering can be
+ * done by SimpleDB, instead of in the mapper after every item has been fetched.
+ */
+@SuppressWarnings("serial")
+public class SimpleDBPredicateFilter extends BaseOperation<Void> implements Filter<Void> {
+
+    private SimpleDBPredicate _predicate;
+    
+    public SimpleDBPredicateFilter(SimpleDBPredicate predicate) {
+        _predicate = predicate;
+    }
+    
+    public SimpleDBPredicate getPredicate() {
+        return _predicate;
+    }
+    
+    @Override
+    public boolean isRemove(FlowProcess flowProcess, FilterCall<Void> filterCall) {
+        return !_predicate.isMatch(filterCall.getArguments());
+    }
+}
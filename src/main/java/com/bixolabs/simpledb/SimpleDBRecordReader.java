@@ -16,60 +16,228 @@
 package com.bixolabs.simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RecordReader;
 import org.apache.log4j.Logger;
 
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
-import cascading.tuple.TupleEntry;
 
 import com.bixolabs.aws.BackoffHttpHandler;
-import com.bixolabs.aws.IHttpHandler;
 import com.bixolabs.aws.SimpleDB;
 
 public class SimpleDBRecordReader implements RecordReader<NullWritable, Tuple> {
     private static final Logger LOGGER = Logger.getLogger(SimpleDBRecordReader.class);
 
+    private static final String ITEM_NAME_KEY = "ItemName";
+
+    // Don't bother splitting up a shard into streams that would each return fewer items than this.
+    private static final int MIN_ITEMS_PER_STREAM = 1000;
+
+    // Minimum time between saving checkpoints, when checkpointing is enabled.
+    private static final long CHECKPOINT_INTERVAL = 60 * 1000L;
+
     private String _shardName;
     private Fields _schemeFields;
     private String _itemFieldName;
+    private List<String> _attributes;
+    private String[] _fieldAttrNames;
     private String _query;
+    private String _selectStatement;
     private int _selectLimit;
     
     private SimpleDB _sdb;
     private long _pos;
-    private long _length;
+    private int _numItems;
+    private int _itemsRead;
     private String _nextToken;
     private List<Map<String, String[]>> _curItems;
     private int _curItemIndex;
+    private SimpleDBParallelReader _parallelReader;
+    
+    private JobConf _conf;
+    private String _checkpointDir;
+    private String _attemptId;
+    private long _lastCheckpointTime;
+    
+    private String _snapshotDir;
+    private SimpleDBSnapshot.Reader _snapshotReader;
+    private SimpleDBSnapshot.Writer _snapshotWriter;
     
     public SimpleDBRecordReader(InputSplit split, SimpleDBConfiguration sdbConf) throws IOException {
-        SimpleDBInputSplit sdbSplit = (SimpleDBInputSplit)split;
-        
-        // FUTURE KKr - if we've got more than a threshold number of items (split.getLength()), then
-        // we want to parallelize here by sub-selecting with the item hash
-        _shardName = sdbSplit.getLocations()[0];
         _schemeFields = sdbConf.getSchemeFields();
         _itemFieldName = sdbConf.getItemFieldName();
-        _query = sdbConf.getQuery();
+        _attributes = sdbConf.getSelectAttributes();
+        
+        // Figure out (once) the map key for each field in the tuple. The actual item name is baked
+        // into the response by the SimpleDB code.
+        _fieldAttrNames = new String[_schemeFields.size()];
+        for (int i = 0; i < _fieldAttrNames.length; i++) {
+            String attrName = _schemeFields.get(i).toString();
+            _fieldAttrNames[i] = attrName.equals(_itemFieldName) ? ITEM_NAME_KEY : attrName;
+        }
+        
+        _pos = 0;
+        _itemsRead = 0;
+        
+        if (split instanceof SimpleDBMultiInputSplit) {
+            initConcurrentRead((SimpleDBMultiInputSplit)split, sdbConf);
+            return;
+        }
+        
+        SimpleDBInputSplit sdbSplit = (SimpleDBInputSplit)split;
+        _shardName = sdbSplit.getLocations()[0];
+        _query = sdbConf.getShardQuery(_shardName);
         _selectLimit = sdbSplit.getSelectLimit();
         
-        IHttpHandler httpHandler = new BackoffHttpHandler(sdbConf.getMaxThreads());
+        // A next token is only valid for the select statement that returned it, so checkpoints
+        // are tied to the statement (with the split's full limit) that's used for this read.
+        _selectStatement = SimpleDBUtils.makeSelectStatement(_shardName, _attributes, _query, _selectLimit);
+        
+        // If we've got enough items, parallelize by sub-selecting with the item hash. Each
+        // stream needs its own connection.
+        int numStreams = Math.min(sdbConf.getReadStreams(), sdbSplit.getNumItems() / MIN_ITEMS_PER_STREAM);
+        
+        // We can only checkpoint (and resume) a single stream of select requests.
+        _conf = sdbConf.getJobConf();
+        _checkpointDir = sdbConf.getCheckpointDir();
+        _attemptId = TaskAttemptUtils.getAttemptId(_conf);
+        if (_checkpointDir != null) {
+            numStreams = 1;
+        }
+        
+        // The sample's hash ranges plus the stream's sub-range could exceed the limit on the
+        // number of comparisons in a select expression.
+        if (sdbConf.isSampling()) {
+            numStreams = 1;
+        }
+        
+        BackoffHttpHandler httpHandler = new BackoffHttpHandler(Math.max(sdbConf.getMaxThreads(), numStreams));
+        httpHandler.setMaxRequests(sdbConf.getMaxRequests());
         _sdb = new SimpleDB(sdbConf.getSdbHost(), sdbConf.getAccessKeyId(), sdbConf.getSecretAccessKey(), httpHandler);
         _nextToken = null;
         _curItems = null;
         
-        _pos = 0;
-        _length = split.getLength();
+        // Track progress by items, since the split length might be in bytes (or just an estimate)
+        _numItems = sdbSplit.getNumItems();
+        
+        // If the shard hasn't changed since we last read all of it, we don't need to read it again.
+        _snapshotDir = sdbConf.getSnapshotDir();
+        String timestamp = null;
+        if ((_snapshotDir != null) && (_selectLimit == SimpleDBUtils.NO_SELECT_LIMIT)) {
+            timestamp = getShardTimestamp();
+            if (timestamp != null) {
+                _snapshotReader = SimpleDBSnapshot.openReader(_conf, _snapshotDir, _shardName, _query, _attributes, timestamp);
+                if (_snapshotReader != null) {
+                    LOGGER.info(String.format("Reading %s from snapshot in %s", _shardName, _snapshotDir));
+                    return;
+                }
+            }
+        }
+        
+        if (numStreams > 1) {
+            LOGGER.debug(String.format("Reading from %s using %d streams", _shardName, numStreams));
+            _parallelReader = new SimpleDBParallelReader(_sdb, _shardName, sdbConf.getNumShards(), _attributes, _query, _selectLimit, numStreams);
+        }
+        
+        String startToken = sdbSplit.getStartToken();
+        int startItemCount = sdbSplit.getStartItemCount();
+        
+        // See if a dead attempt at this task got further along. We never resume from an attempt
+        // that might still be running (speculative execution), as if we won, we'd be missing
+        // whatever items it read after the point where we started.
+        if ((_checkpointDir != null) && sdbConf.isResumeFailedAttempts()) {
+            Set<String> deadAttempts = TaskAttemptUtils.getDeadAttemptsOfTask(_conf);
+            if (!deadAttempts.isEmpty()) {
+                SimpleDBCheckpoint checkpoint = SimpleDBCheckpoint.read(_conf, _checkpointDir, _shardName, deadAttempts, _selectStatement);
+                if ((checkpoint != null) && (checkpoint.getItemsRead() > startItemCount)) {
+                    startToken = checkpoint.getNextToken();
+                    startItemCount = checkpoint.getItemsRead();
+                }
+            }
+        }
+        
+        _lastCheckpointTime = System.currentTimeMillis();
+        
+        if (startToken != null) {
+            LOGGER.info(String.format("Resuming read of %s after %d items", _shardName, startItemCount));
+            _nextToken = startToken;
+            _itemsRead = startItemCount;
+            
+            if (_selectLimit != SimpleDBUtils.NO_SELECT_LIMIT) {
+                _selectLimit -= startItemCount;
+                
+                // If we've already hit our limit, set up state so there's nothing left to read.
+                if (_selectLimit <= 0) {
+                    _curItems = new ArrayList<Map<String, String[]>>();
+                    _curItemIndex = 0;
+                    _nextToken = null;
+                }
+            }
+        }
+        
+        // We can only save a snapshot if we're going to read every item in the shard.
+        if ((timestamp != null) && (startToken == null)) {
+            _snapshotWriter = SimpleDBSnapshot.createWriter(_conf, _snapshotDir, _shardName, _query, _attributes, timestamp);
+        }
+    }
+    
+    private String getShardTimestamp() throws IOException {
+        try {
+            return _sdb.domainMetaData(_shardName).get(SimpleDB.TIMESTAMP_METADATA);
+        } catch (Exception e) {
+            throw new IOException("Error getting metadata for " + _shardName, e);
+        }
+    }
+    
+    /**
+     * Set up to read from all of the split's shards at once, until we've got the split's
+     * select limit worth of items. This avoids counting items in every shard when a small
+     * limit could be satisfied by the first few responses.
+     */
+    private void initConcurrentRead(SimpleDBMultiInputSplit multiSplit, SimpleDBConfiguration sdbConf) throws IOException {
+        List<String> shardNames = new ArrayList<String>(multiSplit.getSplits().size());
+        List<String> shardQueries = new ArrayList<String>(multiSplit.getSplits().size());
+        for (SimpleDBInputSplit split : multiSplit.getSplits()) {
+            String shardName = split.getLocations()[0];
+            shardNames.add(shardName);
+            shardQueries.add(sdbConf.getShardQuery(shardName));
+        }
+        
+        _shardName = shardNames.toString();
+        _selectLimit = multiSplit.getSelectLimit();
+        _numItems = _selectLimit;
+        
+        BackoffHttpHandler httpHandler = new BackoffHttpHandler(Math.max(sdbConf.getMaxThreads(), shardNames.size()));
+        httpHandler.setMaxRequests(sdbConf.getMaxRequests());
+        _sdb = new SimpleDB(sdbConf.getSdbHost(), sdbConf.getAccessKeyId(), sdbConf.getSecretAccessKey(), httpHandler);
+        
+        LOGGER.debug(String.format("Reading up to %d items concurrently from %s", _selectLimit, _shardName));
+        _parallelReader = new SimpleDBParallelReader(_sdb, shardNames, _attributes, shardQueries, _selectLimit);
     }
     
     @Override
     public void close() throws IOException {
+        if (_parallelReader != null) {
+            _parallelReader.close();
+        }
+        
+        if (_snapshotReader != null) {
+            _snapshotReader.close();
+        }
+        
+        // If we didn't get to the end of the shard, don't leave behind a partial snapshot.
+        if (_snapshotWriter != null) {
+            _snapshotWriter.abort();
+            _snapshotWriter = null;
+        }
     }
 
     @Override
@@ -90,29 +258,97 @@ public class SimpleDBRecordReader implements RecordReader<NullWritable, Tuple> {
 
     @Override
     public float getProgress() throws IOException {
-        return (float)_pos/(float)_length;
+        if (_numItems == 0) {
+            return 0.0f;
+        }
+        
+        return Math.min(1.0f, (float)_itemsRead/(float)_numItems);
     }
 
     @Override
     public boolean next(NullWritable key, Tuple value) throws IOException {
+        Map<String, String[]> values;
+        if (_snapshotReader != null) {
+            values = _snapshotReader.next();
+        } else if (_parallelReader != null) {
+            values = _parallelReader.next();
+        } else {
+            values = nextItem();
+        }
+        
+        if (values == null) {
+            if (_snapshotWriter != null) {
+                _snapshotWriter.commit();
+                _snapshotWriter = null;
+            }
+            
+            return false;
+        }
+        
+        if (_snapshotWriter != null) {
+            _snapshotWriter.write(values);
+        }
+        
+        _itemsRead += 1;
+        setTupleValues(values, value);
+        return true;
+    }
+    
+    /**
+     * Fill in <value> from the item's attributes, using the precomputed field plan.
+     * 
+     * @param values map from attribute name to values, including the special item name entry
+     * @param value tuple to fill in (one entry per scheme field)
+     */
+    protected void setTupleValues(Map<String, String[]> values, Tuple value) {
+        for (int i = 0; i < _fieldAttrNames.length; i++) {
+            String attrName = _fieldAttrNames[i];
+            
+            // Clear out fields with no value, since the tuple gets reused.
+            String[] attrValues = values.get(attrName);
+            if ((attrValues != null) && (attrValues.length > 0)) {
+                value.set(i, attrValues[0]);
+                _pos += attrValues[0].length();
+            } else {
+                value.set(i, null);
+            }
+        }
+    }
+    
+    private void saveCheckpoint() throws IOException {
+        long curTime = System.currentTimeMillis();
+        if ((_checkpointDir == null) || (curTime - _lastCheckpointTime < CHECKPOINT_INTERVAL)) {
+            return;
+        }
+        
+        LOGGER.debug(String.format("Saving checkpoint for %s after %d items", _shardName, _itemsRead));
+        SimpleDBCheckpoint.write(_conf, _checkpointDir, _shardName, _attemptId, new SimpleDBCheckpoint(_selectStatement, _nextToken, _itemsRead));
+        _lastCheckpointTime = curTime;
+    }
+    
+    private void deleteCheckpoint() throws IOException {
+        if (_checkpointDir != null) {
+            SimpleDBCheckpoint.delete(_conf, _checkpointDir, _shardName);
+        }
+    }
+    
+    private Map<String, String[]> nextItem() throws IOException {
         if ((_curItems == null) || (_curItemIndex >= _curItems.size())) {
             
             // Short-circuit for case where there will be no more items.
             if ((_curItems != null) && (_nextToken == null)) {
                 _curItems = null;
-                return false;
+                deleteCheckpoint();
+                return null;
+            }
+            
+            // Every item before this next page has been returned, so this is a safe spot to resume from.
+            if (_nextToken != null) {
+                saveCheckpoint();
             }
             
             try {
-                String selectStr = String.format("select * from `%s`", _shardName);
-                if (_query.length() > 0) {
-                    selectStr += String.format(" where %s", _query);
-                }
-                
-                if (_selectLimit != SimpleDBUtils.NO_SELECT_LIMIT) {
-                    selectStr += String.format(" limit %d", _selectLimit);
-                }
-                
+                String selectStr = SimpleDBUtils.makeSelectStatement(_shardName, _attributes, _query, _selectLimit);
                 LOGGER.trace(String.format("Making select request: %s", selectStr));
                 
                 _curItems = _sdb.select(selectStr, _nextToken);
@@ -140,30 +376,15 @@ public class SimpleDBRecordReader implements RecordReader<NullWritable, Tuple> {
 
             if (_curItems.size() == 0) {
                 _curItems = null;
-                return false;
+                deleteCheckpoint();
+                return null;
             }
         }
         
         // FUTURE KKr - return a linked list from sdb.select, and then remove items from
         // from to back as we process them, to save on memory usage.
         
-        Map<String, String[]> values = _curItems.get(_curItemIndex++);
-        
-        // Pick off the actual item name, which is baked into the response by the SimpleDB code.
-        String itemValue = values.get("ItemName")[0];
-        TupleEntry entry = new TupleEntry(_schemeFields, value);
-        entry.set(_itemFieldName, itemValue);
-        
-        for (int i = 0; i < _schemeFields.size(); i++) {
-            String attrName = _schemeFields.get(i).toString();
-            String[] attrValues = values.get(attrName);
-            if ((attrValues != null) && (attrValues.length > 0)) {
-                 entry.set(attrName, attrValues[0]);
-                _pos += attrValues[0].length();
-            }
-        }
-        
-        return true;
+        return _curItems.get(_curItemIndex++);
     }
     
 }
@@ -17,23 +17,28 @@ package com.bixolabs.simpledb;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RecordWriter;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
 import org.apache.log4j.Logger;
 
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
-import cascading.tuple.TupleEntry;
 
+import com.bixolabs.aws.AWSException;
 import com.bixolabs.aws.BackoffHttpHandler;
 import com.bixolabs.aws.IHttpHandler;
 import com.bixolabs.aws.SimpleDB;
@@ -41,159 +46,435 @@ import com.bixolabs.aws.SimpleDB;
 public class SimpleDBRecordWriter implements RecordWriter<NullWritable, Tuple> {
     private static final Logger LOGGER = Logger.getLogger(SimpleDBRecordWriter.class);
     
+    private static final String COUNTER_GROUP = "SimpleDB";
+    
+    private static final long NO_JOURNAL_ID = -1;
+    
+    // How often to report progress while waiting on async writes.
+    private static final long PROGRESS_INTERVAL = 10 * 1000L;
+    
+    // Rough number of bytes used by map entries and String objects, beyond the actual characters.
+    private static final int ITEM_MEMORY_OVERHEAD = 128;
+    private static final int ATTRIBUTE_MEMORY_OVERHEAD = 128;
+    
+    // AWS error codes for a batch put that mean (at least) one of the items is bad. Other 400
+    // errors, e.g. NoSuchDomain or MissingParameter, are a problem with the request as a whole.
+    private static final Set<String> ITEM_ERROR_CODES = new HashSet<String>(Arrays.asList(
+                    "InvalidParameterValue", "NumberItemAttributesExceeded", "DuplicateItemName"));
+    
     
     // This value must be less than the Hadoop job timeout value, as otherwise the
     // job could get killed while waiting for a request to get handled.
 //    private static final long REJECTED_EXECUTION_TIMEOUT = 300 * 1000L;
 //    private static final long TERMINATION_TIMEOUT = REJECTED_EXECUTION_TIMEOUT;
 
-    private static final int BATCH_WRITE_SIZE = 25;
-
     private class SdbShardWriter {
 
         private class AsyncSdbWriter implements Runnable {
             private Map<String, Map<String, String>> _items;
+            private long _numBytes;
+            private int _numRetries;
+            private boolean _checkedItems;
+            private long _journalId;
+
+            public AsyncSdbWriter(Map<String, Map<String, String>> items, long numBytes, long journalId) {
+                this(items, numBytes, journalId, false);
+            }
 
-            public AsyncSdbWriter(Map<String, Map<String, String>> items) {
+            private AsyncSdbWriter(Map<String, Map<String, String>> items, long numBytes, long journalId, boolean checkedItems) {
                 _items = items;
+                _numBytes = numBytes;
+                _numRetries = 0;
+                _journalId = journalId;
+                _checkedItems = checkedItems;
             }
 
             @Override
             public void run() {
                 try {
-                    // FUTURE KKr - we could skip replacing the item hashvalue attribute, as that
-                    // shouldn't ever change for a given item.
-                    Map<String, Set<String>> replaceAttr = new HashMap<String, Set<String>>();
-                    for (String itemName : _items.keySet()) {
-                        replaceAttr.put(itemName, _items.get(itemName).keySet());
+                    // On a retry we might have already removed the unchanged items.
+                    if (_skipUnchangedItems && !_checkedItems) {
+                        _unchangedItems.addAndGet(SimpleDBChangeDetector.removeUnchangedItems(_sdb, _shardName, _items));
+                        _checkedItems = true;
+                        if (_items.isEmpty()) {
+                            markDone();
+                            return;
+                        }
+                    }
+                    
+                    // Insert-only writes (to new, empty domains) don't need any Replace parameters.
+                    // Otherwise we can still skip replacing the item hash attribute, since that
+                    // never changes for a given item.
+                    Map<String, Set<String>> replaceAttr = null;
+                    if (!_insertOnly) {
+                        replaceAttr = new HashMap<String, Set<String>>();
+                        for (Map.Entry<String, Map<String, String>> item : _items.entrySet()) {
+                            Set<String> attrNames = new HashSet<String>(item.getValue().keySet());
+                            attrNames.remove(SimpleDBUtils.ITEM_HASH_ATTR_NAME);
+                            replaceAttr.put(item.getKey(), attrNames);
+                        }
                     }
                     
                     long startTime = System.currentTimeMillis();
                     LOGGER.trace(String.format("Updating %s with %d items", _shardName, _items.size()));
                     _sdb.batchPutAttributes(_shardName, _items, replaceAttr);
                     LOGGER.trace(String.format("Updated %s with %d items in %dms", _shardName, _items.size(), System.currentTimeMillis() - startTime));
+                    markDone();
+                } catch (AWSException e) {
+                    if (isItemError(e)) {
+                        bisect(e);
+                        return;
+                    } else if (!BackoffHttpHandler.isRetriable(e.getResponseCode()) || (_numRetries >= BackoffHttpHandler.getMaxAwsRetries())) {
+                        handleException(e);
+                        return;
+                    }
+                    
+                    // Let the executor re-run us after a delay, versus sleeping here, so that
+                    // this thread can write batches for other shards in the meantime.
+                    _numRetries += 1;
+                    long delay = BackoffHttpHandler.getRetryDelay(_numRetries, _random);
+                    LOGGER.debug(String.format("Retriable error writing to %s, will retry in %dms, attempt number: %d", _shardName, delay, _numRetries));
+                    
+                    try {
+                        _executor.retry(_shardName, this, _numBytes, delay);
+                    } catch (RejectedExecutionException ree) {
+                        handleException(e);
+                    }
                 } catch (Exception e) {
-                    LOGGER.error("Error while putting attributes to SimpleDB", e);
+                    handleException(e);
+                }
+            }
+            
+            /**
+             * The batch was rejected because of (at least) one bad item. Split it in half and
+             * write each half separately, so eventually all of the good items get written and
+             * each bad item is isolated, and can go to the dead letter sink.
+             */
+            private void bisect(AWSException e) {
+                if (_items.size() == 1) {
+                    Map.Entry<String, Map<String, String>> item = _items.entrySet().iterator().next();
                     
-                    IOException ioe;
-                    if (e instanceof IOException) {
-                        ioe = new IOException("Error while putting attributes to SimpleDB");
-                        ioe.setStackTrace(e.getStackTrace());
+                    try {
+                        _deadLetterSink.add(_shardName, item.getKey(), item.getValue(), e.getMessage());
+                    } catch (IOException ioe) {
+                        handleException(ioe);
+                        return;
+                    }
+                    
+                    // If bad items aren't being saved, we still want the task to fail.
+                    if (_deadLetterSink.isSaving()) {
+                        markDone();
                     } else {
-                        ioe = new IOException("Error while putting attributes to SimpleDB", e);
+                        handleException(e);
                     }
                     
-                    _exceptions.add(ioe);
+                    return;
+                }
+                
+                LOGGER.debug(String.format("Splitting rejected batch of %d items for %s: %s", _items.size(), _shardName, e.getMessage()));
+                Map<String, Map<String, String>> firstHalf = new HashMap<String, Map<String, String>>();
+                Map<String, Map<String, String>> secondHalf = new HashMap<String, Map<String, String>>();
+                for (Map.Entry<String, Map<String, String>> item : _items.entrySet()) {
+                    if (firstHalf.size() < _items.size() / 2) {
+                        firstHalf.put(item.getKey(), item.getValue());
+                    } else {
+                        secondHalf.put(item.getKey(), item.getValue());
+                    }
+                }
+                
+                try {
+                    // Journal the two halves before we mark the original batch as done.
+                    long firstId = journalBatch(firstHalf);
+                    long secondId = journalBatch(secondHalf);
+                    markDone();
+                    
+                    _executor.retry(_shardName, new AsyncSdbWriter(firstHalf, _numBytes / 2, firstId, _checkedItems), _numBytes / 2, 0);
+                    _executor.retry(_shardName, new AsyncSdbWriter(secondHalf, _numBytes / 2, secondId, _checkedItems), _numBytes / 2, 0);
+                } catch (RejectedExecutionException ree) {
+                    handleException(e);
+                } catch (IOException ioe) {
+                    handleException(ioe);
+                }
+            }
+            
+            private void markDone() {
+                if (_journal == null) {
+                    return;
+                }
+                
+                try {
+                    _journal.markDone(_journalId);
+                } catch (IOException e) {
+                    handleException(e);
                 }
             }
+            
+            private void handleException(Exception e) {
+                LOGGER.error("Error while putting attributes to SimpleDB", e);
+                
+                IOException ioe;
+                if (e instanceof IOException) {
+                    ioe = new IOException("Error while putting attributes to SimpleDB");
+                    ioe.setStackTrace(e.getStackTrace());
+                } else {
+                    ioe = new IOException("Error while putting attributes to SimpleDB", e);
+                }
+                
+                _exceptions.add(ioe);
+            }
         }
         
         private final String _shardName;
         private final SimpleDB _sdb;
         
-        private Map<String, Map<String, String>> _queue;
+        private SimpleDBBatchPacker _packer;
+        private SimpleDBWriteBuffer _buffer;
 
-        public SdbShardWriter(SimpleDB sdb, String shardName) {
+        public SdbShardWriter(SimpleDB sdb, String shardName, long writeLinger) {
             _shardName = shardName;
             _sdb = sdb;
             
-            _queue = new LinkedHashMap<String, Map<String, String>>();
+            _packer = new SimpleDBBatchPacker(_insertOnly);
+            _packer.setAddContentHash(_skipUnchangedItems);
+            _buffer = (writeLinger > 0) ? new SimpleDBWriteBuffer(writeLinger) : null;
         }
         
         public void put(String itemName, Map<String, String> attributes) throws IOException {
-            _queue.put(itemName, attributes);
-            if (_queue.size() >= BATCH_WRITE_SIZE) {
-                writeQueue();
+            if (_buffer == null) {
+                pack(itemName, attributes);
+                return;
+            }
+            
+            long curTime = System.currentTimeMillis();
+            _buffer.add(itemName, attributes, curTime);
+            for (Map.Entry<String, Map<String, String>> item : _buffer.removeExpired(curTime).entrySet()) {
+                pack(item.getKey(), item.getValue());
             }
         }
         
         public void writeQueue() throws IOException {
+            if (_buffer != null) {
+                for (Map.Entry<String, Map<String, String>> item : _buffer.removeAll().entrySet()) {
+                    pack(item.getKey(), item.getValue());
+                }
+            }
+            
+            Map<String, Map<String, String>> batch = _packer.flush();
+            if (batch != null) {
+                writeBatch(batch);
+            }
+        }
+        
+        private void pack(String itemName, Map<String, String> attributes) throws IOException {
+            // The packer adds the content hash (if needed), as it has to be calculated after
+            // merging with any earlier write to the same item.
+            for (Map<String, Map<String, String>> batch : _packer.add(itemName, attributes)) {
+                writeBatch(batch);
+            }
+        }
+        
+        public String getShardName() {
+            return _shardName;
+        }
+        
+        public void writeBatch(Map<String, Map<String, String>> batch) throws IOException {
             try {
-                if (_queue.size() > 0) {
-                    Map<String, Map<String, String>> curQueue = new LinkedHashMap<String, Map<String, String>>(_queue);
-
-                    LOGGER.trace(String.format("Queuing up %d items for %s", curQueue.size(), _shardName));
-
-                    _executor.execute(new AsyncSdbWriter(curQueue));
-                    _queue.clear();
+                LOGGER.trace(String.format("Queuing up %d items for %s", batch.size(), _shardName));
+                long numBytes = getBatchBytes(batch);
+                long journalId = journalBatch(batch);
+                AsyncSdbWriter writer = new AsyncSdbWriter(batch, numBytes, journalId);
+                
+                // Wait in short steps, so we can keep telling Hadoop we're still alive.
+                long endTime = System.currentTimeMillis() + _closeTimeout;
+                while (!_executor.tryExecute(_shardName, writer, numBytes, Math.min(PROGRESS_INTERVAL, _closeTimeout))) {
+                    reportProgress();
+                    if (System.currentTimeMillis() >= endTime) {
+                        throw new RejectedExecutionException(String.format("No room for batch after %dms", _closeTimeout));
+                    }
                 }
             } catch (RejectedExecutionException e) {
                 String msg = "Async write to SimpleDB rejected";
                 LOGGER.error(msg);
                 throw new IOException(msg, e);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while queuing async write to SimpleDB");
             }
         }
+        
+        private long journalBatch(Map<String, Map<String, String>> batch) throws IOException {
+            return (_journal == null) ? NO_JOURNAL_ID : _journal.append(_shardName, batch);
+        }
     }
 
     private String _domainName;
     private int _numShards;
-    private Fields _schemeFields;
-    private String _itemFieldName;
+    private String[] _fieldAttrNames;
+    private int _itemFieldPos;
+    private int _attributesCapacity;
     private List<IOException> _exceptions;
     private long _closeTimeout;
+    private boolean _skipUnchangedItems;
+    private boolean _insertOnly;
+    private AtomicInteger _unchangedItems;
     
     private SdbShardWriter[] _shardWriters;
-    private ThreadedExecutor _executor;
+    private ThreadedBatchExecutor _executor;
+    private Random _random;
+    private SimpleDBDeadLetterSink _deadLetterSink;
+    private SimpleDBWriteJournal _journal;
+    private Progressable _progressable;
+    private Reporter _reporter;
 
-    public SimpleDBRecordWriter(SimpleDBConfiguration sdbConf) {
+    public SimpleDBRecordWriter(SimpleDBConfiguration sdbConf) throws IOException {
+        this(sdbConf, "writer-" + System.currentTimeMillis(), null);
+    }
+    
+    /**
+     * @param sdbConf
+     * @param name unique name for this writer (e.g. the task's output file name), used for dead
+     *        letter and journal files
+     * @param progressable used to report progress while waiting on async writes, or null
+     * @throws IOException
+     */
+    public SimpleDBRecordWriter(SimpleDBConfiguration sdbConf, String name, Progressable progressable) throws IOException {
+        this(sdbConf, name, progressable, makeHttpHandler(sdbConf));
+    }
+    
+    /**
+     * @param sdbConf
+     * @param name unique name for this writer, used for dead letter and journal files
+     * @param progressable used to report progress while waiting on async writes, or null
+     * @param httpHandler handler shared by all shards, which shouldn't retry failed requests itself
+     * @throws IOException
+     */
+    protected SimpleDBRecordWriter(SimpleDBConfiguration sdbConf, String name, Progressable progressable, IHttpHandler httpHandler) throws IOException {
+        _progressable = progressable;
+        _reporter = null;
+        
         _domainName = sdbConf.getDomainName();
         _numShards = sdbConf.getNumShards();
-        _schemeFields = sdbConf.getSchemeFields();
-        _itemFieldName = sdbConf.getItemFieldName();
+        
+        // Set up the field plan, so we don't have to look up fields by name for every tuple.
+        Fields schemeFields = sdbConf.getSchemeFields();
+        String itemFieldName = sdbConf.getItemFieldName();
+        _fieldAttrNames = new String[schemeFields.size()];
+        _itemFieldPos = -1;
+        for (int i = 0; i < _fieldAttrNames.length; i++) {
+            _fieldAttrNames[i] = schemeFields.get(i).toString();
+            if (_fieldAttrNames[i].equals(itemFieldName)) {
+                _itemFieldPos = i;
+            }
+        }
+        
+        if (_itemFieldPos == -1) {
+            throw new IllegalArgumentException("Scheme fields don't include the item field " + itemFieldName);
+        }
+        
+        // Room for every field, plus the item hash and content hash attributes, without resizing.
+        _attributesCapacity = (int)((_fieldAttrNames.length + 2) / 0.75f) + 1;
+        
         _closeTimeout = sdbConf.getCloseTimeout();
+        _skipUnchangedItems = sdbConf.isSkipUnchangedItems();
+        _insertOnly = sdbConf.isInsertOnly();
+        _unchangedItems = new AtomicInteger();
+        _random = new Random();
+        _deadLetterSink = new SimpleDBDeadLetterSink(sdbConf.getJobConf(), sdbConf.getDeadLetterDir(), name);
         
         List<String> shardNames = SimpleDBUtils.getShardNames(_domainName, _numShards);
         _shardWriters = new SdbShardWriter[_numShards];
         
-        // One handler gets shared across all shards, but it's multi-threaded
-        IHttpHandler httpHandler = new BackoffHttpHandler(sdbConf.getMaxThreads());
-        _executor = new ThreadedExecutor(sdbConf.getMaxThreads(), _closeTimeout);
+        _executor = new ThreadedBatchExecutor(sdbConf.getMaxThreads(), sdbConf.getMaxThreadsPerShard(),
+                        sdbConf.getWriteQueueBatches(), sdbConf.getWriteQueueBytes());
 
         LOGGER.trace(String.format("Creating shard writers for %d shards of table %s", _numShards, _domainName));
         
         for (int i = 0; i < _numShards; i++) {
             SimpleDB sdb = new SimpleDB(sdbConf.getSdbHost(), sdbConf.getAccessKeyId(), sdbConf.getSecretAccessKey(), httpHandler);
-            _shardWriters[i] = new SdbShardWriter(sdb, shardNames.get(i));
+            _shardWriters[i] = new SdbShardWriter(sdb, shardNames.get(i), sdbConf.getWriteLinger());
         }
         
         // We also need to be able to record exceptions that happen during the async writes.
         _exceptions = Collections.synchronizedList(new ArrayList<IOException>());
+        
+        // Re-send any batches that a dead attempt at this task never got written. We leave the
+        // journals of other attempts alone, since they might still be running (speculative
+        // execution). Outside of a task, the previous writer's journal has the same attempt ID.
+        String journalDir = sdbConf.getJournalDir();
+        if (journalDir != null) {
+            JobConf conf = sdbConf.getJobConf();
+            String attemptId = TaskAttemptUtils.getAttemptId(conf);
+            boolean inTask = TaskAttemptUtils.isAttemptId(attemptId);
+            Set<String> replayAttempts = inTask ? TaskAttemptUtils.getDeadAttemptsOfTask(conf) : Collections.singleton(attemptId);
+            
+            List<SimpleDBWriteJournal.Batch> pending = SimpleDBWriteJournal.readPending(conf, journalDir, name, replayAttempts);
+            _journal = SimpleDBWriteJournal.create(conf, journalDir, name, attemptId);
+            
+            if (!pending.isEmpty()) {
+                LOGGER.info(String.format("Re-sending %d batches from journal %s", pending.size(), name));
+            }
+            
+            for (SimpleDBWriteJournal.Batch batch : pending) {
+                getShardWriter(batch.getShardName()).writeBatch(batch.getItems());
+            }
+            
+            // The re-sent batches are now in our own journal.
+            if (inTask) {
+                SimpleDBWriteJournal.delete(conf, journalDir, name, replayAttempts);
+            }
+        }
     }
     
     @Override
     public void write(NullWritable key, Tuple value) throws IOException {
         throwAsyncException();
         
-        TupleEntry entry = new TupleEntry(_schemeFields, value);
-
-        String itemName = null;
-        Map<String, String> attributes = new HashMap<String, String>();
-        for (int i = 0; i < _schemeFields.size(); i++) {
-            String fieldName = _schemeFields.get(i).toString();
-            String fieldValue = entry.getString(fieldName);
-
-            if (fieldName.equals(_itemFieldName)) {
-                itemName = fieldValue;
-                
-                // Also add the special attribute we use for segmenting a shard (domain)
-                attributes.put(SimpleDBUtils.ITEM_HASH_ATTR_NAME, SimpleDBUtils.getItemHash(itemName));
-            } else if (fieldValue != null) {
-                attributes.put(fieldName, fieldValue);
+        // We only hash the item name once, for both the shard index and the item hash attribute.
+        String itemName = value.getString(_itemFieldPos);
+        int itemHash = SimpleDBUtils.getHash(itemName);
+        
+        _shardWriters[SimpleDBUtils.getShardIndex(itemHash, _numShards)].put(itemName, makeAttributes(value, itemHash));
+    }
+    
+    /**
+     * Return the attributes for the item in <value>, using the precomputed field plan.
+     * 
+     * @param value tuple (one entry per scheme field)
+     * @param itemHash hash of the item name
+     * @return map from attribute name to value, including the special item hash attribute
+     */
+    protected Map<String, String> makeAttributes(Tuple value, int itemHash) {
+        Map<String, String> result = new HashMap<String, String>(_attributesCapacity);
+        
+        // Also add the special attribute we use for segmenting a shard (domain)
+        result.put(SimpleDBUtils.ITEM_HASH_ATTR_NAME, SimpleDBUtils.formatItemHash(itemHash));
+        
+        for (int i = 0; i < _fieldAttrNames.length; i++) {
+            if (i == _itemFieldPos) {
+                continue;
+            }
+            
+            String fieldValue = value.getString(i);
+            if (fieldValue != null) {
+                result.put(_fieldAttrNames[i], fieldValue);
             }
         }
-
-        int shardIndex = SimpleDBUtils.getShardIndex(itemName, _numShards);
-        _shardWriters[shardIndex].put(itemName, attributes);
+        
+        return result;
     }
 
     @Override
     public void close(Reporter reporter) throws IOException {
+        _reporter = reporter;
+        
         for (int i = 0; i < _numShards; i++) {
             _shardWriters[i].writeQueue();
         }
         
         try {
-            if (!_executor.terminate(_closeTimeout)) {
+            // Only do a normal termination if everything got written, as otherwise we'd
+            // wait (without reporting progress) for the full close timeout all over again.
+            int numPending = drain();
+            if (!_executor.terminate(numPending == 0 ? _closeTimeout : 0)) {
                 String msg = "Had to do a hard termination of async writes to SimpleDB";
                 LOGGER.warn(msg);
                 _exceptions.add(new IOException(msg));
@@ -204,9 +485,141 @@ public class SimpleDBRecordWriter implements RecordWriter<NullWritable, Tuple> {
             _exceptions.add(new IOException(msg));
         }
         
+        if (_skipUnchangedItems) {
+            LOGGER.info(String.format("Skipped writing %d unchanged items to %s", _unchangedItems.get(), _domainName));
+        }
+        
+        LOGGER.info(String.format("Write queue for %s had at most %d pending batches, and writers waited %dms for room",
+                        _domainName, _executor.getMaxPendingBatches(), _executor.getTotalWaitTime()));
+        if (reporter != null) {
+            reporter.incrCounter(COUNTER_GROUP, "QueueWaitTime", _executor.getTotalWaitTime());
+            reporter.incrCounter(COUNTER_GROUP, "WriteRetries", _executor.getTotalRetries());
+            reporter.incrCounter(COUNTER_GROUP, "DeadLetterItems", _deadLetterSink.getNumItems());
+        }
+        
+        try {
+            _deadLetterSink.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing dead letter file", e);
+            _exceptions.add(e);
+        }
+        
+        if (_journal != null) {
+            try {
+                _journal.close(_exceptions.isEmpty());
+            } catch (IOException e) {
+                LOGGER.error("Error closing write journal", e);
+                _exceptions.add(e);
+            }
+        }
+        
         throwAsyncException();
     }
     
+    /**
+     * Wait for the pending batches to be written, reporting progress (and the number of remaining
+     * batches) as we go, so that a long final flush doesn't cause Hadoop to kill the task. The
+     * executor keeps writing batches for all shards in parallel during this time. We give up if
+     * no batch has completed for the close timeout.
+     * 
+     * @return number of batches that still haven't been written.
+     * @throws InterruptedException
+     */
+    private int drain() throws InterruptedException {
+        int numPending = _executor.getPendingBatches();
+        long lastChangeTime = System.currentTimeMillis();
+        
+        while (numPending > 0) {
+            reportProgress();
+            
+            int newPending = _executor.awaitPendingChange(numPending, PROGRESS_INTERVAL);
+            long curTime = System.currentTimeMillis();
+            if (newPending != numPending) {
+                lastChangeTime = curTime;
+            } else if (curTime - lastChangeTime >= _closeTimeout) {
+                LOGGER.warn(String.format("No progress writing the last %d batches to %s after %dms", numPending, _domainName, _closeTimeout));
+                break;
+            }
+            
+            numPending = newPending;
+        }
+        
+        return numPending;
+    }
+    
+    private void reportProgress() {
+        if (_reporter != null) {
+            _reporter.setStatus(String.format("Writing to %s: %d batches remaining", _domainName, _executor.getPendingBatches()));
+            _reporter.progress();
+        } else if (_progressable != null) {
+            _progressable.progress();
+        }
+    }
+    
+    /**
+     * @return number of batches that are waiting to be written, or are being written
+     */
+    public int getPendingBatches() {
+        return _executor.getPendingBatches();
+    }
+    
+    /**
+     * @return total time (in milliseconds) that write() has spent waiting for room in the write queue
+     */
+    public long getQueueWaitTime() {
+        return _executor.getTotalWaitTime();
+    }
+    
+    /**
+     * One handler gets shared across all shards, but it's multi-threaded. Retries for
+     * retriable errors are scheduled via the executor, so the handler doesn't retry them.
+     */
+    private static IHttpHandler makeHttpHandler(SimpleDBConfiguration sdbConf) {
+        BackoffHttpHandler httpHandler = new BackoffHttpHandler(sdbConf.getMaxThreads(), 0);
+        httpHandler.setMaxRequests(sdbConf.getMaxRequests());
+        return httpHandler;
+    }
+    
+    private SdbShardWriter getShardWriter(String shardName) throws IOException {
+        for (SdbShardWriter shardWriter : _shardWriters) {
+            if (shardWriter.getShardName().equals(shardName)) {
+                return shardWriter;
+            }
+        }
+        
+        throw new IOException("Journal has batch for unknown shard " + shardName);
+    }
+    
+    /**
+     * @param e exception from a batch put request
+     * @return true if the request failed because of a problem with the items (e.g. an attribute
+     *         value is too long), versus a problem with the request or SimpleDB.
+     */
+    protected static boolean isItemError(AWSException e) {
+        if ((e.getResponseCode() != 400) || !ITEM_ERROR_CODES.contains(e.getAWSErrorCode())) {
+            return false;
+        }
+        
+        // An invalid domain name is reported the same way as an invalid attribute value.
+        return (e.getMessage() == null) || !e.getMessage().contains("DomainName");
+    }
+    
+    /**
+     * Return a rough estimate of the memory used by <batch>, which is good enough for
+     * limiting the size of the write queue.
+     */
+    private static long getBatchBytes(Map<String, Map<String, String>> batch) {
+        long result = 0;
+        for (Map.Entry<String, Map<String, String>> item : batch.entrySet()) {
+            result += ITEM_MEMORY_OVERHEAD + (2 * item.getKey().length());
+            for (Map.Entry<String, String> attribute : item.getValue().entrySet()) {
+                result += ATTRIBUTE_MEMORY_OVERHEAD + (2 * (attribute.getKey().length() + attribute.getValue().length()));
+            }
+        }
+        
+        return result;
+    }
+    
     private void throwAsyncException() throws IOException {
         if (_exceptions.size() > 0) {
             // We're going to pretend that a previous exception actually happened
@@ -20,12 +20,14 @@
 package com.bixolabs.simpledb;
 
 import java.io.IOException;
+import java.util.Random;
 
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.log4j.Logger;
 
+import cascading.operation.Filter;
 import cascading.scheme.Scheme;
 import cascading.tap.Tap;
 import cascading.tap.TapException;
@@ -47,6 +49,9 @@ public class SimpleDBScheme extends Scheme {
     private String _itemFieldName;
     private String _query;
     private int _selectLimit;
+    private boolean _estimateSplitSizes;
+    private double _sampleFraction = SimpleDBUtils.NO_SAMPLING;
+    private long _sampleSeed;
     
     public SimpleDBScheme(Fields schemeFields, Fields itemField) {
         this(schemeFields, itemField, "");
@@ -91,10 +96,40 @@ public class SimpleDBScheme extends Scheme {
         _query = query;
     }
     
+    /**
+     * Set the query using a typed predicate, versus a hand-written where clause.
+     * 
+     * @param predicate predicate that items must match
+     */
+    public void setQuery(SimpleDBPredicate predicate) {
+        setQuery(predicate.toExpression(_itemFieldName));
+    }
+    
     public String getQuery() {
         return _query;
     }
     
+    /**
+     * Push <filter> down into the query, so that the filtering happens in SimpleDB. The
+     * filter must be one that's been registered with {@link SimpleDBFilterRegistry}.
+     * 
+     * Note that the filter's argument selector must be the scheme fields (or a subset),
+     * for the pushed down version to be equivalent.
+     * 
+     * @param filter Cascading filter that would be applied to tuples from this scheme
+     * @return true if the filter was added to the query, false if it isn't recognized
+     */
+    public boolean pushFilter(Filter<?> filter) {
+        SimpleDBPredicate predicate = SimpleDBFilterRegistry.translate(filter);
+        if (predicate == null) {
+            LOGGER.debug("Can't push filter into query: " + filter);
+            return false;
+        }
+        
+        _query = SimpleDBUtils.combineExpressions(_query, predicate.toExpression(_itemFieldName));
+        return true;
+    }
+    
     public void setSelectLimit(int selectLimit) {
         _selectLimit = selectLimit;
     }
@@ -103,6 +138,54 @@ public class SimpleDBScheme extends Scheme {
         return _selectLimit;
     }
     
+    /**
+     * Use sampling to estimate the number of items in each shard that match the query,
+     * versus doing an exact count. This makes planning much cheaper for big shards and
+     * selective queries, but means that split sizes (and task progress) are approximate.
+     * 
+     * This only applies when there's a query and no select limit.
+     * 
+     * @param estimateSplitSizes true to estimate split sizes by sampling
+     */
+    public void setEstimateSplitSizes(boolean estimateSplitSizes) {
+        _estimateSplitSizes = estimateSplitSizes;
+    }
+    
+    public boolean isEstimateSplitSizes() {
+        return _estimateSplitSizes;
+    }
+    
+    /**
+     * Only read a random sample of about <sampleFraction> of the matching items. Each shard
+     * is divided into narrow item hash ranges, and only a few randomly picked ranges are
+     * selected, so the cost of reading is proportional to the sample size.
+     * 
+     * @param sampleFraction fraction of items to read (0..1), or NO_SAMPLING
+     */
+    public void setSampleFraction(double sampleFraction) {
+        setSampleFraction(sampleFraction, new Random().nextLong());
+    }
+    
+    /**
+     * Only read a random sample of the matching items, using a specific seed so that
+     * the same sample is returned each time.
+     * 
+     * @param sampleFraction fraction of items to read (0..1), or NO_SAMPLING
+     * @param sampleSeed seed for picking hash ranges
+     */
+    public void setSampleFraction(double sampleFraction, long sampleSeed) {
+        if ((sampleFraction <= 0.0) || (sampleFraction > SimpleDBUtils.NO_SAMPLING)) {
+            throw new IllegalArgumentException("Sample fraction must be > 0 and <= 1: " + sampleFraction);
+        }
+        
+        _sampleFraction = sampleFraction;
+        _sampleSeed = sampleSeed;
+    }
+    
+    public double getSampleFraction() {
+        return _sampleFraction;
+    }
+    
     @Override
     public void sinkInit(Tap tap, JobConf conf) throws IOException {
         conf.setOutputKeyClass(NullWritable.class);
@@ -125,6 +208,9 @@ public class SimpleDBScheme extends Scheme {
         
         sdbConf.setQuery(_query);
         sdbConf.setSelectLimit(_selectLimit);
+        sdbConf.setEstimateSplitSizes(_estimateSplitSizes);
+        sdbConf.setSampleFraction(_sampleFraction);
+        sdbConf.setSampleSeed(_sampleSeed);
         
         LOGGER.info(String.format("Initializing SimpleDB source tap - scheme field: %s and item field: %s", _schemeFields, _itemFieldName));
     }
@@ -152,6 +238,12 @@ public class SimpleDBScheme extends Scheme {
         int result = super.hashCode();
         result = prime * result + ((_itemFieldName == null) ? 0 : _itemFieldName.hashCode());
         result = prime * result + ((_query == null) ? 0 : _query.hashCode());
+        result = prime * result + _selectLimit;
+        result = prime * result + (_estimateSplitSizes ? 1231 : 1237);
+        long temp;
+        temp = Double.doubleToLongBits(_sampleFraction);
+        result = prime * result + (int) (temp ^ (temp >>> 32));
+        result = prime * result + (int) (_sampleSeed ^ (_sampleSeed >>> 32));
         return result;
     }
 
@@ -174,6 +266,14 @@ public class SimpleDBScheme extends Scheme {
                 return false;
         } else if (!_query.equals(other._query))
             return false;
+        if (_selectLimit != other._selectLimit)
+            return false;
+        if (_estimateSplitSizes != other._estimateSplitSizes)
+            return false;
+        if (Double.doubleToLongBits(_sampleFraction) != Double.doubleToLongBits(other._sampleFraction))
+            return false;
+        if (_sampleSeed != other._sampleSeed)
+            return false;
         return true;
     }
 
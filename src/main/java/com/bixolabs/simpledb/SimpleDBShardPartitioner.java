@@ -0,0 +1,115 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.util.Map;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+import cascading.tuple.Tuple;
+
+/**
+ * A partitioner that sends all of the tuples for a given shard to the same reducer, so that
+ * each reducer writing to a SimpleDBTap sink only talks to its own (disjoint) set of domains.
+ * This means fewer shard writers per reducer, fuller batches, and no two reducers competing
+ * for the same domain.
+ * 
+ * The item name has to be in the grouping key (by default, the first grouping field), so
+ * this works for a GroupBy on the item field. It doesn't get used for grouping with a
+ * secondary sort, since then Cascading sets its own partitioner.
+ * 
+ * Shard N goes to reducer (N % number of reducers), so typically the number of reducers
+ * should be the number of shards, or something that evenly divides it.
+ * 
+ * The easiest way to use this is via SimpleDBTap.setPartitionByShard, which only sets up the
+ * job for the step that writes to the tap. The setProperties methods set up every step in
+ * the flow, including grouping steps that have nothing to do with SimpleDB.
+ */
+public class SimpleDBShardPartitioner implements Partitioner<Tuple, Tuple> {
+
+    private static final String NUM_SHARDS_PROPERTY = SimpleDBConfiguration.makePropertyName("partitioner.numShards");
+    private static final String KEY_POSITION_PROPERTY = SimpleDBConfiguration.makePropertyName("partitioner.keyPosition");
+    
+    private int _numShards;
+    private int _keyPosition;
+    
+    /**
+     * Set up flow properties so that the reduce phase uses this partitioner, with one reducer
+     * per shard of <tap>. The item name must be the first grouping field.
+     * 
+     * Note that flow properties apply to every MapReduce step in the flow, so this is only
+     * appropriate when the sink step is the flow's only step with a reduce phase. Otherwise
+     * use SimpleDBTap.setPartitionByShard.
+     * 
+     * @param properties properties that will be passed to the FlowConnector
+     * @param tap sink tap for the flow
+     */
+    public static void setProperties(Map<Object, Object> properties, SimpleDBTap tap) {
+        setProperties(properties, tap.getNumShards(), 0, tap.getNumShards());
+    }
+    
+    /**
+     * Set up flow properties so that the reduce phase uses this partitioner. As with
+     * setProperties(properties, tap), this applies to every MapReduce step in the flow.
+     * 
+     * @param properties properties that will be passed to the FlowConnector
+     * @param numShards number of shards in the sink tap
+     * @param keyPosition position of the item name in the grouping key
+     * @param numReducers number of reducers to use
+     */
+    public static void setProperties(Map<Object, Object> properties, int numShards, int keyPosition, int numReducers) {
+        properties.put("mapred.partitioner.class", SimpleDBShardPartitioner.class.getName());
+        properties.put("mapred.reduce.tasks", Integer.toString(numReducers));
+        properties.put(NUM_SHARDS_PROPERTY, Integer.toString(numShards));
+        properties.put(KEY_POSITION_PROPERTY, Integer.toString(keyPosition));
+    }
+    
+    /**
+     * Set up the job for a single step so that its reduce phase uses this partitioner. The
+     * number of reducers isn't changed for a map-only step.
+     * 
+     * @param conf job for the step that writes to the sink tap
+     * @param numShards number of shards in the sink tap
+     * @param keyPosition position of the item name in the grouping key
+     * @param numReducers number of reducers to use
+     */
+    public static void setConf(JobConf conf, int numShards, int keyPosition, int numReducers) {
+        conf.setPartitionerClass(SimpleDBShardPartitioner.class);
+        if (conf.getNumReduceTasks() > 0) {
+            conf.setNumReduceTasks(numReducers);
+        }
+        
+        conf.setInt(NUM_SHARDS_PROPERTY, numShards);
+        conf.setInt(KEY_POSITION_PROPERTY, keyPosition);
+    }
+    
+    @Override
+    public void configure(JobConf conf) {
+        _numShards = conf.getInt(NUM_SHARDS_PROPERTY, 1);
+        _keyPosition = conf.getInt(KEY_POSITION_PROPERTY, 0);
+    }
+
+    @Override
+    public int getPartition(Tuple key, Tuple value, int numPartitions) {
+        String itemName = key.getString(_keyPosition);
+        if (itemName == null) {
+            return 0;
+        }
+        
+        return SimpleDBUtils.getShardIndex(itemName, _numShards) % numPartitions;
+    }
+}
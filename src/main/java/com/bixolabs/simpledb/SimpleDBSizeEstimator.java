@@ -0,0 +1,149 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.bixolabs.aws.AWSException;
+import com.bixolabs.aws.SimpleDB;
+
+/**
+ * Estimates the number of items in a shard that match a query, by counting the matches
+ * in a few randomly picked slices (item hash sub-ranges) of the shard and extrapolating.
+ * 
+ * This is much cheaper than a select count(*) against the entire shard, when the query
+ * is selective and the shard is big, but the result is only approximate.
+ */
+public class SimpleDBSizeEstimator {
+    private static final Logger LOGGER = Logger.getLogger(SimpleDBSizeEstimator.class);
+    
+    public static final int DEFAULT_NUM_SLICES = 64;
+    public static final int DEFAULT_NUM_SAMPLES = 4;
+    
+    // Z value for a 95% confidence interval.
+    private static final double CONFIDENCE_Z = 1.96;
+    
+    public static class Estimate {
+        private int _numItems;
+        private int _errorBound;
+        
+        public Estimate(int numItems, int errorBound) {
+            _numItems = numItems;
+            _errorBound = errorBound;
+        }
+        
+        /**
+         * @return estimated number of matching items
+         */
+        public int getNumItems() {
+            return _numItems;
+        }
+        
+        /**
+         * @return +/- range around the estimate for a 95% confidence interval
+         */
+        public int getErrorBound() {
+            return _errorBound;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d +/- %d", _numItems, _errorBound);
+        }
+    }
+    
+    private SimpleDB _sdb;
+    private int _numSlices;
+    private int _numSamples;
+    private Random _random;
+    
+    public SimpleDBSizeEstimator(SimpleDB sdb) {
+        this(sdb, DEFAULT_NUM_SLICES, DEFAULT_NUM_SAMPLES, new Random());
+    }
+    
+    public SimpleDBSizeEstimator(SimpleDB sdb, int numSlices, int numSamples, Random random) {
+        if ((numSamples < 1) || (numSamples > numSlices)) {
+            throw new IllegalArgumentException("Number of samples must be between 1 and the number of slices");
+        }
+        
+        _sdb = sdb;
+        _numSlices = numSlices;
+        _numSamples = numSamples;
+        _random = random;
+    }
+    
+    /**
+     * Estimate the number of items in <shardName> that match <expression>.
+     * 
+     * @param shardName name of shard (domain)
+     * @param numShards total number of shards in the table
+     * @param expression query expression, or ""/null
+     * @return estimated count, with confidence bound
+     * @throws IOException
+     * @throws AWSException
+     * @throws InterruptedException
+     */
+    public Estimate estimate(String shardName, int numShards, String expression) throws IOException, AWSException, InterruptedException {
+        long[] shardRange = SimpleDBUtils.getShardHashRange(SimpleDBUtils.getShardNumber(shardName) - 1, numShards);
+        long sliceSize = (shardRange[1] - shardRange[0]) / _numSlices;
+        
+        // Pick <_numSamples> different slices at random
+        int[] slices = new int[_numSlices];
+        for (int i = 0; i < _numSlices; i++) {
+            slices[i] = i;
+        }
+        
+        double sum = 0.0;
+        double sumOfSquares = 0.0;
+        for (int i = 0; i < _numSamples; i++) {
+            int pick = i + _random.nextInt(_numSlices - i);
+            int slice = slices[pick];
+            slices[pick] = slices[i];
+            slices[i] = slice;
+            
+            long startHash = shardRange[0] + (slice * sliceSize);
+            long endHash = (slice == _numSlices - 1) ? shardRange[1] : startHash + sliceSize;
+            String sliceExpression = SimpleDBUtils.combineExpressions(expression, SimpleDBUtils.makeItemHashExpression(startHash, endHash));
+            
+            int count = SimpleDBUtils.getItemCount(_sdb, shardName, sliceExpression, SimpleDBUtils.NO_SELECT_LIMIT);
+            sum += count;
+            sumOfSquares += (double)count * count;
+        }
+        
+        double mean = sum / _numSamples;
+        double total = mean * _numSlices;
+        
+        double errorBound = 0.0;
+        if ((sum == 0.0) && (_numSamples < _numSlices)) {
+            // No matches in any sample doesn't mean no matches in the shard. Use the "rule of
+            // three" for the upper bound of the 95% interval, when nothing has been observed.
+            errorBound = 3.0 * _numSlices / _numSamples;
+        } else if ((_numSamples > 1) && (_numSamples < _numSlices)) {
+            // Standard error of the total, using the finite population correction since we're
+            // sampling slices without replacement.
+            double variance = Math.max(0.0, (sumOfSquares - (sum * mean)) / (_numSamples - 1));
+            double fpc = (double)(_numSlices - _numSamples) / (double)(_numSlices - 1);
+            errorBound = CONFIDENCE_Z * _numSlices * Math.sqrt(fpc * variance / _numSamples);
+        }
+        
+        Estimate result = new Estimate((int)Math.round(total), (int)Math.ceil(errorBound));
+        LOGGER.debug(String.format("Estimated %s items in %s", result, shardName));
+        return result;
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+
+/**
+ * A local (or HDFS) copy of the items read from one shard, so that a later read of an
+ * unchanged shard doesn't have to page through SimpleDB again.
+ * 
+ * Snapshots are saved as one file per shard in a snapshot directory. Each file starts with
+ * the shard's Timestamp metadata value, the query and the list of selected attributes,
+ * followed by the items. A snapshot is only used if all three of these match.
+ * 
+ * Note that SimpleDB only recalculates domain metadata periodically, so changes made to a
+ * shard shortly before it's read again might not be reflected in the Timestamp.
+ */
+public class SimpleDBSnapshot {
+    private static final Logger LOGGER = Logger.getLogger(SimpleDBSnapshot.class);
+
+    private static final int SNAPSHOT_VERSION = 1;
+    
+    /**
+     * Returns the items saved in a snapshot, in the order they were originally read.
+     */
+    public static class Reader {
+        private FSDataInputStream _in;
+        
+        private Reader(FSDataInputStream in) {
+            _in = in;
+        }
+        
+        /**
+         * @return next item (map from attribute name to values), or null if there are no more items.
+         * @throws IOException
+         */
+        public Map<String, String[]> next() throws IOException {
+            if (!_in.readBoolean()) {
+                return null;
+            }
+            
+            int numAttributes = _in.readInt();
+            Map<String, String[]> result = new HashMap<String, String[]>(numAttributes * 2);
+            for (int i = 0; i < numAttributes; i++) {
+                String attrName = _in.readUTF();
+                String[] values = new String[_in.readInt()];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = _in.readUTF();
+                }
+                
+                result.put(attrName, values);
+            }
+            
+            return result;
+        }
+        
+        public void close() throws IOException {
+            _in.close();
+        }
+    }
+    
+    /**
+     * Saves items to a temp file, which only replaces the shard's snapshot once every item
+     * has been written (via commit).
+     */
+    public static class Writer {
+        private FileSystem _fs;
+        private Path _path;
+        private Path _tempPath;
+        private FSDataOutputStream _out;
+        
+        private Writer(FileSystem fs, Path path, Path tempPath, FSDataOutputStream out) {
+            _fs = fs;
+            _path = path;
+            _tempPath = tempPath;
+            _out = out;
+        }
+        
+        public void write(Map<String, String[]> item) throws IOException {
+            _out.writeBoolean(true);
+            _out.writeInt(item.size());
+            for (Map.Entry<String, String[]> entry : item.entrySet()) {
+                _out.writeUTF(entry.getKey());
+                
+                String[] values = entry.getValue();
+                _out.writeInt(values.length);
+                for (String value : values) {
+                    _out.writeUTF(value);
+                }
+            }
+        }
+        
+        public void commit() throws IOException {
+            _out.writeBoolean(false);
+            _out.close();
+            
+            _fs.delete(_path, false);
+            if (!_fs.rename(_tempPath, _path)) {
+                // Another reader of the same shard (e.g. a speculative attempt) could have saved
+                // its snapshot in between, in which case we can just use that one.
+                _fs.delete(_tempPath, false);
+                if (!_fs.exists(_path)) {
+                    throw new IOException("Unable to save snapshot to " + _path);
+                }
+                
+                LOGGER.debug(String.format("Snapshot at %s was saved by another reader", _path));
+            }
+        }
+        
+        public void abort() throws IOException {
+            _out.close();
+            _fs.delete(_tempPath, false);
+        }
+    }
+    
+    /**
+     * Open the snapshot of <shardName> from <snapshotDir>, if it exists and it's still valid.
+     * 
+     * @param conf
+     * @param snapshotDir
+     * @param shardName
+     * @param query
+     * @param attributes list of selected attributes, or null for all attributes
+     * @param timestamp current Timestamp metadata value for the shard
+     * @return snapshot reader, or null if there isn't a valid snapshot.
+     * @throws IOException
+     */
+    public static Reader openReader(JobConf conf, String snapshotDir, String shardName, String query, List<String> attributes, String timestamp) throws IOException {
+        Path path = new Path(snapshotDir, shardName);
+        FileSystem fs = path.getFileSystem(conf);
+        if (!fs.exists(path)) {
+            return null;
+        }
+        
+        FSDataInputStream in = fs.open(path);
+        boolean valid = false;
+        
+        try {
+            valid = (in.readInt() == SNAPSHOT_VERSION)
+                && in.readUTF().equals(timestamp)
+                && in.readUTF().equals(makeQueryKey(query, attributes));
+        } finally {
+            if (!valid) {
+                in.close();
+            }
+        }
+        
+        if (!valid) {
+            LOGGER.debug(String.format("Snapshot for %s is out of date", shardName));
+            return null;
+        }
+        
+        return new Reader(in);
+    }
+    
+    /**
+     * Start writing a new snapshot of <shardName> to <snapshotDir>. The temp file's name is
+     * unique to this writer, since other readers of the same shard (speculative attempts, or
+     * other jobs using the same snapshot directory) could be saving snapshots at the same time.
+     * 
+     * @param conf
+     * @param snapshotDir
+     * @param shardName
+     * @param query
+     * @param attributes list of selected attributes, or null for all attributes
+     * @param timestamp Timestamp metadata value for the shard, from before it's read
+     * @return snapshot writer
+     * @throws IOException
+     */
+    public static Writer createWriter(JobConf conf, String snapshotDir, String shardName, String query, List<String> attributes, String timestamp) throws IOException {
+        Path path = new Path(snapshotDir, shardName);
+        String tempName = String.format("_%s_%s_%s", shardName, TaskAttemptUtils.getAttemptId(conf), UUID.randomUUID());
+        Path tempPath = new Path(snapshotDir, tempName);
+        FileSystem fs = path.getFileSystem(conf);
+        
+        FSDataOutputStream out = fs.create(tempPath, true);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeUTF(timestamp);
+        out.writeUTF(makeQueryKey(query, attributes));
+        return new Writer(fs, path, tempPath, out);
+    }
+    
+    private static String makeQueryKey(String query, List<String> attributes) {
+        String attributeList = (attributes == null) ? "*" : attributes.toString();
+        return attributeList + " where " + ((query == null) ? "" : query);
+    }
+}
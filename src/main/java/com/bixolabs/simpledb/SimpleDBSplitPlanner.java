@@ -0,0 +1,365 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.log4j.Logger;
+
+import com.bixolabs.aws.AWSException;
+import com.bixolabs.aws.SimpleDB;
+
+/**
+ * Figures out the set of input splits (one per non-empty shard) for reading from a table.
+ *
+ * If there's no query then we size each shard using the DomainMetadata call, which is
+ * a single cheap request, versus a (potentially paginated) select count(*) request. Only
+ * filtered reads need to fall back to counting items, and that count can optionally
+ * be estimated by sampling (see SimpleDBSizeEstimator).
+ * 
+ * With a select limit, each shard gets a quota proportional to its size, or for small
+ * limits we skip sizing entirely and use one split that reads all shards concurrently.
+ */
+public class SimpleDBSplitPlanner {
+    private static final Logger LOGGER = Logger.getLogger(SimpleDBSplitPlanner.class);
+
+    private SimpleDB _sdb;
+    private String _domainName;
+    private int _numShards;
+    private String _query;
+    private int _selectLimit;
+    private boolean _estimateSplitSizes;
+    private double _sampleFraction;
+    private SimpleDBSizeEstimator _estimator;
+    private int _combineSplitItems;
+    private int _concurrentReadLimit;
+    private SimpleDBConfiguration _sdbConf;
+
+    public SimpleDBSplitPlanner(SimpleDB sdb, SimpleDBConfiguration sdbConf) {
+        _sdb = sdb;
+        _sdbConf = sdbConf;
+        _domainName = sdbConf.getDomainName();
+        _numShards = sdbConf.getNumShards();
+        _query = sdbConf.getQuery();
+        _selectLimit = sdbConf.getSelectLimit();
+        
+        // Estimating the size of a sample by sampling wouldn't work well, and counting the
+        // items in a sample is cheap anyway.
+        _estimateSplitSizes = sdbConf.getEstimateSplitSizes() && !sdbConf.isSampling();
+        _sampleFraction = sdbConf.getSampleFraction();
+        _combineSplitItems = sdbConf.getCombineSplitItems();
+        _concurrentReadLimit = sdbConf.getConcurrentReadLimit();
+    }
+
+    /**
+     * Return the splits to use for reading the table. Normally this is one split per
+     * (non-empty) shard, with small shards optionally combined, but if we've got a small
+     * select limit then it's a single split that reads from all shards concurrently.
+     */
+    public List<InputSplit> getInputSplits() throws IOException {
+        if ((_selectLimit != SimpleDBUtils.NO_SELECT_LIMIT) && (_selectLimit <= _concurrentReadLimit)) {
+            List<InputSplit> result = new ArrayList<InputSplit>(1);
+            result.add(makeConcurrentSplit());
+            return result;
+        } else {
+            return combineSplits(getSplits());
+        }
+    }
+    
+    public List<SimpleDBInputSplit> getSplits() throws IOException {
+        if (_selectLimit != SimpleDBUtils.NO_SELECT_LIMIT) {
+            return getLimitedSplits();
+        }
+        
+        List<String> shardNames = SimpleDBUtils.getShardNames(_domainName, _numShards);
+        List<SimpleDBInputSplit> splits = new ArrayList<SimpleDBInputSplit>(_numShards);
+
+        // FUTURE KKr - parallelize this, by submitting N tasks, one per shard.
+        for (String shardName : shardNames) {
+            try {
+                SimpleDBInputSplit split;
+                if (hasQuery() && _estimateSplitSizes) {
+                    split = makeSplitFromEstimate(shardName);
+                } else if (hasQuery()) {
+                    split = makeSplitFromCount(shardName, SimpleDBUtils.NO_SELECT_LIMIT);
+                } else {
+                    split = makeSplitFromMetadata(shardName, SimpleDBUtils.NO_SELECT_LIMIT);
+                }
+
+                // If we actually have any matches in this shard, use the split.
+                if (split != null) {
+                    setStartFromCheckpoint(split, shardName);
+                    splits.add(split);
+                }
+            } catch (AWSException e) {
+                throw new IOException("Error getting item count from domain " + shardName, e);
+            } catch (InterruptedException e) {
+                throw new IOException("Interruption while getting item count from domain " + shardName);
+            }
+        }
+
+        return splits;
+    }
+
+    /**
+     * Size each shard as cheaply as we can, then give each one a share of the select limit
+     * that's proportional to its size. This avoids having a small shard wind up with the same
+     * quota as a big shard, and thus the total being less than the limit.
+     */
+    private List<SimpleDBInputSplit> getLimitedSplits() throws IOException {
+        List<String> shardNames = SimpleDBUtils.getShardNames(_domainName, _numShards);
+        long[] shardItems = new long[_numShards];
+        long[] shardLengths = new long[_numShards];
+        
+        for (int i = 0; i < _numShards; i++) {
+            String shardName = shardNames.get(i);
+            
+            try {
+                SimpleDBInputSplit split;
+                if (hasQuery() && _estimateSplitSizes) {
+                    split = makeSplitFromEstimate(shardName);
+                } else if (hasQuery()) {
+                    // We never need to count more than the total limit, from any one shard.
+                    split = makeSplitFromCount(shardName, _selectLimit);
+                } else {
+                    split = makeSplitFromMetadata(shardName, _selectLimit);
+                }
+                
+                if (split != null) {
+                    shardItems[i] = split.getNumItems();
+                    shardLengths[i] = split.getLength();
+                }
+            } catch (AWSException e) {
+                throw new IOException("Error getting item count from domain " + shardName, e);
+            } catch (InterruptedException e) {
+                throw new IOException("Interruption while getting item count from domain " + shardName);
+            }
+        }
+        
+        // Estimates (unlike counts) aren't an upper bound on what a shard can return, so the
+        // quotas need to use up the entire limit, and can't skip any shard.
+        boolean estimated = hasQuery() && _estimateSplitSizes;
+        int[] quotas = allocateQuotas(shardItems, _selectLimit, !estimated);
+        List<SimpleDBInputSplit> splits = new ArrayList<SimpleDBInputSplit>(_numShards);
+        for (int i = 0; i < _numShards; i++) {
+            if (quotas[i] > 0) {
+                // Assume the items we'll get back are of average size.
+                long length = (shardLengths[i] * quotas[i]) / shardItems[i];
+                splits.add(new SimpleDBInputSplit(quotas[i], length, quotas[i], shardNames.get(i)));
+            }
+        }
+        
+        return splits;
+    }
+    
+    /**
+     * Divide up <limit> between the shards, in proportion to their sizes, such that the quotas
+     * sum to the limit (or to the total number of items, if that's less and the sizes are exact).
+     * 
+     * If the sizes are estimates then every shard gets a quota of at least one, as sampling
+     * can't rule out a shard having matching items.
+     * 
+     * @param shardItems (estimated) number of items in each shard
+     * @param limit total number of items to read
+     * @param exact true if <shardItems> are actual counts, versus estimates
+     * @return quota for each shard
+     */
+    protected static int[] allocateQuotas(long[] shardItems, int limit, boolean exact) {
+        int[] result = new int[shardItems.length];
+        
+        long totalItems = 0;
+        for (long numItems : shardItems) {
+            totalItems += numItems;
+        }
+        
+        if (exact && (totalItems <= limit)) {
+            for (int i = 0; i < result.length; i++) {
+                result[i] = (int)shardItems[i];
+            }
+            
+            return result;
+        }
+        
+        int allocated = 0;
+        for (int i = 0; (i < result.length) && (totalItems > 0); i++) {
+            result[i] = (int)(((long)limit * shardItems[i]) / totalItems);
+            allocated += result[i];
+        }
+        
+        // Hand out whatever got lost to rounding, to shards that still have items left. We know
+        // this terminates, since there are more items than the limit (or the sizes are estimates,
+        // so any shard can take more).
+        for (int i = 0; allocated < limit; i = (i + 1) % result.length) {
+            if (!exact || (result[i] < shardItems[i])) {
+                result[i] += 1;
+                allocated += 1;
+            }
+        }
+        
+        if (!exact) {
+            // Take what we need for the minimum quotas from the shards with the biggest ones.
+            for (int i = 0; i < result.length; i++) {
+                if (result[i] == 0) {
+                    int biggest = 0;
+                    for (int j = 1; j < result.length; j++) {
+                        if (result[j] > result[biggest]) {
+                            biggest = j;
+                        }
+                    }
+                    
+                    if (result[biggest] > 1) {
+                        result[biggest] -= 1;
+                        result[i] = 1;
+                    }
+                }
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Make a single split that covers every shard, without sizing any of them. The record
+     * reader selects from all of the shards at once, and stops once it has enough items.
+     */
+    private SimpleDBMultiInputSplit makeConcurrentSplit() {
+        List<SimpleDBInputSplit> shardSplits = new ArrayList<SimpleDBInputSplit>(_numShards);
+        for (String shardName : SimpleDBUtils.getShardNames(_domainName, _numShards)) {
+            shardSplits.add(new SimpleDBInputSplit(0, 0, _selectLimit, shardName));
+        }
+        
+        LOGGER.debug(String.format("Using one concurrent split for select limit of %d", _selectLimit));
+        return new SimpleDBMultiInputSplit(shardSplits, _selectLimit);
+    }
+
+    /**
+     * Group splits for small shards together, so that each combined split has (roughly) no
+     * more than the target number of items. Shards that are already at least as big as the
+     * target keep their own split, as do all shards if combining is disabled.
+     * 
+     * @param splits per-shard splits, from getSplits()
+     * @return list of splits, some of which might be SimpleDBMultiInputSplits
+     */
+    public List<InputSplit> combineSplits(List<SimpleDBInputSplit> splits) {
+        List<InputSplit> result = new ArrayList<InputSplit>(splits.size());
+        if (_combineSplitItems <= 0) {
+            result.addAll(splits);
+            return result;
+        }
+        
+        List<SimpleDBInputSplit> group = new ArrayList<SimpleDBInputSplit>();
+        int groupItems = 0;
+        for (SimpleDBInputSplit split : splits) {
+            int numItems = split.getNumItems();
+            if (numItems >= _combineSplitItems) {
+                result.add(split);
+                continue;
+            }
+            
+            if (!group.isEmpty() && (groupItems + numItems > _combineSplitItems)) {
+                addGroup(result, group);
+                group.clear();
+                groupItems = 0;
+            }
+            
+            group.add(split);
+            groupItems += numItems;
+        }
+        
+        addGroup(result, group);
+        
+        LOGGER.debug(String.format("Combined %d shard splits into %d splits", splits.size(), result.size()));
+        return result;
+    }
+    
+    private static void addGroup(List<InputSplit> result, List<SimpleDBInputSplit> group) {
+        if (group.size() == 1) {
+            result.add(group.get(0));
+        } else if (group.size() > 1) {
+            result.add(new SimpleDBMultiInputSplit(group));
+        }
+    }
+    
+    /**
+     * If there's a checkpoint left over from a previous job, and resuming from one has been
+     * turned on, then start reading the shard from there. We only do this for unlimited reads,
+     * as otherwise the limit for the shard could be different from the last time.
+     */
+    private void setStartFromCheckpoint(SimpleDBInputSplit split, String shardName) throws IOException {
+        String checkpointDir = _sdbConf.getCheckpointDir();
+        if ((checkpointDir == null) || !_sdbConf.isResumeFailedJobs() || (_selectLimit != SimpleDBUtils.NO_SELECT_LIMIT)) {
+            return;
+        }
+        
+        String selectStatement = SimpleDBUtils.makeSelectStatement(shardName, _sdbConf.getSelectAttributes(), _sdbConf.getShardQuery(shardName), SimpleDBUtils.NO_SELECT_LIMIT);
+        SimpleDBCheckpoint checkpoint = SimpleDBCheckpoint.read(_sdbConf.getJobConf(), checkpointDir, shardName, null, selectStatement);
+        if (checkpoint != null) {
+            LOGGER.info(String.format("Split for %s will resume after %d items", shardName, checkpoint.getItemsRead()));
+            split.setStart(checkpoint.getNextToken(), checkpoint.getItemsRead());
+        }
+    }
+    
+    private boolean hasQuery() {
+        return (_query != null) && (_query.length() > 0);
+    }
+
+    private SimpleDBInputSplit makeSplitFromCount(String shardName, int shardLimit) throws IOException, AWSException, InterruptedException {
+        int numItems = SimpleDBUtils.getItemCount(_sdb, shardName, _sdbConf.getShardQuery(shardName), shardLimit);
+        if (numItems == 0) {
+            return null;
+        }
+
+        return new SimpleDBInputSplit(numItems, Math.min(shardLimit, numItems), shardName);
+    }
+
+    private SimpleDBInputSplit makeSplitFromEstimate(String shardName) throws IOException, AWSException, InterruptedException {
+        if (_estimator == null) {
+            _estimator = new SimpleDBSizeEstimator(_sdb);
+        }
+        
+        // We can't skip a shard when the estimate is zero, since sampling could have missed
+        // the (few) matching items. Size the split using the upper end of the estimate's
+        // confidence interval, so that a shard which sampling under-counted doesn't get
+        // combined with other shards into one oversized split.
+        SimpleDBSizeEstimator.Estimate estimate = _estimator.estimate(shardName, _numShards, _query);
+        int numItems = estimate.getNumItems() + estimate.getErrorBound();
+        return new SimpleDBInputSplit(numItems, SimpleDBUtils.NO_SELECT_LIMIT, shardName);
+    }
+
+    private SimpleDBInputSplit makeSplitFromMetadata(String shardName, int shardLimit) throws IOException, AWSException, InterruptedException {
+        Map<String, String> metadata = _sdb.domainMetaData(shardName);
+        long itemCount = SimpleDBUtils.getMetadataValue(metadata, SimpleDB.ITEM_COUNT_METADATA);
+        
+        // SimpleDB only recalculates domain metadata periodically, so a shard that was just
+        // written to can still look empty. Count the items before deciding to skip it.
+        if (itemCount == 0) {
+            LOGGER.debug(String.format("Metadata for %s has no items, so counting them", shardName));
+            return makeSplitFromCount(shardName, shardLimit);
+        }
+
+        long valueBytes = SimpleDBUtils.getMetadataValue(metadata, SimpleDB.ATTRIBUTE_VALUES_SIZE_METADATA);
+        
+        // If we're sampling, we expect to get the sample fraction of the items. Don't skip the
+        // shard just because the expected number rounds down to zero.
+        long numItems = Math.max(1, Math.round(itemCount * _sampleFraction));
+        long length = (valueBytes * numItems) / itemCount;
+        return new SimpleDBInputSplit((int)numItems, length, SimpleDBUtils.NO_SELECT_LIMIT, shardName);
+    }
+}
@@ -46,6 +46,11 @@ import com.bixolabs.aws.SimpleDB;
 /**
  * The SimpleDB class is a {@link Tap} subclass. It is used in conjunction with the {@SimpleDBScheme}
  * to allow for the reading and writing of data to and from Amazon's SimpleDB service.
+ * 
+ * When reading without a query, splits are sized using each shard's domain metadata. SimpleDB
+ * only recalculates that metadata periodically, so a shard whose metadata says it's empty is
+ * counted with a select before being skipped. That way a shard written shortly before it's
+ * read (e.g. by a REPLACE sink earlier in the same flow) isn't missed.
  */
 @SuppressWarnings("serial")
 public class SimpleDBTap extends Tap {
@@ -59,6 +64,24 @@ public class SimpleDBTap extends Tap {
     private int _numShards;
     private SinkMode _sinkMode;
     private int _maxThreads;
+    private int _maxThreadsPerShard = 0;
+    private int _maxRequests = 0;
+    private int _readStreams = 1;
+    private String _checkpointDir = null;
+    private boolean _resumeFailedAttempts = false;
+    private boolean _resumeFailedJobs = false;
+    private String _snapshotDir = null;
+    private String _deadLetterDir = null;
+    private String _journalDir = null;
+    private int _combineSplitItems = 0;
+    private int _concurrentReadLimit = 0;
+    private long _writeLinger = 0;
+    private boolean _skipUnchangedItems = false;
+    private boolean _insertOnly = false;
+    private boolean _partitionByShard = false;
+    private int _partitionKeyPosition = 0;
+    private int _writeQueueBatches = 0;
+    private long _writeQueueBytes = SimpleDBConfiguration.DEFAULT_WRITE_QUEUE_BYTES;
     private String _sdbHost = SimpleDB.DEFAULT_HOST;
     private long _closeTimeout = SimpleDBConfiguration.DEFAULT_CLOSE_TIMEOUT;
     
@@ -80,6 +103,10 @@ public class SimpleDBTap extends Tap {
         _maxThreads = numShards;
     }
 
+    public int getNumShards() {
+        return _numShards;
+    }
+
     /**
      * Set the max number of threads per record writer.
      * 
@@ -99,6 +126,314 @@ public class SimpleDBTap extends Tap {
         return _maxThreads;
     }
     
+    /**
+     * Set the max number of simultaneous write requests to any one shard (domain).
+     * 
+     * SimpleDB throttles requests per domain, so a burst of items that all hash to the same
+     * shard can trigger 503 errors if every thread is writing to that one domain. Pending
+     * batches for different shards are handled round-robin, so the other shards still
+     * get written while a busy shard is at its limit.
+     * 
+     * By default there's no per-shard cap, so all of the threads can write to one shard.
+     * 
+     * @param maxThreadsPerShard maximum number of simultaneous HTTP requests per shard, per record writer,
+     *        or 0 for no cap
+     */
+    public void setMaxThreadsPerShard(int maxThreadsPerShard) {
+        _maxThreadsPerShard = maxThreadsPerShard;
+    }
+    
+    public int getMaxThreadsPerShard() {
+        return _maxThreadsPerShard;
+    }
+    
+    /**
+     * Set the max number of simultaneous HTTP requests to SimpleDB, per record reader or writer,
+     * independent of the number of threads.
+     * 
+     * Threads spend time on things besides requests (e.g. waiting for a retry, or checking for
+     * unchanged items), so this lets the thread count be set higher than the number of requests
+     * that SimpleDB can handle without returning 503 errors.
+     * 
+     * @param maxRequests max number of simultaneous requests, or 0 to only limit by thread count
+     */
+    public void setMaxRequests(int maxRequests) {
+        _maxRequests = maxRequests;
+    }
+    
+    public int getMaxRequests() {
+        return _maxRequests;
+    }
+    
+    /**
+     * Set the max number of concurrent select streams per record reader.
+     * 
+     * When this is more than one, a record reader for a big shard will split the shard into
+     * sub-ranges (using the item hash) and read from each of them in parallel. This lets a
+     * single map task use more of the available SimpleDB throughput.
+     * 
+     * @param readStreams maximum number of simultaneous select requests, per record reader
+     */
+    public void setReadStreams(int readStreams) {
+        _readStreams = readStreams;
+    }
+    
+    public int getReadStreams() {
+        return _readStreams;
+    }
+    
+    /**
+     * Set the directory (typically in HDFS) used to save read checkpoints.
+     * 
+     * When this is set, each record reader periodically saves the select next token and
+     * item count for its shard. Checkpoints are only used for resuming when that's been
+     * turned on via setResumeFailedJobs or setResumeFailedAttempts, and only by a read with
+     * the same query and scheme fields. Delete the directory to start reading from scratch.
+     * 
+     * Note that items read before the checkpoint won't be returned again. A checkpoint only
+     * tracks what was read, not what was done with it, so this is only safe when the results
+     * of processing each item are durable by the time the next page of items is requested.
+     * That's NOT the case for a flow that writes to a SimpleDBTap, as the writer buffers and
+     * queues items before sending them, and anything still buffered by a failed task is lost.
+     * 
+     * @param checkpointDir path to checkpoint directory, or null to disable checkpointing
+     */
+    public void setCheckpointDir(String checkpointDir) {
+        _checkpointDir = checkpointDir;
+    }
+    
+    public String getCheckpointDir() {
+        return _checkpointDir;
+    }
+    
+    /**
+     * Set whether a retried task should resume reading its shard from the checkpoint left by
+     * a failed or killed attempt at the same task. This has the same caveats as resuming from
+     * a previous job (see setCheckpointDir), so it's off by default. Attempts that might still
+     * be running (e.g. during speculative execution) are never resumed from.
+     * 
+     * @param resumeFailedAttempts true to resume retried tasks from checkpoints
+     */
+    public void setResumeFailedAttempts(boolean resumeFailedAttempts) {
+        _resumeFailedAttempts = resumeFailedAttempts;
+    }
+    
+    public boolean isResumeFailedAttempts() {
+        return _resumeFailedAttempts;
+    }
+    
+    /**
+     * Set whether a follow-up job should resume reading each shard from the checkpoint left
+     * by a job that failed part-way through it (see setCheckpointDir). The items that the
+     * failed job read are skipped, even though whatever it did with them was probably thrown
+     * away along with the rest of its output, so this is off by default.
+     * 
+     * @param resumeFailedJobs true to resume follow-up jobs from checkpoints
+     */
+    public void setResumeFailedJobs(boolean resumeFailedJobs) {
+        _resumeFailedJobs = resumeFailedJobs;
+    }
+    
+    public boolean isResumeFailedJobs() {
+        return _resumeFailedJobs;
+    }
+    
+    /**
+     * Set the directory (local or HDFS) used to save snapshots of shards.
+     * 
+     * When this is set, each record reader doing an unlimited read of a shard saves the items
+     * it reads to a snapshot file. Later reads of the shard using the same scheme fields and
+     * query are served from the snapshot, as long as the shard's Timestamp metadata hasn't
+     * changed. This saves on BoxUsage when the same (unchanged) table is read repeatedly.
+     * 
+     * @param snapshotDir path to snapshot directory, or null to disable snapshots
+     */
+    public void setSnapshotDir(String snapshotDir) {
+        _snapshotDir = snapshotDir;
+    }
+    
+    public String getSnapshotDir() {
+        return _snapshotDir;
+    }
+    
+    /**
+     * Set the directory (local or HDFS) used to save items that SimpleDB rejects.
+     * 
+     * A batch that fails because of a bad item (e.g. a value that's too long) is split up and
+     * re-sent until the bad item is isolated, so the rest of the batch still gets written. When
+     * this is set, bad items are saved to a file per task attempt in this directory, and the
+     * task keeps going. Otherwise the task fails (after writing the good items).
+     * 
+     * @param deadLetterDir path to dead letter directory, or null to fail on bad items
+     */
+    public void setDeadLetterDir(String deadLetterDir) {
+        _deadLetterDir = deadLetterDir;
+    }
+    
+    public String getDeadLetterDir() {
+        return _deadLetterDir;
+    }
+    
+    /**
+     * Set the directory used for write journals.
+     * 
+     * When this is set, each record writer keeps a journal of the batches it has queued up,
+     * and which of those SimpleDB has acknowledged. If the task fails late (e.g. while
+     * waiting for the last batches to be written), the next attempt of the task re-sends
+     * the un-acknowledged batches from the journal. The journal is deleted when a writer
+     * closes normally. SimpleDBWriteJournal.main() can also re-send batches from a journal.
+     * 
+     * Each task attempt writes its own journal, and only the journals of attempts that the
+     * job tracker reports as failed or killed get re-sent, so this is safe to use with
+     * speculative execution. A local path only helps when the task is re-run on the same
+     * server, so this is typically an HDFS path.
+     * 
+     * @param journalDir path to journal directory, or null to disable journaling
+     */
+    public void setJournalDir(String journalDir) {
+        _journalDir = journalDir;
+    }
+    
+    public String getJournalDir() {
+        return _journalDir;
+    }
+    
+    /**
+     * Set the target number of items for a combined input split.
+     * 
+     * Shards with fewer items than this get grouped together into a single split (and thus a
+     * single map task), so that task startup time doesn't dominate when there are lots of
+     * small shards.
+     * 
+     * @param combineSplitItems target items per combined split, or 0 to use one split per shard
+     */
+    public void setCombineSplitItems(int combineSplitItems) {
+        _combineSplitItems = combineSplitItems;
+    }
+    
+    public int getCombineSplitItems() {
+        return _combineSplitItems;
+    }
+    
+    /**
+     * Set the largest select limit that gets read using a single split.
+     * 
+     * If the scheme's select limit is no bigger than this, then we skip sizing each shard
+     * and instead use one task that selects from all of the shards concurrently, stopping
+     * once the limit has been reached.
+     * 
+     * @param concurrentReadLimit max select limit for concurrent reads, or 0 to disable
+     */
+    public void setConcurrentReadLimit(int concurrentReadLimit) {
+        _concurrentReadLimit = concurrentReadLimit;
+    }
+    
+    public int getConcurrentReadLimit() {
+        return _concurrentReadLimit;
+    }
+    
+    /**
+     * Set how long items being written are held in a buffer before being batched up, so that
+     * repeated writes to the same item get merged into a single put. The last write wins for
+     * each attribute. Note that the buffer is only checked when items are written (and when
+     * the writer is closed).
+     * 
+     * @param writeLinger time in milliseconds, or 0 to batch items immediately
+     */
+    public void setWriteLinger(long writeLinger) {
+        _writeLinger = writeLinger;
+    }
+    
+    public long getWriteLinger() {
+        return _writeLinger;
+    }
+    
+    /**
+     * Only write items that have changed. Each item gets a hidden content hash attribute, and
+     * before a batch is written, the hashes currently stored for those items are loaded (using
+     * select requests) so that unchanged items can be skipped. This saves a lot of put requests
+     * when rewriting a table where only a few items have changed.
+     * 
+     * Note that items written without this option won't have a content hash, so they'll
+     * always look like they've changed.
+     * 
+     * @param skipUnchangedItems true to skip writing unchanged items
+     */
+    public void setSkipUnchangedItems(boolean skipUnchangedItems) {
+        _skipUnchangedItems = skipUnchangedItems;
+    }
+    
+    public boolean isSkipUnchangedItems() {
+        return _skipUnchangedItems;
+    }
+    
+    /**
+     * Write items without any Replace parameters, which makes for smaller requests that
+     * SimpleDB handles faster. This is off by default, for every sink mode.
+     * 
+     * Only use this when none of the items already exist (e.g. the sink mode is REPLACE,
+     * so the domains are new and empty) and no item is written more than once. Repeated
+     * writes of an item are only merged while they're waiting in the same batch, so an item
+     * name that shows up in two batches, or in the output of two tasks, winds up with
+     * multiple values for its attributes.
+     * 
+     * @param insertOnly true to write items without Replace parameters
+     */
+    public void setInsertOnly(boolean insertOnly) {
+        _insertOnly = insertOnly;
+    }
+    
+    public boolean isInsertOnly() {
+        return _insertOnly;
+    }
+    
+    /**
+     * Use SimpleDBShardPartitioner for the reduce phase of the step that writes to this tap,
+     * with one reducer per shard, so that each reducer only writes to its own shards. Other
+     * steps in the flow aren't affected.
+     * 
+     * The item name has to be in the grouping key of the step, at the partition key position
+     * (by default, the first grouping field).
+     * 
+     * @param partitionByShard true to partition the sink step's reduce phase by shard
+     */
+    public void setPartitionByShard(boolean partitionByShard) {
+        _partitionByShard = partitionByShard;
+    }
+    
+    public boolean isPartitionByShard() {
+        return _partitionByShard;
+    }
+    
+    public void setPartitionKeyPosition(int partitionKeyPosition) {
+        _partitionKeyPosition = partitionKeyPosition;
+    }
+    
+    public int getPartitionKeyPosition() {
+        return _partitionKeyPosition;
+    }
+    
+    /**
+     * Set the limits for the queue of batches waiting to be written. Writing a tuple only
+     * blocks when the queue is full, so a bigger queue lets tuple generation overlap more
+     * with SimpleDB requests, at the cost of more memory.
+     * 
+     * @param writeQueueBatches max number of pending batches, or 0 for twice the max threads
+     * @param writeQueueBytes max (approximate) memory used by pending batches
+     */
+    public void setWriteQueueLimits(int writeQueueBatches, long writeQueueBytes) {
+        _writeQueueBatches = writeQueueBatches;
+        _writeQueueBytes = writeQueueBytes;
+    }
+    
+    public int getWriteQueueBatches() {
+        return _writeQueueBatches;
+    }
+    
+    public long getWriteQueueBytes() {
+        return _writeQueueBytes;
+    }
+    
     public void setCloseTimeout(long closeTimeout) {
         _closeTimeout = closeTimeout;
     }
@@ -116,6 +451,32 @@ public class SimpleDBTap extends Tap {
         return _sdbHost;
     }
     
+    /**
+     * Return the number of items in the table that match <query>, using parallel
+     * count(*) requests against each shard.
+     * 
+     * @param query expression to use with selection, or "" to count all items.
+     * @return count of matching items
+     * @throws IOException
+     */
+    public long countItems(String query) throws IOException {
+        return getAggregator().count(query);
+    }
+    
+    /**
+     * Return the number of items in the table that match <query>, for each of <values>
+     * of the attribute <attributeName>.
+     * 
+     * @param attributeName name of attribute to group by
+     * @param values values of the attribute that we want counts for
+     * @param query additional expression that items must match, or "".
+     * @return map from value to count
+     * @throws IOException
+     */
+    public Map<String, Long> countItemsByValue(String attributeName, List<String> values, String query) throws IOException {
+        return getAggregator().countByValue(attributeName, values, query);
+    }
+    
     public Path getPath() {
         return new Path(getURI().toString());
     }
@@ -229,6 +590,10 @@ public class SimpleDBTap extends Tap {
         
         makeDirs(conf);
         setConf(conf);
+        
+        if (_partitionByShard) {
+            SimpleDBShardPartitioner.setConf(conf, _numShards, _partitionKeyPosition, _numShards);
+        }
 
         super.sinkInit(conf);
     }
@@ -254,6 +619,11 @@ public class SimpleDBTap extends Tap {
         return _sdb;
     }
 
+    private SimpleDBAggregator getAggregator() {
+        // The tap's SimpleDB only has connections for one request per shard at a time.
+        return new SimpleDBAggregator(getSimpleDB(), _baseDomainName, _numShards);
+    }
+    
     private void setConf(JobConf conf) {
         SimpleDBConfiguration sdbConf = new SimpleDBConfiguration(conf);
         sdbConf.setAccessKeyId(_accessKeyId);
@@ -261,6 +631,37 @@ public class SimpleDBTap extends Tap {
         sdbConf.setDomainName(_baseDomainName);
         sdbConf.setNumShards(_numShards);
         sdbConf.setMaxThreads(_maxThreads);
+        sdbConf.setMaxThreadsPerShard(_maxThreadsPerShard);
+        sdbConf.setMaxRequests(_maxRequests);
+        sdbConf.setReadStreams(_readStreams);
+        sdbConf.setCombineSplitItems(_combineSplitItems);
+        sdbConf.setConcurrentReadLimit(_concurrentReadLimit);
+        sdbConf.setWriteLinger(_writeLinger);
+        sdbConf.setSkipUnchangedItems(_skipUnchangedItems);
+        sdbConf.setInsertOnly(isInsertOnly());
+        sdbConf.setWriteQueueBytes(_writeQueueBytes);
+        
+        if (_writeQueueBatches > 0) {
+            sdbConf.setWriteQueueBatches(_writeQueueBatches);
+        }
+        
+        if (_checkpointDir != null) {
+            sdbConf.setCheckpointDir(_checkpointDir);
+            sdbConf.setResumeFailedAttempts(_resumeFailedAttempts);
+            sdbConf.setResumeFailedJobs(_resumeFailedJobs);
+        }
+        
+        if (_snapshotDir != null) {
+            sdbConf.setSnapshotDir(_snapshotDir);
+        }
+        
+        if (_deadLetterDir != null) {
+            sdbConf.setDeadLetterDir(_deadLetterDir);
+        }
+        
+        if (_journalDir != null) {
+            sdbConf.setJournalDir(_journalDir);
+        }
         sdbConf.setSdbHost(_sdbHost);
         sdbConf.setCloseTimeout(_closeTimeout);
     }
@@ -17,9 +17,15 @@ package com.bixolabs.simpledb;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,9 +36,18 @@ public class SimpleDBUtils {
 
     public static final int NO_SELECT_LIMIT = -1;
     
+    public static final double NO_SAMPLING = 1.0;
+    
+    // Number of hash ranges used per shard when sampling. Each range can turn into two pairs of
+    // comparisons, and SimpleDB allows at most 20 per expression, so this leaves some for the query.
+    private static final int SAMPLE_RANGES = 6;
+    
     // Name of attribute used to store item name hash, for slicing a shard into chunks.
     public static final String ITEM_HASH_ATTR_NAME = SimpleDBUtils.class.getSimpleName() + "-itemHash";
     
+    // Name of attribute used to store a hash of the item's other attributes, for skipping unchanged items.
+    public static final String CONTENT_HASH_ATTR_NAME = SimpleDBUtils.class.getSimpleName() + "-contentHash";
+    
     private static final long MIN_HASH = (long)Integer.MIN_VALUE;
     private static final long HASH_RANGE = (long)Integer.MAX_VALUE - MIN_HASH;
     private static final int HASH_DIGITS = Long.toString(HASH_RANGE).length();
@@ -43,6 +58,10 @@ public class SimpleDBUtils {
     private static final String DOMAIN_NAME_FORMAT = "%s-%d-of-%d";
     private static final Pattern DOMAIN_NAME_PATTERN = Pattern.compile("(.+)-(\\d+)-of-(\\d+)");
     
+    // Max number of unique attribute names in one select expression.
+    private static final int MAX_SELECT_ATTRIBUTES = 20;
+    private static final Pattern QUOTED_ATTRIBUTE_PATTERN = Pattern.compile("`((?:[^`]|``)+)`");
+    
     public static List<String> getShardNames(String baseDomainName, int numShards) {
         List<String> result = new ArrayList<String>(numShards);
         for (int i = 1; i <= numShards; i++) {
@@ -143,26 +162,357 @@ public class SimpleDBUtils {
     }
     
     public static int getShardIndex(String itemValue, int numShards) {
+        return getShardIndex(getHash(itemValue), numShards);
+    }
+    
+    /**
+     * @param hash item hash, from getHash()
+     * @param numShards
+     * @return index of the shard for the item
+     */
+    public static int getShardIndex(int hash, int numShards) {
         if (numShards == 1) {
             return 0;
         }
 
         long shardRange = HASH_RANGE/numShards;
-        long hash = joaat_hash(itemValue);
-        long absoluteHash = hash - MIN_HASH;
+        long absoluteHash = (long)hash - MIN_HASH;
         return (int)(absoluteHash/shardRange);
     }
     
     public static String getItemHash(String itemName) {
-        int hash = joaat_hash(itemName);
+        return formatItemHash(getHash(itemName));
+    }
+    
+    /**
+     * Return the item hash attribute value for <hash>. This is the same as formatting with
+     * NEGATIVE_HASH_FORMAT or POSITIVE_HASH_FORMAT, but without the overhead of String.format,
+     * since it gets called for every item that's written.
+     * 
+     * @param hash item hash, from getHash()
+     * @return zero-padded hash string, with a leading 0 for negative and 1 for positive hashes
+     */
+    public static String formatItemHash(int hash) {
+        if (hash == Integer.MIN_VALUE) {
+            // Math.abs() doesn't work for this one value, so keep it the same as it's always been.
+            return String.format(NEGATIVE_HASH_FORMAT, hash);
+        }
         
-        if (hash < 0) {
-            return String.format(NEGATIVE_HASH_FORMAT, Math.abs(hash));
-        } else {
-            return String.format(POSITIVE_HASH_FORMAT, hash);
+        char[] result = new char[HASH_DIGITS + 1];
+        result[0] = (hash < 0) ? '0' : '1';
+        
+        int value = Math.abs(hash);
+        for (int i = HASH_DIGITS; i > 0; i--) {
+            result[i] = (char)('0' + (value % 10));
+            value /= 10;
+        }
+        
+        return new String(result);
+    }
+    
+    /**
+     * Return the hash of <itemName>, which is used for both the item hash attribute and to
+     * pick the item's shard. This is a Jenkins one-at-a-time hash of the UTF-8 bytes, with
+     * the encoding done on the fly versus making a copy via String.getBytes().
+     * 
+     * @param itemName
+     * @return hash value
+     */
+    public static int getHash(String itemName) {
+        int hash = 0;
+        int len = itemName.length();
+        
+        for (int i = 0; i < len; i++) {
+            char c = itemName.charAt(i);
+            if (c < 0x80) {
+                hash = joaat_add(hash, c);
+            } else if (c < 0x800) {
+                hash = joaat_add(hash, 0xC0 | (c >> 6));
+                hash = joaat_add(hash, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && (i + 1 < len) && Character.isLowSurrogate(itemName.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, itemName.charAt(i + 1));
+                hash = joaat_add(hash, 0xF0 | (codePoint >> 18));
+                hash = joaat_add(hash, 0x80 | ((codePoint >> 12) & 0x3F));
+                hash = joaat_add(hash, 0x80 | ((codePoint >> 6) & 0x3F));
+                hash = joaat_add(hash, 0x80 | (codePoint & 0x3F));
+                i += 1;
+            } else if ((c >= Character.MIN_SURROGATE) && (c <= Character.MAX_SURROGATE)) {
+                // Unpaired surrogates get encoded as '?', same as String.getBytes().
+                hash = joaat_add(hash, '?');
+            } else {
+                hash = joaat_add(hash, 0xE0 | (c >> 12));
+                hash = joaat_add(hash, 0x80 | ((c >> 6) & 0x3F));
+                hash = joaat_add(hash, 0x80 | (c & 0x3F));
+            }
         }
+        
+        return joaat_finish(hash);
     }
 
+    /**
+     * Return an MD5 hash (as hex) of the attribute names and values, ignoring our special
+     * item hash and content hash attributes.
+     * 
+     * @param attributes map from attribute name to value
+     * @return hash string
+     */
+    public static String getContentHash(Map<String, String> attributes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (String attrName : new TreeSet<String>(attributes.keySet())) {
+                if (attrName.equals(ITEM_HASH_ATTR_NAME) || attrName.equals(CONTENT_HASH_ATTR_NAME)) {
+                    continue;
+                }
+                
+                digest.update(attrName.getBytes("UTF-8"));
+                digest.update((byte)0);
+                digest.update(attributes.get(attrName).getBytes("UTF-8"));
+                digest.update((byte)0);
+            }
+            
+            StringBuilder result = new StringBuilder(32);
+            for (byte b : digest.digest()) {
+                result.append(Character.forDigit((b >> 4) & 0x0F, 16));
+                result.append(Character.forDigit(b & 0x0F, 16));
+            }
+            
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Impossible error", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Impossible error", e);
+        }
+    }
+    
+    /**
+     * Return the range of (signed) hash values for items that are stored in a shard.
+     * 
+     * @param shardIndex index of shard (0..numShards-1)
+     * @param numShards total number of shards
+     * @return two element array, with the starting hash (inclusive) and ending hash (exclusive)
+     */
+    public static long[] getShardHashRange(int shardIndex, int numShards) {
+        long shardRange = HASH_RANGE/numShards;
+        long startHash = MIN_HASH + (shardIndex * shardRange);
+        long endHash = (shardIndex == numShards - 1) ? (long)Integer.MAX_VALUE + 1 : startHash + shardRange;
+        return new long[] { startHash, endHash };
+    }
+    
+    /**
+     * Return the ranges of item hash attribute values that correspond to the signed
+     * hash values from <startHash> (inclusive) to <endHash> (exclusive). Negative hash
+     * values are stored using the absolute value, so a range that spans zero turns into
+     * two ranges.
+     * 
+     * @param startHash first hash value in range
+     * @param endHash hash value just past the end of the range
+     * @return list of min/max (both inclusive) item hash attribute values
+     */
+    public static List<String[]> getItemHashRanges(long startHash, long endHash) {
+        List<String[]> result = new ArrayList<String[]>(2);
+        
+        if (startHash < 0) {
+            long lastNegative = Math.min(endHash, 0) - 1;
+            result.add(new String[] { String.format(NEGATIVE_HASH_FORMAT, -lastNegative), String.format(NEGATIVE_HASH_FORMAT, -startHash) });
+        }
+        
+        if (endHash > 0) {
+            long firstPositive = Math.max(startHash, 0);
+            result.add(new String[] { String.format(POSITIVE_HASH_FORMAT, firstPositive), String.format(POSITIVE_HASH_FORMAT, endHash - 1) });
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Return a select expression that matches items with a hash value from <startHash>
+     * (inclusive) to <endHash> (exclusive).
+     * 
+     * @param startHash first hash value in range
+     * @param endHash hash value just past the end of the range
+     * @return expression suitable for use in a where clause
+     */
+    public static String makeItemHashExpression(long startHash, long endHash) {
+        StringBuilder result = new StringBuilder();
+        
+        for (String[] range : getItemHashRanges(startHash, endHash)) {
+            if (result.length() > 0) {
+                result.append(" or ");
+            }
+            
+            result.append(String.format("(`%s` >= '%s' and `%s` <= '%s')", ITEM_HASH_ATTR_NAME, range[0], ITEM_HASH_ATTR_NAME, range[1]));
+        }
+        
+        return result.toString();
+    }
+
+    /**
+     * Return a select expression that matches a random sample of about <fraction> of the items in
+     * <shardName>. The shard's hash range is divided into narrow slices, and a few of these are
+     * picked at random, so selecting the sample only touches that fraction of the shard.
+     * 
+     * The same shard name, fraction and seed always generate the same expression.
+     * 
+     * @param shardName name of shard (domain)
+     * @param numShards total number of shards in the table
+     * @param fraction fraction of items to sample (0..1)
+     * @param seed seed for picking which slices to use
+     * @return expression suitable for use in a where clause
+     */
+    public static String makeSampleExpression(String shardName, int numShards, double fraction, long seed) {
+        long[] shardRange = getShardHashRange(getShardNumber(shardName) - 1, numShards);
+        long rangeSize = shardRange[1] - shardRange[0];
+        long numSlices = Math.min(rangeSize, Math.max(SAMPLE_RANGES, Math.round(SAMPLE_RANGES / fraction)));
+        long sliceSize = rangeSize / numSlices;
+        
+        Random rand = new Random(seed ^ shardName.hashCode());
+        TreeSet<Long> slices = new TreeSet<Long>();
+        while (slices.size() < SAMPLE_RANGES) {
+            slices.add((long)(rand.nextDouble() * numSlices));
+        }
+        
+        // Merge adjacent slices, to keep the expression as short as possible.
+        StringBuilder result = new StringBuilder();
+        Long startSlice = null;
+        Long endSlice = null;
+        for (Long slice : slices) {
+            if ((endSlice != null) && (slice == endSlice + 1)) {
+                endSlice = slice;
+                continue;
+            }
+            
+            appendSampleRange(result, shardRange, numSlices, sliceSize, startSlice, endSlice);
+            startSlice = slice;
+            endSlice = slice;
+        }
+        
+        appendSampleRange(result, shardRange, numSlices, sliceSize, startSlice, endSlice);
+        return result.toString();
+    }
+    
+    private static void appendSampleRange(StringBuilder result, long[] shardRange, long numSlices, long sliceSize, Long startSlice, Long endSlice) {
+        if (startSlice == null) {
+            return;
+        }
+        
+        if (result.length() > 0) {
+            result.append(" or ");
+        }
+        
+        long startHash = shardRange[0] + (startSlice * sliceSize);
+        long endHash = (endSlice == numSlices - 1) ? shardRange[1] : shardRange[0] + ((endSlice + 1) * sliceSize);
+        result.append(makeItemHashExpression(startHash, endHash));
+    }
+    
+    /**
+     * Return a select statement for all attributes of items in <domainName>, optionally
+     * selected with <expression> and limited to <limit> items.
+     * 
+     * @param domainName
+     * @param expression expression to use with selection, or ""/null.
+     * @param limit limit to result, or NO_SELECT_LIMIT
+     * @return select statement
+     */
+    public static String makeSelectStatement(String domainName, String expression, int limit) {
+        return makeSelectStatement(domainName, null, expression, limit);
+    }
+    
+    /**
+     * Return a select statement for <attributes> of items in <domainName>, optionally
+     * selected with <expression> and limited to <limit> items. The item name is always
+     * returned, so it doesn't need to be in the attribute list.
+     * 
+     * @param domainName
+     * @param attributes names of attributes to return, or null for all attributes.
+     * @param expression expression to use with selection, or ""/null.
+     * @param limit limit to result, or NO_SELECT_LIMIT
+     * @return select statement
+     */
+    public static String makeSelectStatement(String domainName, List<String> attributes, String expression, int limit) {
+        // SimpleDB limits the number of unique attributes in a select expression, so if we'd
+        // go over that then we have to fall back to selecting all attributes.
+        if ((attributes != null) && (countUniqueAttributes(attributes, expression) > MAX_SELECT_ATTRIBUTES)) {
+            attributes = null;
+        }
+        
+        String selectStr = String.format("select %s from `%s`", makeOutputList(attributes), domainName);
+        if ((expression != null) && (expression.length() > 0)) {
+            selectStr += String.format(" where %s", expression);
+        }
+        
+        if (limit != NO_SELECT_LIMIT) {
+            selectStr += String.format(" limit %d", limit);
+        }
+        
+        return selectStr;
+    }
+    
+    /**
+     * Return <attributeName> quoted for use in a select expression.
+     * 
+     * @param attributeName
+     * @return name wrapped in backticks, with any backticks in the name escaped.
+     */
+    public static String quoteAttributeName(String attributeName) {
+        return "`" + attributeName.replace("`", "``") + "`";
+    }
+    
+    private static int countUniqueAttributes(List<String> attributes, String expression) {
+        Set<String> uniqueAttributes = new HashSet<String>(attributes);
+        
+        // We can only find the quoted attribute names in the expression.
+        if (expression != null) {
+            Matcher m = QUOTED_ATTRIBUTE_PATTERN.matcher(expression);
+            while (m.find()) {
+                uniqueAttributes.add(m.group(1).replace("``", "`"));
+            }
+        }
+        
+        return uniqueAttributes.size();
+    }
+    
+    private static String makeOutputList(List<String> attributes) {
+        if (attributes == null) {
+            return "*";
+        } else if (attributes.isEmpty()) {
+            return "itemName()";
+        }
+        
+        StringBuilder result = new StringBuilder();
+        for (String attribute : attributes) {
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            
+            result.append(quoteAttributeName(attribute));
+        }
+        
+        return result.toString();
+    }
+    
+    /**
+     * Return <expression> combined (and'd) with <otherExpression>, either of which can be
+     * empty or null.
+     * 
+     * @param expression
+     * @param otherExpression
+     * @return combined expression, or "" if both are empty
+     */
+    public static String combineExpressions(String expression, String otherExpression) {
+        boolean hasExpression = (expression != null) && (expression.length() > 0);
+        boolean hasOtherExpression = (otherExpression != null) && (otherExpression.length() > 0);
+        
+        if (hasExpression && hasOtherExpression) {
+            return String.format("(%s) and (%s)", expression, otherExpression);
+        } else if (hasExpression) {
+            return expression;
+        } else if (hasOtherExpression) {
+            return otherExpression;
+        } else {
+            return "";
+        }
+    }
+    
     /**
      * Return the total count for items in <domainName>, optionally selected with
      * <expression> and limited to <limit> items.
@@ -182,8 +532,8 @@ public class SimpleDBUtils {
         int result = 0;
         String nextToken = null;
         
-        // FUTURE KKr - if there's no query, then just make a metadata call as that's
-        // going to be faster than the select.
+        // Note that SimpleDBSplitPlanner uses getMetadataValue() instead of this method, when
+        // there's no query, as a single metadata call is much faster than the select.
         
         String selectStr = String.format("select count(*) from `%s`", domainName);
         if ((expression != null) && (expression.length() > 0)) {
@@ -230,6 +580,26 @@ public class SimpleDBUtils {
         return result;
     }
     
+    /**
+     * Return the numeric value for <key> from the results of a domainMetaData call.
+     * 
+     * @param metadata map returned by SimpleDB.domainMetaData()
+     * @param key name of metadata value (e.g. SimpleDB.ITEM_COUNT_METADATA)
+     * @return value
+     */
+    public static long getMetadataValue(Map<String, String> metadata, String key) {
+        String value = metadata.get(key);
+        if (value == null) {
+            throw new RuntimeException("SimpleDB metadata didn't return " + key);
+        }
+        
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("SimpleDB metadata returned invalid value for " + key + ": " + value);
+        }
+    }
+    
     public static void deleteTable(SimpleDB sdb, String table) throws IOException, AWSException, InterruptedException {
         List<String> domains = sdb.listDomains();
         for (String domain : domains) {
@@ -243,27 +613,27 @@ public class SimpleDBUtils {
         }
     }
     
-    private static int joaat_hash(String key) {
-        try {
-            return joaat_hash(key.getBytes("UTF-8"));
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("Impossible error", e);
-        }
-    }
-
-    private static int joaat_hash(byte[] key) {
+    protected static int joaat_hash(byte[] key) {
         int hash = 0;
         
         for (byte b : key) {
-            hash += (b & 0xFF);
-            hash += (hash << 10);
-            hash ^= (hash >>> 6);
+            hash = joaat_add(hash, b & 0xFF);
         }
         
+        return joaat_finish(hash);
+    }
+    
+    private static int joaat_add(int hash, int b) {
+        hash += b;
+        hash += (hash << 10);
+        hash ^= (hash >>> 6);
+        return hash;
+    }
+    
+    private static int joaat_finish(int hash) {
         hash += (hash << 3);
         hash ^= (hash >>> 11);
         hash += (hash << 15);
-        
         return hash;
     }
 
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds on to items being written for a short (linger) time, so that multiple writes to the
+ * same item can be merged into a single put. When attributes are merged, the last write wins.
+ * 
+ * Items are released in the order they were first written, once they're older than the
+ * linger time, or when the buffer has too many items.
+ */
+public class SimpleDBWriteBuffer {
+
+    public static final int DEFAULT_MAX_ITEMS = 1000;
+    
+    private static class BufferedItem {
+        private long _firstWriteTime;
+        private Map<String, String> _attributes;
+        
+        public BufferedItem(long firstWriteTime, Map<String, String> attributes) {
+            _firstWriteTime = firstWriteTime;
+            _attributes = attributes;
+        }
+    }
+    
+    private long _lingerTime;
+    private int _maxItems;
+    private LinkedHashMap<String, BufferedItem> _items;
+    
+    public SimpleDBWriteBuffer(long lingerTime) {
+        this(lingerTime, DEFAULT_MAX_ITEMS);
+    }
+    
+    public SimpleDBWriteBuffer(long lingerTime, int maxItems) {
+        _lingerTime = lingerTime;
+        _maxItems = maxItems;
+        _items = new LinkedHashMap<String, BufferedItem>();
+    }
+    
+    /**
+     * Add <attributes> for <itemName>, merging with any attributes that are already buffered
+     * for the same item.
+     * 
+     * @param itemName
+     * @param attributes
+     * @param curTime current time, in milliseconds
+     */
+    public void add(String itemName, Map<String, String> attributes, long curTime) {
+        BufferedItem item = _items.get(itemName);
+        if (item == null) {
+            _items.put(itemName, new BufferedItem(curTime, attributes));
+        } else {
+            // Copy, since we don't own the original map.
+            Map<String, String> merged = new HashMap<String, String>(item._attributes);
+            merged.putAll(attributes);
+            item._attributes = merged;
+        }
+    }
+    
+    /**
+     * Remove the items that have been in the buffer longer than the linger time, plus the
+     * oldest items if the buffer is too full.
+     * 
+     * @param curTime current time, in milliseconds
+     * @return map from item name to attributes, in order of first write
+     */
+    public Map<String, Map<String, String>> removeExpired(long curTime) {
+        Map<String, Map<String, String>> result = new LinkedHashMap<String, Map<String, String>>();
+        
+        Iterator<Map.Entry<String, BufferedItem>> iter = _items.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, BufferedItem> entry = iter.next();
+            BufferedItem item = entry.getValue();
+            if ((_items.size() <= _maxItems) && (curTime - item._firstWriteTime < _lingerTime)) {
+                break;
+            }
+            
+            result.put(entry.getKey(), item._attributes);
+            iter.remove();
+        }
+        
+        return result;
+    }
+    
+    /**
+     * @return all buffered items, in order of first write
+     */
+    public Map<String, Map<String, String>> removeAll() {
+        Map<String, Map<String, String>> result = new LinkedHashMap<String, Map<String, String>>(_items.size() * 2);
+        for (Map.Entry<String, BufferedItem> entry : _items.entrySet()) {
+            result.put(entry.getKey(), entry.getValue()._attributes);
+        }
+        
+        _items.clear();
+        return result;
+    }
+    
+    public int size() {
+        return _items.size();
+    }
+}
@@ -0,0 +1,349 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+
+import com.bixolabs.aws.AWSException;
+import com.bixolabs.aws.BackoffHttpHandler;
+import com.bixolabs.aws.SimpleDB;
+
+/**
+ * An append-only log of the batches handed off to the async writer, so that batches which
+ * were queued or in-flight when a task died can be re-sent later, versus re-running the
+ * whole task.
+ * 
+ * Each batch is appended (and synced) before it's queued, and a done marker is appended
+ * once SimpleDB has acknowledged it. A journal that's closed after every batch was written
+ * gets deleted. Otherwise the un-acknowledged batches can be re-sent by a later attempt of
+ * the same task, or via the main() replay tool.
+ * 
+ * Journals are saved in a journal directory, with one sub-directory per writer name (e.g.
+ * part-00000) and one file per task attempt, since speculative attempts of the same task
+ * can be writing at the same time.
+ * 
+ * Since puts replace attribute values, re-sending a batch that actually did get written is
+ * harmless.
+ */
+public class SimpleDBWriteJournal {
+    private static final Logger LOGGER = Logger.getLogger(SimpleDBWriteJournal.class);
+
+    private static final int JOURNAL_VERSION = 1;
+    
+    private static final byte BATCH_ENTRY = 1;
+    private static final byte DONE_ENTRY = 2;
+    
+    /**
+     * A batch from the journal that was never acknowledged.
+     */
+    public static class Batch {
+        private String _shardName;
+        private Map<String, Map<String, String>> _items;
+        
+        public Batch(String shardName, Map<String, Map<String, String>> items) {
+            _shardName = shardName;
+            _items = items;
+        }
+        
+        public String getShardName() {
+            return _shardName;
+        }
+        
+        public Map<String, Map<String, String>> getItems() {
+            return _items;
+        }
+    }
+    
+    private FileSystem _fs;
+    private Path _path;
+    private FSDataOutputStream _out;
+    private long _nextId;
+    private int _pendingBatches;
+    
+    private SimpleDBWriteJournal(FileSystem fs, Path path, FSDataOutputStream out) {
+        _fs = fs;
+        _path = path;
+        _out = out;
+        _nextId = 0;
+        _pendingBatches = 0;
+    }
+    
+    /**
+     * Start a new (empty) journal at <journalDir>/<name>/<attemptId>, replacing any existing
+     * journal from the same task attempt.
+     * 
+     * @param conf
+     * @param journalDir
+     * @param name name for the journal, e.g. the task's output file name
+     * @param attemptId task attempt that's writing
+     * @return journal
+     * @throws IOException
+     */
+    public static SimpleDBWriteJournal create(JobConf conf, String journalDir, String name, String attemptId) throws IOException {
+        Path path = new Path(new Path(journalDir, name), attemptId);
+        FileSystem fs = path.getFileSystem(conf);
+        
+        FSDataOutputStream out = fs.create(path, true);
+        out.writeInt(JOURNAL_VERSION);
+        out.sync();
+        return new SimpleDBWriteJournal(fs, path, out);
+    }
+    
+    /**
+     * Read the batches that were never acknowledged from the journals for <name> that were
+     * written by <attemptIds>. A partial entry at the end of a journal (from a write that was
+     * cut short) is ignored.
+     * 
+     * @param conf
+     * @param journalDir
+     * @param name
+     * @param attemptIds task attempts whose journals should be read
+     * @return list of batches in the order they were originally written, which is empty if
+     *         there are no journals.
+     * @throws IOException
+     */
+    public static List<Batch> readPending(JobConf conf, String journalDir, String name, Collection<String> attemptIds) throws IOException {
+        List<Batch> result = new ArrayList<Batch>();
+        for (Path path : getJournalPaths(conf, journalDir, name, attemptIds)) {
+            result.addAll(readPending(conf, path));
+        }
+        
+        return result;
+    }
+    
+    public static List<Batch> readPending(JobConf conf, Path path) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        if (!fs.exists(path)) {
+            return new ArrayList<Batch>();
+        }
+        
+        Map<Long, Batch> result = new LinkedHashMap<Long, Batch>();
+        FSDataInputStream in = fs.open(path);
+        
+        try {
+            int version = in.readInt();
+            if (version != JOURNAL_VERSION) {
+                throw new IOException(String.format("Journal %s has unknown version %d", path, version));
+            }
+            
+            while (true) {
+                byte entryType = in.readByte();
+                long id = in.readLong();
+                
+                if (entryType == DONE_ENTRY) {
+                    result.remove(id);
+                } else if (entryType == BATCH_ENTRY) {
+                    String shardName = in.readUTF();
+                    int numItems = in.readInt();
+                    Map<String, Map<String, String>> items = new HashMap<String, Map<String, String>>(numItems * 2);
+                    for (int i = 0; i < numItems; i++) {
+                        String itemName = in.readUTF();
+                        int numAttributes = in.readInt();
+                        Map<String, String> attributes = new HashMap<String, String>(numAttributes * 2);
+                        for (int j = 0; j < numAttributes; j++) {
+                            String attrName = in.readUTF();
+                            attributes.put(attrName, in.readUTF());
+                        }
+                        
+                        items.put(itemName, attributes);
+                    }
+                    
+                    result.put(id, new Batch(shardName, items));
+                } else {
+                    throw new IOException(String.format("Journal %s has unknown entry type %d", path, entryType));
+                }
+            }
+        } catch (EOFException e) {
+            // Normal end of the journal (or a partial last entry).
+        } finally {
+            in.close();
+        }
+        
+        return new ArrayList<Batch>(result.values());
+    }
+    
+    /**
+     * Remove the journals for <name> that were written by <attemptIds>, once their pending
+     * batches have been handed off to another journal.
+     * 
+     * @param conf
+     * @param journalDir
+     * @param name
+     * @param attemptIds
+     * @throws IOException
+     */
+    public static void delete(JobConf conf, String journalDir, String name, Collection<String> attemptIds) throws IOException {
+        for (Path path : getJournalPaths(conf, journalDir, name, attemptIds)) {
+            path.getFileSystem(conf).delete(path, false);
+        }
+    }
+    
+    private static List<Path> getJournalPaths(JobConf conf, String journalDir, String name, Collection<String> attemptIds) throws IOException {
+        List<Path> result = new ArrayList<Path>();
+        Path namePath = new Path(journalDir, name);
+        FileSystem fs = namePath.getFileSystem(conf);
+        if (!fs.exists(namePath)) {
+            return result;
+        }
+        
+        for (FileStatus status : fs.listStatus(namePath)) {
+            if (attemptIds.contains(status.getPath().getName())) {
+                result.add(status.getPath());
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Re-send all of the un-acknowledged batches in the journal at <path> to SimpleDB, and
+     * then delete the journal.
+     * 
+     * @param sdb
+     * @param conf
+     * @param path
+     * @return number of batches that were re-sent
+     * @throws IOException
+     * @throws AWSException
+     * @throws InterruptedException
+     */
+    public static int replay(SimpleDB sdb, JobConf conf, Path path) throws IOException, AWSException, InterruptedException {
+        List<Batch> batches = readPending(conf, path);
+        for (Batch batch : batches) {
+            Map<String, Set<String>> replaceAttr = new HashMap<String, Set<String>>();
+            for (Map.Entry<String, Map<String, String>> item : batch.getItems().entrySet()) {
+                replaceAttr.put(item.getKey(), item.getValue().keySet());
+            }
+            
+            LOGGER.debug(String.format("Re-sending %d items to %s", batch.getItems().size(), batch.getShardName()));
+            sdb.batchPutAttributes(batch.getShardName(), batch.getItems(), replaceAttr);
+        }
+        
+        path.getFileSystem(conf).delete(path, false);
+        return batches.size();
+    }
+    
+    /**
+     * Add <items> to the journal.
+     * 
+     * @param shardName
+     * @param items
+     * @return id to use when marking the batch as done.
+     * @throws IOException
+     */
+    public synchronized long append(String shardName, Map<String, Map<String, String>> items) throws IOException {
+        long id = _nextId++;
+        
+        _out.writeByte(BATCH_ENTRY);
+        _out.writeLong(id);
+        _out.writeUTF(shardName);
+        _out.writeInt(items.size());
+        for (Map.Entry<String, Map<String, String>> item : items.entrySet()) {
+            _out.writeUTF(item.getKey());
+            _out.writeInt(item.getValue().size());
+            for (Map.Entry<String, String> attribute : item.getValue().entrySet()) {
+                _out.writeUTF(attribute.getKey());
+                _out.writeUTF(attribute.getValue());
+            }
+        }
+        
+        // The batch is about to be queued, so it has to survive the task dying.
+        _out.sync();
+        _pendingBatches += 1;
+        return id;
+    }
+    
+    /**
+     * Record that the batch with <id> has been written to SimpleDB.
+     * 
+     * @param id
+     * @throws IOException
+     */
+    public synchronized void markDone(long id) throws IOException {
+        _out.writeByte(DONE_ENTRY);
+        _out.writeLong(id);
+        _out.sync();
+        _pendingBatches -= 1;
+    }
+    
+    /**
+     * @return number of batches that have been appended, but not marked as done.
+     */
+    public synchronized int getPendingBatches() {
+        return _pendingBatches;
+    }
+    
+    /**
+     * Close the journal, and delete it if every batch was marked as done (and <complete> is true).
+     * 
+     * @param complete false if the writer hit an error, and so the journal should be kept.
+     * @throws IOException
+     */
+    public synchronized void close(boolean complete) throws IOException {
+        _out.close();
+        
+        if (complete && (_pendingBatches == 0)) {
+            _fs.delete(_path, false);
+        } else {
+            LOGGER.warn(String.format("Keeping journal %s with %d un-acknowledged batches", _path, _pendingBatches));
+        }
+    }
+    
+    /**
+     * Replay tool, for re-sending the un-acknowledged batches in one or more journal files.
+     * 
+     * Usage: SimpleDBWriteJournal <access key id> <secret access key> <journal file>...
+     * 
+     * Only replay the journals of attempts that are dead, since a running attempt will
+     * re-send its own batches.
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: SimpleDBWriteJournal <access key id> <secret access key> <journal file>...");
+            System.exit(-1);
+        }
+        
+        SimpleDB sdb = new SimpleDB(args[0], args[1], new BackoffHttpHandler());
+        JobConf conf = new JobConf();
+        
+        try {
+            for (int i = 2; i < args.length; i++) {
+                int numBatches = replay(sdb, conf, new Path(args[i]));
+                System.out.println(String.format("Re-sent %d batches from %s", numBatches, args[i]));
+            }
+        } catch (Exception e) {
+            System.err.println("Exception running replay tool: " + e.getMessage());
+            e.printStackTrace(System.err);
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobID;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.TaskAttemptID;
+import org.apache.hadoop.mapred.TaskCompletionEvent;
+import org.apache.log4j.Logger;
+
+/**
+ * Helpers for keeping side files (checkpoints, journals, etc) from different attempts at
+ * the same task apart, and for figuring out which earlier attempts are dead.
+ *
+ * Hadoop can run several attempts of one task at the same time (speculative execution),
+ * so a side file that's named only after the task's shard or partition gets clobbered.
+ */
+public class TaskAttemptUtils {
+    private static final Logger LOGGER = Logger.getLogger(TaskAttemptUtils.class);
+    
+    // Name used for side files when we're not running inside of a task.
+    public static final String NO_ATTEMPT_ID = "local";
+    
+    private static final String TASK_ID_PROPERTY = "mapred.task.id";
+    
+    /**
+     * @param conf
+     * @return ID of the task attempt we're running in, or NO_ATTEMPT_ID.
+     */
+    public static String getAttemptId(JobConf conf) {
+        return conf.get(TASK_ID_PROPERTY, NO_ATTEMPT_ID);
+    }
+    
+    /**
+     * @param attemptId
+     * @return true if <attemptId> is a real task attempt ID (versus NO_ATTEMPT_ID, or a
+     *         temp/side file name).
+     */
+    public static boolean isAttemptId(String attemptId) {
+        try {
+            TaskAttemptID.forName(attemptId);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * @param attemptId1
+     * @param attemptId2
+     * @return true if both are attempts at the same task.
+     */
+    public static boolean isSameTask(String attemptId1, String attemptId2) {
+        if (!isAttemptId(attemptId1) || !isAttemptId(attemptId2)) {
+            return false;
+        }
+        
+        return TaskAttemptID.forName(attemptId1).getTaskID().equals(TaskAttemptID.forName(attemptId2).getTaskID());
+    }
+    
+    /**
+     * Return the IDs of the attempts in our job that the job tracker says have failed or
+     * been killed. Any other attempt might still be running.
+     *
+     * @param conf task's configuration
+     * @return set of attempt IDs, which is empty if we're not running inside of a task.
+     * @throws IOException
+     */
+    public static Set<String> getDeadAttempts(JobConf conf) throws IOException {
+        Set<String> result = new HashSet<String>();
+        String attemptId = getAttemptId(conf);
+        if (!isAttemptId(attemptId)) {
+            return result;
+        }
+        
+        JobID jobId = TaskAttemptID.forName(attemptId).getJobID();
+        RunningJob job = new JobClient(conf).getJob(jobId);
+        if (job == null) {
+            LOGGER.warn("Can't find job " + jobId + ", so assuming no attempts have failed");
+            return result;
+        }
+        
+        int startFrom = 0;
+        TaskCompletionEvent[] events;
+        while ((events = job.getTaskCompletionEvents(startFrom)).length > 0) {
+            for (TaskCompletionEvent event : events) {
+                TaskCompletionEvent.Status status = event.getTaskStatus();
+                if ((status == TaskCompletionEvent.Status.FAILED) || (status == TaskCompletionEvent.Status.KILLED)
+                                || (status == TaskCompletionEvent.Status.TIPFAILED)) {
+                    result.add(event.getTaskAttemptId().toString());
+                }
+            }
+            
+            startFrom += events.length;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * @param conf task's configuration
+     * @return IDs of the dead attempts (see getDeadAttempts) at the task we're running in.
+     * @throws IOException
+     */
+    public static Set<String> getDeadAttemptsOfTask(JobConf conf) throws IOException {
+        Set<String> result = new HashSet<String>();
+        String attemptId = getAttemptId(conf);
+        for (String deadAttemptId : getDeadAttempts(conf)) {
+            if (isSameTask(deadAttemptId, attemptId)) {
+                result.add(deadAttemptId);
+            }
+        }
+        
+        return result;
+    }
+}
@@ -0,0 +1,382 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread pool for async batch writes, where pending batches wait in a queue versus being
+ * handed off directly to a thread (as with ThreadedExecutor). The queue is limited by both
+ * the number of batches and their (approximate) size in bytes, so execute() only blocks
+ * when that budget has been used up, and otherwise the caller can keep on generating data
+ * while earlier batches are being written.
+ * 
+ * Each batch has a key (typically the shard name), and there's a limit on how many batches
+ * with the same key can be running at once. Keys with pending batches are served round-robin,
+ * so a burst of batches for one key can't take over all of the threads.
+ * 
+ * A running batch that gets a retriable error can call retry() to be run again after a
+ * delay. The delayed batch waits on a timer (keeping its place in the memory budget), so
+ * its thread is free to work on other batches during the backoff.
+ */
+public class ThreadedBatchExecutor {
+
+    private static final String DEFAULT_KEY = "";
+    
+    private static class KeyedTask {
+        private String _key;
+        private Runnable _command;
+        private long _numBytes;
+        
+        public KeyedTask(String key, Runnable command, long numBytes) {
+            _key = key;
+            _command = command;
+            _numBytes = numBytes;
+        }
+    }
+    
+    private int _maxThreads;
+    private int _maxThreadsPerKey;
+    private int _maxBatches;
+    private long _maxBytes;
+    private ThreadPoolExecutor _pool;
+    private ScheduledThreadPoolExecutor _retryTimer;
+    
+    // Budget and scheduling state, guarded by this.
+    private int _pendingBatches;
+    private long _pendingBytes;
+    private int _maxPendingBatches;
+    private long _totalWaitTime;
+    private int _runningBatches;
+    private int _delayedBatches;
+    private int _totalRetries;
+    private Map<String, LinkedList<KeyedTask>> _queues = new HashMap<String, LinkedList<KeyedTask>>();
+    private Map<String, Integer> _runningByKey = new HashMap<String, Integer>();
+    private LinkedList<String> _waitingKeys = new LinkedList<String>();
+    
+    public ThreadedBatchExecutor(int maxThreads, int maxBatches, long maxBytes) {
+        this(maxThreads, maxThreads, maxBatches, maxBytes);
+    }
+    
+    public ThreadedBatchExecutor(int maxThreads, int maxThreadsPerKey, int maxBatches, long maxBytes) {
+        _maxThreads = maxThreads;
+        _maxThreadsPerKey = Math.max(1, Math.min(maxThreadsPerKey, maxThreads));
+        _maxBatches = maxBatches;
+        _maxBytes = maxBytes;
+        
+        // We only hand tasks to the pool when there's an idle thread, so the pool's own queue
+        // never holds more than a few tasks.
+        _pool = new ThreadPoolExecutor(maxThreads, maxThreads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        _retryTimer = new ScheduledThreadPoolExecutor(1);
+    }
+    
+    public void execute(Runnable command, long numBytes, long timeout) throws RejectedExecutionException, InterruptedException {
+        execute(DEFAULT_KEY, command, numBytes, timeout);
+    }
+    
+    /**
+     * Queue up <command> to be run by the thread pool, waiting (for up to <timeout>) if the
+     * queue is full. A single batch bigger than the byte limit is allowed if nothing else
+     * is pending, as otherwise it could never be executed.
+     * 
+     * @param key key (e.g. shard name) used to limit concurrent requests
+     * @param command
+     * @param numBytes approximate size of the batch
+     * @param timeout max time to wait for room in the queue, in milliseconds
+     * @throws RejectedExecutionException if there wasn't room before the timeout
+     * @throws InterruptedException
+     */
+    public synchronized void execute(String key, Runnable command, long numBytes, long timeout) throws RejectedExecutionException, InterruptedException {
+        if (!tryExecute(key, command, numBytes, timeout)) {
+            throw new RejectedExecutionException(String.format("No room for batch after %dms, with %d batches (%d bytes) pending", timeout, _pendingBatches, _pendingBytes));
+        }
+    }
+    
+    /**
+     * Same as execute(), but returns false if there wasn't room before the timeout, so that
+     * the caller can do something (e.g. report progress) and then try again.
+     * 
+     * @param key key (e.g. shard name) used to limit concurrent requests
+     * @param command
+     * @param numBytes approximate size of the batch
+     * @param timeout max time to wait for room in the queue, in milliseconds
+     * @return true if the command was queued up
+     * @throws RejectedExecutionException if the executor has been terminated
+     * @throws InterruptedException
+     */
+    public synchronized boolean tryExecute(String key, Runnable command, long numBytes, long timeout) throws RejectedExecutionException, InterruptedException {
+        if (_pool.isShutdown()) {
+            throw new RejectedExecutionException("Executor has been terminated");
+        }
+        
+        if (!acquire(numBytes, timeout)) {
+            return false;
+        }
+        
+        enqueue(new KeyedTask(key, command, numBytes));
+        return true;
+    }
+    
+    /**
+     * Wait until the number of pending batches is different from <numPending>, or <timeout>
+     * has passed.
+     * 
+     * @param numPending number of pending batches the caller last saw
+     * @param timeout max time to wait, in milliseconds
+     * @return current number of pending batches
+     * @throws InterruptedException
+     */
+    public synchronized int awaitPendingChange(int numPending, long timeout) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + timeout;
+        
+        while (_pendingBatches == numPending) {
+            long waitTime = endTime - System.currentTimeMillis();
+            if (waitTime <= 0) {
+                break;
+            }
+            
+            wait(waitTime);
+        }
+        
+        return _pendingBatches;
+    }
+    
+    /**
+     * Run <command> again after <delay>, without holding on to a thread while waiting. This is
+     * meant to be called by a running command that failed with a retriable error, right before
+     * it returns. The retry is counted as a pending batch (with the same key and size) until
+     * it has been run.
+     * 
+     * @param key key (e.g. shard name) used to limit concurrent requests
+     * @param command
+     * @param numBytes approximate size of the batch
+     * @param delay time to wait before re-queuing the command, in milliseconds
+     * @throws RejectedExecutionException if the executor has been terminated
+     */
+    public synchronized void retry(String key, Runnable command, long numBytes, long delay) throws RejectedExecutionException {
+        final KeyedTask task = new KeyedTask(key, command, numBytes);
+        _retryTimer.schedule(new Runnable() {
+            
+            @Override
+            public void run() {
+                requeue(task);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        
+        _pendingBatches += 1;
+        _pendingBytes += numBytes;
+        _delayedBatches += 1;
+        _totalRetries += 1;
+    }
+    
+    /**
+     * @return number of batches that are waiting for their retry delay to expire
+     */
+    public synchronized int getDelayedBatches() {
+        return _delayedBatches;
+    }
+    
+    /**
+     * @return total number of calls to retry()
+     */
+    public synchronized int getTotalRetries() {
+        return _totalRetries;
+    }
+    
+    /**
+     * @return number of batches that are queued or being written
+     */
+    public synchronized int getPendingBatches() {
+        return _pendingBatches;
+    }
+    
+    public synchronized long getPendingBytes() {
+        return _pendingBytes;
+    }
+    
+    /**
+     * @return the most batches that have been pending at one time
+     */
+    public synchronized int getMaxPendingBatches() {
+        return _maxPendingBatches;
+    }
+    
+    /**
+     * @return total time (in milliseconds) that callers have spent waiting for room in the queue
+     */
+    public synchronized long getTotalWaitTime() {
+        return _totalWaitTime;
+    }
+    
+    /**
+     * @param key
+     * @return number of batches for <key> that are currently being run
+     */
+    public synchronized int getRunningBatches(String key) {
+        Integer result = _runningByKey.get(key);
+        return result == null ? 0 : result;
+    }
+    
+    /**
+     * Wait for all pending batches to be written, and terminate the thread pool.
+     * 
+     * @return true if we did a normal termination, false if we had to do a hard shutdown
+     *         (and thus some batches might not have been written).
+     * @throws InterruptedException
+     */
+    public boolean terminate(long terminationTimeout) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + terminationTimeout;
+        
+        synchronized (this) {
+            while (_pendingBatches > 0) {
+                long waitTime = endTime - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    break;
+                }
+                
+                wait(waitTime);
+            }
+            
+            _queues.clear();
+            _waitingKeys.clear();
+        }
+        
+        _retryTimer.shutdownNow();
+        _pool.shutdown();
+        long waitTime = Math.max(0, endTime - System.currentTimeMillis());
+        if ((getPendingBatches() == 0) && _pool.awaitTermination(waitTime, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        
+        _pool.shutdownNow();
+        return false;
+    }
+    
+    private boolean acquire(long numBytes, long timeout) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        long endTime = startTime + timeout;
+        
+        try {
+            while (!hasRoom(numBytes)) {
+                long waitTime = endTime - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    return false;
+                }
+                
+                wait(waitTime);
+            }
+        } finally {
+            _totalWaitTime += System.currentTimeMillis() - startTime;
+        }
+        
+        _pendingBatches += 1;
+        _pendingBytes += numBytes;
+        _maxPendingBatches = Math.max(_maxPendingBatches, _pendingBatches);
+        return true;
+    }
+    
+    private boolean hasRoom(long numBytes) {
+        if (_pendingBatches == 0) {
+            return true;
+        }
+        
+        return (_pendingBatches < _maxBatches) && (_pendingBytes + numBytes <= _maxBytes);
+    }
+    
+    /**
+     * Hand off queued tasks to idle threads, taking one task from each waiting key in turn,
+     * and skipping keys that are already at their limit.
+     */
+    private void dispatch() {
+        int numSkipped = 0;
+        while ((_runningBatches < _maxThreads) && (numSkipped < _waitingKeys.size())) {
+            String key = _waitingKeys.removeFirst();
+            if (getRunningBatches(key) >= _maxThreadsPerKey) {
+                _waitingKeys.addLast(key);
+                numSkipped += 1;
+                continue;
+            }
+            
+            LinkedList<KeyedTask> queue = _queues.get(key);
+            final KeyedTask task = queue.removeFirst();
+            if (!queue.isEmpty()) {
+                _waitingKeys.addLast(key);
+            }
+            
+            numSkipped = 0;
+            _runningBatches += 1;
+            _runningByKey.put(key, getRunningBatches(key) + 1);
+            
+            try {
+                _pool.execute(new Runnable() {
+                    
+                    @Override
+                    public void run() {
+                        try {
+                            task._command.run();
+                        } finally {
+                            release(task);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Pool has been shut down, so just drop the task.
+                done(task);
+                notifyAll();
+            }
+        }
+    }
+    
+    private synchronized void requeue(KeyedTask task) {
+        _delayedBatches -= 1;
+        enqueue(task);
+    }
+    
+    private void enqueue(KeyedTask task) {
+        LinkedList<KeyedTask> queue = _queues.get(task._key);
+        if (queue == null) {
+            queue = new LinkedList<KeyedTask>();
+            _queues.put(task._key, queue);
+        }
+        
+        if (queue.isEmpty()) {
+            _waitingKeys.addLast(task._key);
+        }
+        
+        queue.addLast(task);
+        dispatch();
+    }
+    
+    private synchronized void release(KeyedTask task) {
+        done(task);
+        dispatch();
+        notifyAll();
+    }
+    
+    private void done(KeyedTask task) {
+        _runningBatches -= 1;
+        _runningByKey.put(task._key, getRunningBatches(task._key) - 1);
+        _pendingBatches -= 1;
+        _pendingBytes -= task._numBytes;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.bixolabs.aws.HttpException;
+import com.bixolabs.aws.IHttpHandler;
+import com.bixolabs.aws.SimpleDB;
+
+
+public class SimpleDBAggregatorTest {
+
+    /**
+     * Handler that returns two pages of results for every count request. Each page has a
+     * count of 10, unless the expression is looking for the value 'rare', in which case it's 1.
+     */
+    private static class CountingHttpHandler implements IHttpHandler {
+
+        @Override
+        public String get(URL url) throws IOException, HttpException, InterruptedException {
+            String expression = null;
+            String nextToken = null;
+            for (String param : url.getQuery().split("&")) {
+                String[] pieces = param.split("=", 2);
+                if (pieces[0].equals("SelectExpression")) {
+                    expression = URLDecoder.decode(pieces[1], "UTF-8");
+                } else if (pieces[0].equals("NextToken")) {
+                    nextToken = pieces[1];
+                }
+            }
+            
+            assertTrue(expression.startsWith("select count(*) from "));
+            int count = expression.contains("'rare'") ? 1 : 10;
+            
+            StringBuilder result = new StringBuilder("<SelectResponse><SelectResult>");
+            result.append(String.format("<Item><Name>Domain</Name><Attribute><Name>Count</Name><Value>%d</Value></Attribute></Item>", count));
+            if (nextToken == null) {
+                result.append("<NextToken>token</NextToken>");
+            }
+            
+            result.append("</SelectResult></SelectResponse>");
+            return result.toString();
+        }
+
+        @Override
+        public String post(URL url, Map<String, String> params) throws IOException, HttpException, InterruptedException {
+            throw new IOException("Unexpected post");
+        }
+    }
+    
+    @Test
+    public void testCount() throws Exception {
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", new CountingHttpHandler());
+        SimpleDBAggregator aggregator = new SimpleDBAggregator(sdb, "table", 4);
+        
+        // 4 shards, each with two pages of 10.
+        assertEquals(4 * 2 * 10, aggregator.count(""));
+        assertEquals(4 * 2 * 10, aggregator.count("`value` > '0'"));
+    }
+    
+    @Test
+    public void testCountByValue() throws Exception {
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", new CountingHttpHandler());
+        SimpleDBAggregator aggregator = new SimpleDBAggregator(sdb, "table", 3, 2);
+        
+        Map<String, Long> counts = aggregator.countByValue("status", Arrays.asList("common", "rare"), "`value` > '0'");
+        assertEquals(2, counts.size());
+        assertEquals(3 * 2 * 10, (long)counts.get("common"));
+        assertEquals(3 * 2 * 1, (long)counts.get("rare"));
+    }
+}
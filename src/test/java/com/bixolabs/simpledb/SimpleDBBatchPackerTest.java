@@ -0,0 +1,173 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class SimpleDBBatchPackerTest {
+
+    private static Map<String, String> makeAttributes(int numAttributes, int valueLength) {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < valueLength; i++) {
+            value.append('x');
+        }
+        
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < numAttributes; i++) {
+            result.put("attr-" + i, value.toString());
+        }
+        
+        return result;
+    }
+    
+    @Test
+    public void testSmallItems() {
+        SimpleDBBatchPacker packer = new SimpleDBBatchPacker();
+        
+        int numBatches = 0;
+        for (int i = 0; i < 60; i++) {
+            for (Map<String, Map<String, String>> batch : packer.add("item-" + i, makeAttributes(3, 10))) {
+                assertEquals(SimpleDBBatchPacker.MAX_BATCH_ITEMS, batch.size());
+                numBatches += 1;
+            }
+        }
+        
+        assertEquals(2, numBatches);
+        assertEquals(10, packer.flush().size());
+        assertNull(packer.flush());
+    }
+    
+    @Test
+    public void testMergingItem() {
+        SimpleDBBatchPacker packer = new SimpleDBBatchPacker();
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("a", "1");
+        attributes.put("b", "1");
+        packer.add("item", attributes);
+        
+        attributes = new HashMap<String, String>();
+        attributes.put("b", "2");
+        attributes.put("c", "2");
+        packer.add("item", attributes);
+        assertEquals(1, packer.getNumItems());
+        
+        Map<String, String> merged = packer.flush().get("item");
+        assertEquals(3, merged.size());
+        assertEquals("1", merged.get("a"));
+        assertEquals("2", merged.get("b"));
+        assertEquals("2", merged.get("c"));
+    }
+    
+    @Test
+    public void testContentHashOfMergedItem() {
+        SimpleDBBatchPacker packer = new SimpleDBBatchPacker();
+        packer.setAddContentHash(true);
+        
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("a", "1");
+        packer.add("item", attributes);
+        
+        attributes = new HashMap<String, String>();
+        attributes.put("b", "2");
+        packer.add("item", attributes);
+        
+        // The hash has to cover both writes, not just the last one.
+        Map<String, String> merged = packer.flush().get("item");
+        String hash = merged.get(SimpleDBUtils.CONTENT_HASH_ATTR_NAME);
+        assertEquals(SimpleDBUtils.getContentHash(merged), hash);
+        
+        // So the same second write, after a different first write, gets a different hash.
+        attributes = new HashMap<String, String>();
+        attributes.put("a", "5");
+        packer.add("item", attributes);
+        
+        attributes = new HashMap<String, String>();
+        attributes.put("b", "2");
+        packer.add("item", attributes);
+        
+        assertFalse(hash.equals(packer.flush().get("item").get(SimpleDBUtils.CONTENT_HASH_ATTR_NAME)));
+    }
+    
+    @Test
+    public void testByteLimit() {
+        final int maxBytes = 20 * 1024;
+        SimpleDBBatchPacker packer = new SimpleDBBatchPacker(25, maxBytes, 256);
+        
+        int numItems = 0;
+        for (int i = 0; i < 20; i++) {
+            // Each item is a bit more than 4K (with overhead), so only four fit in a batch.
+            for (Map<String, Map<String, String>> batch : packer.add("item-" + i, makeAttributes(4, 1000))) {
+                assertEquals(4, batch.size());
+                numItems += batch.size();
+            }
+        }
+        
+        numItems += packer.flush().size();
+        assertEquals(20, numItems);
+    }
+    
+    @Test
+    public void testInsertOnlyPacking() {
+        final int maxBytes = 1024 + 3500;
+        SimpleDBBatchPacker replacePacker = new SimpleDBBatchPacker(25, maxBytes, 256, false);
+        SimpleDBBatchPacker insertPacker = new SimpleDBBatchPacker(25, maxBytes, 256, true);
+        
+        // Without the Replace parameters, items take up less room, so more fit in a batch.
+        for (int i = 0; i < 8; i++) {
+            for (Map<String, Map<String, String>> batch : replacePacker.add("item-" + i, makeAttributes(10, 10))) {
+                assertEquals(3, batch.size());
+            }
+            
+            for (Map<String, Map<String, String>> batch : insertPacker.add("item-" + i, makeAttributes(10, 10))) {
+                assertEquals(4, batch.size());
+            }
+        }
+    }
+    
+    @Test
+    public void testSplittingWideItem() {
+        SimpleDBBatchPacker packer = new SimpleDBBatchPacker();
+        packer.add("small-item", makeAttributes(1, 10));
+        
+        List<Map<String, Map<String, String>>> batches = packer.add("wide-item", makeAttributes(600, 10));
+        
+        // The first batch has the small item and the first piece of the wide item, and the
+        // second batch has the second piece. The last piece is still pending.
+        assertEquals(2, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals(256, batches.get(0).get("wide-item").size());
+        assertEquals(1, batches.get(1).size());
+        assertEquals(256, batches.get(1).get("wide-item").size());
+        
+        Map<String, Map<String, String>> lastBatch = packer.flush();
+        assertEquals(600 - 512, lastBatch.get("wide-item").size());
+    }
+    
+    @Test
+    public void testEncodedLength() {
+        assertEquals(3, SimpleDBBatchPacker.getEncodedLength("a-Z"));
+        assertEquals(3, SimpleDBBatchPacker.getEncodedLength(" "));
+        assertEquals(6, SimpleDBBatchPacker.getEncodedLength("é"));
+        assertEquals(9, SimpleDBBatchPacker.getEncodedLength("中"));
+    }
+}
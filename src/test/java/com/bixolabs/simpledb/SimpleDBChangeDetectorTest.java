@@ -0,0 +1,132 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.bixolabs.aws.HttpException;
+import com.bixolabs.aws.IHttpHandler;
+import com.bixolabs.aws.SimpleDB;
+
+
+public class SimpleDBChangeDetectorTest {
+
+    /**
+     * Handler that returns the same set of stored content hashes for every select request.
+     */
+    private static class HashLookupHttpHandler implements IHttpHandler {
+        private Map<String, String> _storedHashes;
+        private int _numRequests = 0;
+        private int _numConsistentRequests = 0;
+        
+        public HashLookupHttpHandler(Map<String, String> storedHashes) {
+            _storedHashes = storedHashes;
+        }
+        
+        @Override
+        public String get(URL url) throws IOException, HttpException, InterruptedException {
+            String expression = null;
+            for (String param : url.getQuery().split("&")) {
+                String[] pieces = param.split("=", 2);
+                if (pieces[0].equals("SelectExpression")) {
+                    expression = URLDecoder.decode(pieces[1], "UTF-8");
+                } else if (pieces[0].equals("ConsistentRead") && pieces[1].equals("true")) {
+                    _numConsistentRequests += 1;
+                }
+            }
+            
+            assertTrue(expression.contains("where itemName() in ("));
+            _numRequests += 1;
+            
+            StringBuilder result = new StringBuilder("<SelectResponse><SelectResult>");
+            for (Map.Entry<String, String> entry : _storedHashes.entrySet()) {
+                result.append(String.format("<Item><Name>%s</Name><Attribute><Name>%s</Name><Value>%s</Value></Attribute></Item>",
+                                entry.getKey(), SimpleDBUtils.CONTENT_HASH_ATTR_NAME, entry.getValue()));
+            }
+            
+            result.append("</SelectResult></SelectResponse>");
+            return result.toString();
+        }
+
+        @Override
+        public String post(URL url, Map<String, String> params) throws IOException, HttpException, InterruptedException {
+            throw new IOException("Unexpected post");
+        }
+        
+        public int getNumRequests() {
+            return _numRequests;
+        }
+        
+        public int getNumConsistentRequests() {
+            return _numConsistentRequests;
+        }
+    }
+    
+    private static Map<String, String> makeAttributes(String value) {
+        Map<String, String> result = new HashMap<String, String>();
+        result.put("value", value);
+        SimpleDBChangeDetector.setContentHash(result);
+        return result;
+    }
+    
+    @Test
+    public void testRemovingUnchangedItems() throws Exception {
+        Map<String, String> storedHashes = new HashMap<String, String>();
+        storedHashes.put("unchanged", makeAttributes("a").get(SimpleDBUtils.CONTENT_HASH_ATTR_NAME));
+        storedHashes.put("changed", makeAttributes("b").get(SimpleDBUtils.CONTENT_HASH_ATTR_NAME));
+        HashLookupHttpHandler handler = new HashLookupHttpHandler(storedHashes);
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", handler);
+        
+        Map<String, Map<String, String>> items = new LinkedHashMap<String, Map<String, String>>();
+        items.put("unchanged", makeAttributes("a"));
+        items.put("changed", makeAttributes("c"));
+        items.put("new", makeAttributes("a"));
+        for (int i = 0; i < 22; i++) {
+            items.put("other-" + i, makeAttributes("a"));
+        }
+        
+        assertEquals(1, SimpleDBChangeDetector.removeUnchangedItems(sdb, "table-1-of-1", items));
+        assertFalse(items.containsKey("unchanged"));
+        assertTrue(items.containsKey("changed"));
+        assertTrue(items.containsKey("new"));
+        
+        // 25 items means two lookup requests.
+        assertEquals(2, handler.getNumRequests());
+    }
+    
+    @Test
+    public void testConsistentLookups() throws Exception {
+        HashLookupHttpHandler handler = new HashLookupHttpHandler(new HashMap<String, String>());
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", handler);
+        
+        Map<String, Map<String, String>> items = new LinkedHashMap<String, Map<String, String>>();
+        items.put("item", makeAttributes("a"));
+        assertEquals(0, SimpleDBChangeDetector.removeUnchangedItems(sdb, "table-1-of-1", items));
+        
+        // Stale hashes could make us skip an item that was changed back to an earlier version.
+        assertEquals(1, handler.getNumRequests());
+        assertEquals(1, handler.getNumConsistentRequests());
+    }
+}
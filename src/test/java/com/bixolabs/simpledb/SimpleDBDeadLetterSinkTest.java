@@ -0,0 +1,99 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+
+public class SimpleDBDeadLetterSinkTest {
+
+    @Test
+    public void testSavingItems() throws Exception {
+        final String deadLetterDir = "build/test/SimpleDBDeadLetterSinkTest/testSavingItems/deadletters";
+        JobConf conf = new JobConf();
+        Path path = new Path(deadLetterDir, "part-00000-" + TaskAttemptUtils.NO_ATTEMPT_ID);
+        FileSystem fs = path.getFileSystem(conf);
+        fs.delete(path, false);
+        
+        SimpleDBDeadLetterSink sink = new SimpleDBDeadLetterSink(conf, deadLetterDir, "part-00000");
+        assertTrue(sink.isSaving());
+        
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        attributes.put("name", "a\tb");
+        attributes.put("value", "line1\nline2");
+        sink.add("table-1-of-2", "item-1", attributes, "Value too long");
+        sink.close();
+        
+        assertEquals(1, sink.getNumItems());
+        
+        BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(path), "UTF-8"));
+        assertEquals("table-1-of-2\titem-1\tValue too long\tname\ta\\tb\tvalue\tline1\\nline2", in.readLine());
+        assertNull(in.readLine());
+        in.close();
+    }
+    
+    @Test
+    public void testFilePerAttempt() throws Exception {
+        final String deadLetterDir = "build/test/SimpleDBDeadLetterSinkTest/testFilePerAttempt/deadletters";
+        final String attemptId1 = "attempt_201010180000_0001_r_000000_0";
+        final String attemptId2 = "attempt_201010180000_0001_r_000000_1";
+        
+        JobConf conf = new JobConf();
+        Path dirPath = new Path(deadLetterDir);
+        FileSystem fs = dirPath.getFileSystem(conf);
+        fs.delete(dirPath, true);
+        
+        // Two (speculative) attempts at the same task don't clobber each other's files.
+        conf.set("mapred.task.id", attemptId1);
+        SimpleDBDeadLetterSink sink1 = new SimpleDBDeadLetterSink(conf, deadLetterDir, "part-00000");
+        conf.set("mapred.task.id", attemptId2);
+        SimpleDBDeadLetterSink sink2 = new SimpleDBDeadLetterSink(new JobConf(conf), deadLetterDir, "part-00000");
+        
+        sink1.add("table-1-of-2", "item-1", new LinkedHashMap<String, String>(), "Value too long");
+        sink2.add("table-1-of-2", "item-1", new LinkedHashMap<String, String>(), "Value too long");
+        sink1.close();
+        sink2.close();
+        
+        assertTrue(fs.exists(new Path(deadLetterDir, "part-00000-" + attemptId1)));
+        assertTrue(fs.exists(new Path(deadLetterDir, "part-00000-" + attemptId2)));
+    }
+    
+    @Test
+    public void testLoggingOnly() throws Exception {
+        SimpleDBDeadLetterSink sink = new SimpleDBDeadLetterSink(new JobConf(), null, "part-00000");
+        assertFalse(sink.isSaving());
+        
+        sink.add("table-1-of-2", "item-1", new LinkedHashMap<String, String>(), "Value too long");
+        sink.close();
+        assertEquals(1, sink.getNumItems());
+    }
+    
+    @Test
+    public void testEscaping() throws Exception {
+        assertEquals("", SimpleDBDeadLetterSink.escape(null));
+        assertEquals("a\\\\b\\r", SimpleDBDeadLetterSink.escape("a\\b\r"));
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.bixolabs.aws.HttpException;
+import com.bixolabs.aws.IHttpHandler;
+import com.bixolabs.aws.SimpleDB;
+
+
+public class SimpleDBParallelReaderTest {
+
+    /**
+     * Handler that returns two pages of items for every select request, where
+     * the item names are unique to the select expression.
+     */
+    private static class PagingHttpHandler implements IHttpHandler {
+
+        @Override
+        public String get(URL url) throws IOException, HttpException, InterruptedException {
+            String expression = null;
+            String nextToken = null;
+            for (String param : url.getQuery().split("&")) {
+                String[] pieces = param.split("=", 2);
+                if (pieces[0].equals("SelectExpression")) {
+                    expression = URLDecoder.decode(pieces[1], "UTF-8");
+                } else if (pieces[0].equals("NextToken")) {
+                    nextToken = pieces[1];
+                }
+            }
+            
+            String prefix = "" + expression.hashCode() + (nextToken == null ? "-a" : "-b");
+            StringBuilder result = new StringBuilder("<SelectResponse><SelectResult>");
+            for (int i = 0; i < 3; i++) {
+                result.append(String.format("<Item><Name>%s-%d</Name><Attribute><Name>value</Name><Value>%d</Value></Attribute></Item>", prefix, i, i));
+            }
+            
+            if (nextToken == null) {
+                result.append("<NextToken>token</NextToken>");
+            }
+            
+            result.append("</SelectResult></SelectResponse>");
+            return result.toString();
+        }
+
+        @Override
+        public String post(URL url, Map<String, String> params) throws IOException, HttpException, InterruptedException {
+            throw new IOException("Unexpected post");
+        }
+    }
+    
+    /**
+     * Handler that returns a full page of items (up to the select limit) for every select
+     * request, and keeps track of how many items it has returned.
+     */
+    private static class LimitedPagingHttpHandler implements IHttpHandler {
+        private AtomicInteger _itemsReturned = new AtomicInteger(0);
+        
+        public int getItemsReturned() {
+            return _itemsReturned.get();
+        }
+        
+        @Override
+        public String get(URL url) throws IOException, HttpException, InterruptedException {
+            String expression = null;
+            for (String param : url.getQuery().split("&")) {
+                String[] pieces = param.split("=", 2);
+                if (pieces[0].equals("SelectExpression")) {
+                    expression = URLDecoder.decode(pieces[1], "UTF-8");
+                }
+            }
+            
+            int limit = Integer.parseInt(expression.substring(expression.lastIndexOf(" limit ") + " limit ".length()));
+            String prefix = "" + expression.hashCode() + "-" + _itemsReturned.addAndGet(limit);
+            StringBuilder result = new StringBuilder("<SelectResponse><SelectResult>");
+            for (int i = 0; i < limit; i++) {
+                result.append(String.format("<Item><Name>%s-%d</Name><Attribute><Name>value</Name><Value>%d</Value></Attribute></Item>", prefix, i, i));
+            }
+            
+            result.append("<NextToken>token</NextToken></SelectResult></SelectResponse>");
+            return result.toString();
+        }
+
+        @Override
+        public String post(URL url, Map<String, String> params) throws IOException, HttpException, InterruptedException {
+            throw new IOException("Unexpected post");
+        }
+    }
+    
+    @Test
+    public void testReadingAllStreams() throws Exception {
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", new PagingHttpHandler());
+        SimpleDBParallelReader reader = new SimpleDBParallelReader(sdb, "table-2-of-3", 3, null, "`value` > '0'", SimpleDBUtils.NO_SELECT_LIMIT, 4);
+        
+        Set<String> itemNames = new HashSet<String>();
+        Map<String, String[]> item;
+        while ((item = reader.next()) != null) {
+            assertTrue(itemNames.add(item.get("ItemName")[0]));
+        }
+        
+        reader.close();
+        
+        // 4 streams, each with two pages of 3 items.
+        assertEquals(4 * 2 * 3, itemNames.size());
+    }
+    
+    @Test
+    public void testSelectLimit() throws Exception {
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", new PagingHttpHandler());
+        SimpleDBParallelReader reader = new SimpleDBParallelReader(sdb, "table-1-of-1", 1, null, "", 5, 4);
+        
+        int numItems = 0;
+        while (reader.next() != null) {
+            numItems += 1;
+        }
+        
+        reader.close();
+        assertEquals(5, numItems);
+    }
+    
+    @Test
+    public void testStreamsShareSelectLimit() throws Exception {
+        LimitedPagingHttpHandler handler = new LimitedPagingHttpHandler();
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", handler);
+        SimpleDBParallelReader reader = new SimpleDBParallelReader(sdb, "table-1-of-1", 1, null, "", 20, 4);
+        
+        int numItems = 0;
+        while (reader.next() != null) {
+            numItems += 1;
+        }
+        
+        reader.close();
+        assertEquals(20, numItems);
+        
+        // Each stream should only have asked for its share of the limit, not the whole thing.
+        assertEquals(20, handler.getItemsReturned());
+    }
+    
+    @Test
+    public void testReadingMultipleShards() throws Exception {
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", new PagingHttpHandler());
+        List<String> shardNames = SimpleDBUtils.getShardNames("table", 3);
+        List<String> queries = Arrays.asList("", "", "");
+        SimpleDBParallelReader reader = new SimpleDBParallelReader(sdb, shardNames, null, queries, 7);
+        assertEquals(3, reader.getNumStreams());
+        
+        int numItems = 0;
+        while (reader.next() != null) {
+            numItems += 1;
+        }
+        
+        reader.close();
+        assertEquals(7, numItems);
+    }
+    
+    @Test
+    public void testShardsShareSelectLimit() throws Exception {
+        LimitedPagingHttpHandler handler = new LimitedPagingHttpHandler();
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", handler);
+        List<String> shardNames = SimpleDBUtils.getShardNames("table", 3);
+        List<String> queries = Arrays.asList("", "", "");
+        SimpleDBParallelReader reader = new SimpleDBParallelReader(sdb, shardNames, null, queries, 7);
+        
+        int numItems = 0;
+        while (reader.next() != null) {
+            numItems += 1;
+        }
+        
+        reader.close();
+        assertEquals(7, numItems);
+        
+        // We shouldn't have fetched a full limit's worth of items from every shard.
+        assertEquals(7, handler.getItemsReturned());
+    }
+}
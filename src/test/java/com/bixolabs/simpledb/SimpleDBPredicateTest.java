@@ -0,0 +1,60 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+import static com.bixolabs.simpledb.SimpleDBPredicate.*;
+
+import org.junit.Test;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+
+public class SimpleDBPredicateTest {
+
+    @Test
+    public void testExpressions() {
+        assertEquals("`a` = 'it''s'", eq("a", "it's").toExpression("key"));
+        assertEquals("itemName() != 'x'", ne("key", "x").toExpression("key"));
+        assertEquals("`a``b` < '5'", lt("a`b", "5").toExpression("key"));
+        assertEquals("`a` in ('1', '2')", in("a", "1", "2").toExpression("key"));
+        assertEquals("`a` like '50\\%%'", startsWith("a", "50%").toExpression("key"));
+        assertEquals("`a` is null", isNull("a").toExpression("key"));
+        assertEquals("(`a` is not null) and ((`b` > '1') or (`b` <= '0'))",
+                        and(isNotNull("a"), or(gt("b", "1"), le("b", "0"))).toExpression("key"));
+    }
+    
+    @Test
+    public void testMatching() {
+        TupleEntry entry = new TupleEntry(new Fields("key", "a", "b"), new Tuple("k1", "abc", null));
+        
+        assertTrue(eq("a", "abc").isMatch(entry));
+        assertFalse(ne("b", "abc").isMatch(entry));
+        assertTrue(startsWith("a", "ab").isMatch(entry));
+        assertTrue(in("key", "k0", "k1").isMatch(entry));
+        assertTrue(isNull("b").isMatch(entry));
+        assertTrue(and(gt("a", "abb"), or(isNotNull("b"), lt("key", "k2"))).isMatch(entry));
+    }
+    
+    @Test
+    public void testPushingFilters() {
+        SimpleDBScheme scheme = new SimpleDBScheme(new Fields("key", "a"), new Fields("key"), "`a` > '0'");
+        assertTrue(scheme.pushFilter(new SimpleDBPredicateFilter(eq("key", "k1"))));
+        assertEquals("(`a` > '0') and (itemName() = 'k1')", scheme.getQuery());
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.mapred.JobConf;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+/**
+ * Simple micro-benchmark for turning a synthetic select page into tuples, comparing the
+ * precomputed field plan used by SimpleDBRecordReader with the previous TupleEntry approach.
+ * 
+ * Run with: java -cp <test classpath> com.bixolabs.simpledb.SimpleDBRecordReaderBenchmark
+ */
+public class SimpleDBRecordReaderBenchmark {
+
+    private static final int NUM_FIELDS = 10;
+    private static final int PAGE_SIZE = 2500;
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int TIMED_ITERATIONS = 1000;
+    
+    private static List<Map<String, String[]>> makePage(Fields fields) {
+        List<Map<String, String[]>> result = new ArrayList<Map<String, String[]>>(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            Map<String, String[]> item = new HashMap<String, String[]>();
+            item.put("ItemName", new String[] { "item-" + i });
+            for (int j = 1; j < fields.size(); j++) {
+                item.put(fields.get(j).toString(), new String[] { "value-" + i + "-" + j });
+            }
+            
+            result.add(item);
+        }
+        
+        return result;
+    }
+    
+    private static long runPlan(SimpleDBRecordReader reader, List<Map<String, String[]>> page, Tuple value, int iterations) {
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (Map<String, String[]> item : page) {
+                reader.setTupleValues(item, value);
+            }
+        }
+        
+        return System.nanoTime() - startTime;
+    }
+    
+    private static long runTupleEntry(Fields fields, String itemFieldName, List<Map<String, String[]>> page, Tuple value, int iterations) {
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (Map<String, String[]> values : page) {
+                TupleEntry entry = new TupleEntry(fields, value);
+                entry.set(itemFieldName, values.get("ItemName")[0]);
+                
+                for (int j = 0; j < fields.size(); j++) {
+                    String attrName = fields.get(j).toString();
+                    String[] attrValues = values.get(attrName);
+                    if ((attrValues != null) && (attrValues.length > 0)) {
+                        entry.set(attrName, attrValues[0]);
+                    }
+                }
+            }
+        }
+        
+        return System.nanoTime() - startTime;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        String[] fieldNames = new String[NUM_FIELDS];
+        for (int i = 0; i < NUM_FIELDS; i++) {
+            fieldNames[i] = "field" + i;
+        }
+        
+        Fields fields = new Fields(fieldNames);
+        String itemFieldName = fieldNames[0];
+        
+        SimpleDBConfiguration sdbConf = new SimpleDBConfiguration(new JobConf());
+        sdbConf.setSchemeFields(fields);
+        sdbConf.setItemFieldName(itemFieldName);
+        sdbConf.setQuery("");
+        sdbConf.setSdbHost("localhost");
+        sdbConf.setAccessKeyId("accessKey");
+        sdbConf.setSecretAccessKey("secretKey");
+        
+        SimpleDBRecordReader reader = new SimpleDBRecordReader(new SimpleDBInputSplit(PAGE_SIZE, "table-1-of-1"), sdbConf);
+        List<Map<String, String[]>> page = makePage(fields);
+        Tuple value = reader.createValue();
+        
+        runPlan(reader, page, value, WARMUP_ITERATIONS);
+        runTupleEntry(fields, itemFieldName, page, value, WARMUP_ITERATIONS);
+        
+        double numItems = (double)PAGE_SIZE * TIMED_ITERATIONS;
+        System.out.println(String.format("Field plan: %.1f ns/item", runPlan(reader, page, value, TIMED_ITERATIONS) / numItems));
+        System.out.println(String.format("TupleEntry: %.1f ns/item", runTupleEntry(fields, itemFieldName, page, value, TIMED_ITERATIONS) / numItems));
+        
+        reader.close();
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.mapred.JobConf;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+/**
+ * Simple micro-benchmark for turning tuples into SimpleDB items, comparing the precomputed
+ * field plan (and single item hash) used by SimpleDBRecordWriter with the previous
+ * TupleEntry approach. Where the JVM supports it, this also reports the bytes allocated
+ * per tuple.
+ * 
+ * Run with: java -cp <test classpath> com.bixolabs.simpledb.SimpleDBRecordWriterBenchmark
+ */
+public class SimpleDBRecordWriterBenchmark {
+
+    private static final int NUM_FIELDS = 10;
+    private static final int NUM_SHARDS = 10;
+    private static final int NUM_TUPLES = 2500;
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int TIMED_ITERATIONS = 1000;
+    
+    // Keep results reachable, so the JIT can't skip the work.
+    private static int _sink = 0;
+    
+    private static List<Tuple> makeTuples() {
+        List<Tuple> result = new ArrayList<Tuple>(NUM_TUPLES);
+        for (int i = 0; i < NUM_TUPLES; i++) {
+            Tuple tuple = new Tuple();
+            tuple.add("item-" + i);
+            for (int j = 1; j < NUM_FIELDS; j++) {
+                tuple.add("value-" + i + "-" + j);
+            }
+            
+            result.add(tuple);
+        }
+        
+        return result;
+    }
+    
+    private static void runPlan(SimpleDBRecordWriter writer, List<Tuple> tuples, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            for (Tuple value : tuples) {
+                String itemName = value.getString(0);
+                int itemHash = SimpleDBUtils.getHash(itemName);
+                Map<String, String> attributes = writer.makeAttributes(value, itemHash);
+                _sink += SimpleDBUtils.getShardIndex(itemHash, NUM_SHARDS) + attributes.size();
+            }
+        }
+    }
+    
+    private static void runTupleEntry(Fields fields, String itemFieldName, List<Tuple> tuples, int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            for (Tuple value : tuples) {
+                TupleEntry entry = new TupleEntry(fields, value);
+                
+                String itemName = null;
+                Map<String, String> attributes = new HashMap<String, String>();
+                for (int j = 0; j < fields.size(); j++) {
+                    String fieldName = fields.get(j).toString();
+                    String fieldValue = entry.getString(fieldName);
+                    
+                    if (fieldName.equals(itemFieldName)) {
+                        itemName = fieldValue;
+                        
+                        int hash = SimpleDBUtils.joaat_hash(itemName.getBytes("UTF-8"));
+                        String itemHash = (hash < 0) ? String.format("0%010d", Math.abs(hash)) : String.format("1%010d", hash);
+                        attributes.put(SimpleDBUtils.ITEM_HASH_ATTR_NAME, itemHash);
+                    } else if (fieldValue != null) {
+                        attributes.put(fieldName, fieldValue);
+                    }
+                }
+                
+                _sink += SimpleDBUtils.getShardIndex(SimpleDBUtils.joaat_hash(itemName.getBytes("UTF-8")), NUM_SHARDS) + attributes.size();
+            }
+        }
+    }
+    
+    /**
+     * Return the number of bytes allocated so far by the current thread, or -1 if the JVM
+     * doesn't support this (it's a com.sun.management extension).
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        
+        return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    private static void report(String name, long startTime, long startBytes) {
+        long endBytes = getAllocatedBytes();
+        double numTuples = (double)NUM_TUPLES * TIMED_ITERATIONS;
+        double nsPerTuple = (System.nanoTime() - startTime) / numTuples;
+        
+        if ((startBytes < 0) || (endBytes < 0)) {
+            System.out.println(String.format("%s: %.1f ns/tuple", name, nsPerTuple));
+        } else {
+            System.out.println(String.format("%s: %.1f ns/tuple, %.1f bytes/tuple", name, nsPerTuple, (endBytes - startBytes) / numTuples));
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        String[] fieldNames = new String[NUM_FIELDS];
+        for (int i = 0; i < NUM_FIELDS; i++) {
+            fieldNames[i] = "field" + i;
+        }
+        
+        Fields fields = new Fields(fieldNames);
+        String itemFieldName = fieldNames[0];
+        
+        SimpleDBConfiguration sdbConf = new SimpleDBConfiguration(new JobConf());
+        sdbConf.setDomainName("table");
+        sdbConf.setNumShards(NUM_SHARDS);
+        sdbConf.setSchemeFields(fields);
+        sdbConf.setItemFieldName(itemFieldName);
+        sdbConf.setSdbHost("localhost");
+        sdbConf.setAccessKeyId("accessKey");
+        sdbConf.setSecretAccessKey("secretKey");
+        
+        SimpleDBRecordWriter writer = new SimpleDBRecordWriter(sdbConf, "benchmark", null);
+        List<Tuple> tuples = makeTuples();
+        
+        runPlan(writer, tuples, WARMUP_ITERATIONS);
+        runTupleEntry(fields, itemFieldName, tuples, WARMUP_ITERATIONS);
+        
+        long startTime = System.nanoTime();
+        long startBytes = getAllocatedBytes();
+        runPlan(writer, tuples, TIMED_ITERATIONS);
+        report("Field plan", startTime, startBytes);
+        
+        startTime = System.nanoTime();
+        startBytes = getAllocatedBytes();
+        runTupleEntry(fields, itemFieldName, tuples, TIMED_ITERATIONS);
+        report("TupleEntry", startTime, startBytes);
+        
+        writer.close(null);
+        System.out.println(_sink == 0 ? "" : "Done");
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+import com.bixolabs.aws.AWSException;
+import com.bixolabs.aws.HttpException;
+import com.bixolabs.aws.IHttpHandler;
+
+
+public class SimpleDBRecordWriterTest {
+    
+    private static final String SUCCESS_RESPONSE = "<BatchPutAttributesResponse><ResponseMetadata><RequestId>1</RequestId></ResponseMetadata></BatchPutAttributesResponse>";
+    
+    /**
+     * Handler for batch put requests that rejects any batch containing the item named "bad"
+     * with <errorCode>, and fails the first <numFailures> requests with a 503 error.
+     */
+    private static class BatchPutHttpHandler implements IHttpHandler {
+        private String _errorCode;
+        private int _numFailures;
+        private int _numRequests = 0;
+        private Set<String> _itemsWritten = new HashSet<String>();
+        
+        public BatchPutHttpHandler(String errorCode, int numFailures) {
+            _errorCode = errorCode;
+            _numFailures = numFailures;
+        }
+        
+        public synchronized int getNumRequests() {
+            return _numRequests;
+        }
+        
+        public synchronized Set<String> getItemsWritten() {
+            return new HashSet<String>(_itemsWritten);
+        }
+        
+        @Override
+        public String get(URL url) throws IOException, HttpException, InterruptedException {
+            throw new IOException("Unexpected get");
+        }
+        
+        @Override
+        public synchronized String post(URL url, Map<String, String> params) throws IOException, HttpException, InterruptedException {
+            assertEquals("BatchPutAttributes", params.get("Action"));
+            _numRequests += 1;
+            
+            if (_numRequests <= _numFailures) {
+                throw new HttpException(503, makeError("ServiceUnavailable", "Service is busy"));
+            }
+            
+            Set<String> itemNames = new HashSet<String>();
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                if (param.getKey().endsWith(".ItemName")) {
+                    itemNames.add(param.getValue());
+                }
+            }
+            
+            if ((_errorCode != null) && (itemNames.contains("bad") || _errorCode.equals(AWSException.NO_SUCH_DOMAIN))) {
+                throw new HttpException(400, makeError(_errorCode, "Request was rejected"));
+            }
+            
+            _itemsWritten.addAll(itemNames);
+            return SUCCESS_RESPONSE;
+        }
+        
+        private static String makeError(String code, String message) {
+            return String.format("<Response><Errors><Error><Code>%s</Code><Message>%s</Message></Error></Errors><RequestID>1</RequestID></Response>", code, message);
+        }
+    }
+    
+    private static SimpleDBConfiguration makeConf(String deadLetterDir) {
+        SimpleDBConfiguration sdbConf = new SimpleDBConfiguration(new JobConf());
+        sdbConf.setDomainName("table");
+        sdbConf.setNumShards(1);
+        sdbConf.setSchemeFields(new Fields("key", "value"));
+        sdbConf.setItemFieldName("key");
+        sdbConf.setSdbHost("localhost");
+        sdbConf.setAccessKeyId("accessKey");
+        sdbConf.setSecretAccessKey("secretKey");
+        if (deadLetterDir != null) {
+            sdbConf.setDeadLetterDir(deadLetterDir);
+        }
+        
+        return sdbConf;
+    }
+    
+    private static void writeItems(SimpleDBRecordWriter writer, int numItems, boolean includeBad) throws IOException {
+        for (int i = 0; i < numItems; i++) {
+            writer.write(NullWritable.get(), new Tuple("item-" + i, "value-" + i));
+            if (includeBad && (i == numItems / 2)) {
+                writer.write(NullWritable.get(), new Tuple("bad", "value"));
+            }
+        }
+    }
+    
+    private static int countDeadLetters(JobConf conf, String deadLetterDir) throws IOException {
+        Path dirPath = new Path(deadLetterDir);
+        FileSystem fs = dirPath.getFileSystem(conf);
+        
+        int result = 0;
+        for (FileStatus status : fs.listStatus(dirPath)) {
+            if (status.getPath().getName().endsWith(".crc")) {
+                continue;
+            }
+            
+            BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                assertTrue(line.startsWith("table-1-of-1\tbad\t"));
+                result += 1;
+            }
+            
+            in.close();
+        }
+        
+        return result;
+    }
+    
+    @Test
+    public void testBisectingBadItem() throws Exception {
+        final String deadLetterDir = "build/test/SimpleDBRecordWriterTest/testBisectingBadItem/deadletters";
+        SimpleDBConfiguration sdbConf = makeConf(deadLetterDir);
+        FileSystem.getLocal(sdbConf.getJobConf()).delete(new Path(deadLetterDir), true);
+        
+        BatchPutHttpHandler handler = new BatchPutHttpHandler("InvalidParameterValue", 0);
+        SimpleDBRecordWriter writer = new SimpleDBRecordWriter(sdbConf, "part-00000", null, handler);
+        writeItems(writer, 20, true);
+        writer.close(null);
+        
+        // Every good item gets written, and the bad one winds up in the dead letter file.
+        Set<String> itemsWritten = handler.getItemsWritten();
+        assertEquals(20, itemsWritten.size());
+        assertFalse(itemsWritten.contains("bad"));
+        assertEquals(1, countDeadLetters(sdbConf.getJobConf(), deadLetterDir));
+        
+        // One rejected batch of 21, then halves of 10/11, 5/6, 3/3, 1/2, and finally 1/1.
+        assertEquals(11, handler.getNumRequests());
+    }
+    
+    @Test
+    public void testRequestErrorIsNotBisected() throws Exception {
+        final String deadLetterDir = "build/test/SimpleDBRecordWriterTest/testRequestErrorIsNotBisected/deadletters";
+        SimpleDBConfiguration sdbConf = makeConf(deadLetterDir);
+        FileSystem.getLocal(sdbConf.getJobConf()).delete(new Path(deadLetterDir), true);
+        
+        BatchPutHttpHandler handler = new BatchPutHttpHandler(AWSException.NO_SUCH_DOMAIN, 0);
+        SimpleDBRecordWriter writer = new SimpleDBRecordWriter(sdbConf, "part-00000", null, handler);
+        writeItems(writer, 10, false);
+        
+        // A missing domain has nothing to do with the items, so the task has to fail, even
+        // though bad items are being saved.
+        try {
+            writer.close(null);
+            fail("Should have thrown exception");
+        } catch (IOException e) {
+            // expected
+        }
+        
+        assertEquals(1, handler.getNumRequests());
+        assertTrue(handler.getItemsWritten().isEmpty());
+    }
+    
+    @Test
+    public void testRetryingBusyService() throws Exception {
+        BatchPutHttpHandler handler = new BatchPutHttpHandler(null, 2);
+        SimpleDBRecordWriter writer = new SimpleDBRecordWriter(makeConf(null), "part-00000", null, handler);
+        writeItems(writer, 10, false);
+        writer.close(null);
+        
+        // The batch gets retried (via the executor's timer) until it succeeds.
+        assertEquals(3, handler.getNumRequests());
+        assertEquals(10, handler.getItemsWritten().size());
+    }
+    
+    @Test
+    public void testItemErrors() throws Exception {
+        assertTrue(SimpleDBRecordWriter.isItemError(new AWSException(400, "InvalidParameterValue", "Value (xxx) for parameter Value is invalid.")));
+        assertTrue(SimpleDBRecordWriter.isItemError(new AWSException(400, "NumberItemAttributesExceeded", "Too many attributes in this item")));
+        
+        assertFalse(SimpleDBRecordWriter.isItemError(new AWSException(400, AWSException.NO_SUCH_DOMAIN, "The specified domain does not exist.")));
+        assertFalse(SimpleDBRecordWriter.isItemError(new AWSException(400, "MissingParameter", "The request must contain the parameter DomainName")));
+        assertFalse(SimpleDBRecordWriter.isItemError(new AWSException(400, "InvalidParameterValue", "Value (xxx) for parameter DomainName is invalid.")));
+        assertFalse(SimpleDBRecordWriter.isItemError(new AWSException(503, "ServiceUnavailable", "Service is busy")));
+    }
+}
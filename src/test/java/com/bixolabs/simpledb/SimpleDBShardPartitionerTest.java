@@ -0,0 +1,91 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import cascading.tuple.Tuple;
+
+
+public class SimpleDBShardPartitionerTest {
+
+    private static SimpleDBShardPartitioner makePartitioner(int numShards, int keyPosition, int numReducers) {
+        Map<Object, Object> properties = new HashMap<Object, Object>();
+        SimpleDBShardPartitioner.setProperties(properties, numShards, keyPosition, numReducers);
+        
+        JobConf conf = new JobConf();
+        for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+            conf.set(entry.getKey().toString(), entry.getValue().toString());
+        }
+        
+        assertEquals(SimpleDBShardPartitioner.class, conf.getPartitionerClass());
+        assertEquals(numReducers, conf.getNumReduceTasks());
+        
+        SimpleDBShardPartitioner result = new SimpleDBShardPartitioner();
+        result.configure(conf);
+        return result;
+    }
+    
+    @Test
+    public void testOneReducerPerShard() {
+        SimpleDBShardPartitioner partitioner = makePartitioner(4, 0, 4);
+        
+        for (int i = 0; i < 100; i++) {
+            String itemName = "item-" + i;
+            assertEquals(SimpleDBUtils.getShardIndex(itemName, 4), partitioner.getPartition(new Tuple(itemName), new Tuple(), 4));
+        }
+    }
+    
+    @Test
+    public void testSettingStepConf() {
+        JobConf conf = new JobConf();
+        conf.setNumReduceTasks(1);
+        SimpleDBShardPartitioner.setConf(conf, 4, 0, 4);
+        assertEquals(SimpleDBShardPartitioner.class, conf.getPartitionerClass());
+        assertEquals(4, conf.getNumReduceTasks());
+        
+        // A map-only step stays that way.
+        conf = new JobConf();
+        conf.setNumReduceTasks(0);
+        SimpleDBShardPartitioner.setConf(conf, 4, 0, 4);
+        assertEquals(0, conf.getNumReduceTasks());
+    }
+    
+    @Test
+    public void testShardsStayTogether() {
+        SimpleDBShardPartitioner partitioner = makePartitioner(6, 1, 3);
+        
+        // Every item in a shard goes to the same reducer.
+        int[] shardPartitions = new int[] { -1, -1, -1, -1, -1, -1 };
+        for (int i = 0; i < 200; i++) {
+            String itemName = "item-" + i;
+            int shardIndex = SimpleDBUtils.getShardIndex(itemName, 6);
+            int partition = partitioner.getPartition(new Tuple("key", itemName), new Tuple(), 3);
+            
+            if (shardPartitions[shardIndex] == -1) {
+                shardPartitions[shardIndex] = partition;
+            } else {
+                assertEquals(shardPartitions[shardIndex], partition);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.bixolabs.aws.HttpException;
+import com.bixolabs.aws.IHttpHandler;
+import com.bixolabs.aws.SimpleDB;
+
+
+public class SimpleDBSizeEstimatorTest {
+
+    /**
+     * Handler that returns the next count from a list for each count request, and
+     * keeps track of the select expressions it was asked for.
+     */
+    private static class CountingHttpHandler implements IHttpHandler {
+        private int[] _counts;
+        private int _numRequests = 0;
+        private List<String> _expressions = new ArrayList<String>();
+
+        public CountingHttpHandler(int... counts) {
+            _counts = counts;
+        }
+
+        public List<String> getExpressions() {
+            return _expressions;
+        }
+
+        @Override
+        public String get(URL url) throws IOException, HttpException, InterruptedException {
+            for (String param : url.getQuery().split("&")) {
+                String[] pieces = param.split("=", 2);
+                if (pieces[0].equals("SelectExpression")) {
+                    _expressions.add(URLDecoder.decode(pieces[1], "UTF-8"));
+                }
+            }
+
+            int count = _counts[_numRequests++ % _counts.length];
+            return String.format("<SelectResponse><SelectResult><Item><Name>Domain</Name><Attribute><Name>Count</Name><Value>%d</Value></Attribute></Item></SelectResult></SelectResponse>", count);
+        }
+
+        @Override
+        public String post(URL url, Map<String, String> params) throws IOException, HttpException, InterruptedException {
+            throw new IOException("Unexpected post");
+        }
+    }
+
+    @Test
+    public void testExtrapolation() throws Exception {
+        CountingHttpHandler handler = new CountingHttpHandler(0, 10, 20, 30);
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", handler);
+        SimpleDBSizeEstimator estimator = new SimpleDBSizeEstimator(sdb, 8, 4, new Random(1L));
+
+        SimpleDBSizeEstimator.Estimate estimate = estimator.estimate("table-2-of-3", 3, "`a` = 'b'");
+
+        // Mean of 15 per slice, times 8 slices.
+        assertEquals(120, estimate.getNumItems());
+
+        // 1.96 * 8 * sqrt(fpc * variance / n), where fpc = 4/7 and variance = 500/3
+        assertEquals(77, estimate.getErrorBound());
+
+        // Each request should be for a different slice, and include the query.
+        List<String> expressions = handler.getExpressions();
+        assertEquals(4, expressions.size());
+        assertEquals(4, new HashSet<String>(expressions).size());
+        for (String expression : expressions) {
+            assertTrue(expression.startsWith("select count(*) from `table-2-of-3` where "));
+            assertTrue(expression.contains("`a` = 'b'"));
+            assertTrue(expression.contains(SimpleDBUtils.ITEM_HASH_ATTR_NAME));
+        }
+    }
+
+    @Test
+    public void testUniformSlices() throws Exception {
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", new CountingHttpHandler(5));
+        SimpleDBSizeEstimator estimator = new SimpleDBSizeEstimator(sdb, 64, 4, new Random(1L));
+
+        // No variance between the samples means no uncertainty in the estimate.
+        SimpleDBSizeEstimator.Estimate estimate = estimator.estimate("table-1-of-1", 1, "");
+        assertEquals(5 * 64, estimate.getNumItems());
+        assertEquals(0, estimate.getErrorBound());
+    }
+
+    @Test
+    public void testNoMatchesInSamples() throws Exception {
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", new CountingHttpHandler(0));
+        SimpleDBSizeEstimator estimator = new SimpleDBSizeEstimator(sdb, 64, 4, new Random(1L));
+
+        // The samples could have missed a few matches, so the bound can't be zero.
+        SimpleDBSizeEstimator.Estimate estimate = estimator.estimate("table-1-of-1", 1, "`a` = 'b'");
+        assertEquals(0, estimate.getNumItems());
+        assertEquals(3 * 64 / 4, estimate.getErrorBound());
+    }
+
+    @Test
+    public void testSamplingEverySlice() throws Exception {
+        SimpleDB sdb = new SimpleDB("localhost", "accessKey", "secretKey", new CountingHttpHandler(1, 2, 3, 4));
+        SimpleDBSizeEstimator estimator = new SimpleDBSizeEstimator(sdb, 4, 4, new Random(1L));
+
+        // If we sample every slice, the count is exact.
+        SimpleDBSizeEstimator.Estimate estimate = estimator.estimate("table-1-of-2", 2, "`a` = 'b'");
+        assertEquals(10, estimate.getNumItems());
+        assertEquals(0, estimate.getErrorBound());
+    }
+
+    @Test
+    public void testInvalidNumSamples() throws Exception {
+        try {
+            new SimpleDBSizeEstimator(null, 4, 5, new Random());
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+
+public class SimpleDBSnapshotTest {
+
+    private static Map<String, String[]> makeItem(String itemName, String... values) {
+        Map<String, String[]> result = new HashMap<String, String[]>();
+        result.put("ItemName", new String[] { itemName });
+        result.put("value", values);
+        return result;
+    }
+    
+    @Test
+    public void testSavingAndReading() throws Exception {
+        final String snapshotDir = "build/test/SimpleDBSnapshotTest/testSavingAndReading/snapshots";
+        JobConf conf = new JobConf();
+        List<String> attributes = Arrays.asList("value");
+        
+        SimpleDBSnapshot.Writer writer = SimpleDBSnapshot.createWriter(conf, snapshotDir, "table-1-of-1", "", attributes, "1000");
+        writer.write(makeItem("item-1", "a"));
+        writer.write(makeItem("item-2", "b", "c"));
+        writer.commit();
+        
+        SimpleDBSnapshot.Reader reader = SimpleDBSnapshot.openReader(conf, snapshotDir, "table-1-of-1", "", attributes, "1000");
+        assertNotNull(reader);
+        
+        Map<String, String[]> item = reader.next();
+        assertEquals("item-1", item.get("ItemName")[0]);
+        assertEquals("a", item.get("value")[0]);
+        
+        item = reader.next();
+        assertEquals("item-2", item.get("ItemName")[0]);
+        assertEquals(2, item.get("value").length);
+        assertEquals("c", item.get("value")[1]);
+        
+        assertNull(reader.next());
+        reader.close();
+        
+        // A changed shard, or a different query or set of attributes, can't use the snapshot.
+        assertNull(SimpleDBSnapshot.openReader(conf, snapshotDir, "table-1-of-1", "", attributes, "1001"));
+        assertNull(SimpleDBSnapshot.openReader(conf, snapshotDir, "table-1-of-1", "`value` = 'a'", attributes, "1000"));
+        assertNull(SimpleDBSnapshot.openReader(conf, snapshotDir, "table-1-of-1", "", null, "1000"));
+    }
+    
+    @Test
+    public void testAbortingSnapshot() throws Exception {
+        final String snapshotDir = "build/test/SimpleDBSnapshotTest/testAbortingSnapshot/snapshots";
+        JobConf conf = new JobConf();
+        FileSystem.getLocal(conf).delete(new Path(snapshotDir), true);
+        
+        SimpleDBSnapshot.Writer writer = SimpleDBSnapshot.createWriter(conf, snapshotDir, "table-1-of-1", "", null, "1000");
+        writer.write(makeItem("item-1", "a"));
+        writer.abort();
+        
+        assertNull(SimpleDBSnapshot.openReader(conf, snapshotDir, "table-1-of-1", "", null, "1000"));
+        assertEquals(0, FileSystem.getLocal(conf).listStatus(new Path(snapshotDir)).length);
+    }
+    
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final String snapshotDir = "build/test/SimpleDBSnapshotTest/testConcurrentWriters/snapshots";
+        JobConf conf = new JobConf();
+        FileSystem.getLocal(conf).delete(new Path(snapshotDir), true);
+        
+        // Two readers of the same shard shouldn't clobber each other's temp files.
+        SimpleDBSnapshot.Writer writer1 = SimpleDBSnapshot.createWriter(conf, snapshotDir, "table-1-of-1", "", null, "1000");
+        SimpleDBSnapshot.Writer writer2 = SimpleDBSnapshot.createWriter(conf, snapshotDir, "table-1-of-1", "", null, "1000");
+        writer1.write(makeItem("item-1", "a"));
+        writer2.write(makeItem("item-1", "a"));
+        writer2.write(makeItem("item-2", "b"));
+        writer1.write(makeItem("item-2", "b"));
+        writer1.commit();
+        writer2.commit();
+        
+        SimpleDBSnapshot.Reader reader = SimpleDBSnapshot.openReader(conf, snapshotDir, "table-1-of-1", "", null, "1000");
+        assertEquals("item-1", reader.next().get("ItemName")[0]);
+        assertEquals("item-2", reader.next().get("ItemName")[0]);
+        assertNull(reader.next());
+        reader.close();
+    }
+}
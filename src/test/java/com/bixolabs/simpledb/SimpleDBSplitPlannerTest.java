@@ -0,0 +1,307 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import cascading.tuple.Fields;
+
+import com.bixolabs.aws.SimpleDB;
+
+
+public class SimpleDBSplitPlannerTest {
+
+    private static Map<String, String> makeMetadata(int itemCount, long valueBytes) {
+        Map<String, String> result = new HashMap<String, String>();
+        result.put(SimpleDB.ITEM_COUNT_METADATA, "" + itemCount);
+        result.put(SimpleDB.ATTRIBUTE_VALUES_SIZE_METADATA, "" + valueBytes);
+        return result;
+    }
+    
+    private static SimpleDBConfiguration makeConf(String query, int selectLimit) {
+        SimpleDBConfiguration sdbConf = new SimpleDBConfiguration(new JobConf());
+        sdbConf.setDomainName("table");
+        sdbConf.setNumShards(2);
+        sdbConf.setQuery(query);
+        sdbConf.setSelectLimit(selectLimit);
+        return sdbConf;
+    }
+    
+    @Test
+    public void testMetadataSplits() throws Exception {
+        SimpleDB sdb = mock(SimpleDB.class);
+        when(sdb.domainMetaData("table-1-of-2")).thenReturn(makeMetadata(0, 0));
+        when(sdb.domainMetaData("table-2-of-2")).thenReturn(makeMetadata(100, 5000));
+        
+        List<Map<String, String[]>> countResult = new ArrayList<Map<String, String[]>>();
+        Map<String, String[]> count = new HashMap<String, String[]>();
+        count.put("Count", new String[] { "0" });
+        countResult.add(count);
+        when(sdb.select(anyString(), (String)isNull())).thenReturn(countResult);
+        
+        List<SimpleDBInputSplit> splits = new SimpleDBSplitPlanner(sdb, makeConf("", SimpleDBUtils.NO_SELECT_LIMIT)).getSplits();
+        
+        // Empty shard gets skipped (once a count confirms it), and the other is sized from metadata.
+        assertEquals(1, splits.size());
+        SimpleDBInputSplit split = splits.get(0);
+        assertEquals("table-2-of-2", split.getLocations()[0]);
+        assertEquals(100, split.getNumItems());
+        assertEquals(5000, split.getLength());
+        assertEquals(SimpleDBUtils.NO_SELECT_LIMIT, split.getSelectLimit());
+        verify(sdb).select("select count(*) from `table-1-of-2`", null);
+        verify(sdb, never()).select(startsWith("select count(*) from `table-2-of-2`"), anyString());
+    }
+    
+    @Test
+    public void testStaleEmptyMetadata() throws Exception {
+        // Metadata hasn't caught up with items that were just written to the first shard.
+        SimpleDB sdb = mock(SimpleDB.class);
+        when(sdb.domainMetaData("table-1-of-2")).thenReturn(makeMetadata(0, 0));
+        when(sdb.domainMetaData("table-2-of-2")).thenReturn(makeMetadata(100, 5000));
+        
+        List<Map<String, String[]>> countResult = new ArrayList<Map<String, String[]>>();
+        Map<String, String[]> count = new HashMap<String, String[]>();
+        count.put("Count", new String[] { "25" });
+        countResult.add(count);
+        when(sdb.select(anyString(), (String)isNull())).thenReturn(countResult);
+        
+        List<SimpleDBInputSplit> splits = new SimpleDBSplitPlanner(sdb, makeConf("", SimpleDBUtils.NO_SELECT_LIMIT)).getSplits();
+        assertEquals(2, splits.size());
+        assertEquals("table-1-of-2", splits.get(0).getLocations()[0]);
+        assertEquals(25, splits.get(0).getNumItems());
+        
+        // Same thing when the shards get a share of a select limit.
+        splits = new SimpleDBSplitPlanner(sdb, makeConf("", 500)).getSplits();
+        assertEquals(2, splits.size());
+        assertEquals(25, splits.get(0).getSelectLimit());
+        assertEquals(100, splits.get(1).getSelectLimit());
+    }
+    
+    @Test
+    public void testLimitedMetadataSplits() throws Exception {
+        SimpleDB sdb = mock(SimpleDB.class);
+        when(sdb.domainMetaData("table-1-of-2")).thenReturn(makeMetadata(10, 1000));
+        when(sdb.domainMetaData("table-2-of-2")).thenReturn(makeMetadata(100, 5000));
+        
+        List<SimpleDBInputSplit> splits = new SimpleDBSplitPlanner(sdb, makeConf("", 30)).getSplits();
+        
+        // Quotas are proportional to shard size, and sum to the limit.
+        assertEquals(2, splits.size());
+        assertEquals(3, splits.get(0).getNumItems());
+        assertEquals(3, splits.get(0).getSelectLimit());
+        assertEquals(300, splits.get(0).getLength());
+        
+        assertEquals(27, splits.get(1).getNumItems());
+        assertEquals(27, splits.get(1).getSelectLimit());
+        assertEquals(1350, splits.get(1).getLength());
+        
+        // If the limit is more than what we've got, each shard gets read completely.
+        splits = new SimpleDBSplitPlanner(sdb, makeConf("", 500)).getSplits();
+        assertEquals(10, splits.get(0).getSelectLimit());
+        assertEquals(100, splits.get(1).getSelectLimit());
+    }
+    
+    @Test
+    public void testAllocatingQuotas() throws Exception {
+        int[] quotas = SimpleDBSplitPlanner.allocateQuotas(new long[] { 0, 1, 50, 50 }, 10, true);
+        assertEquals(0, quotas[0]);
+        assertEquals(10, quotas[0] + quotas[1] + quotas[2] + quotas[3]);
+        assertTrue(quotas[1] <= 1);
+        assertTrue(quotas[2] >= 4);
+        assertTrue(quotas[3] >= 4);
+    }
+    
+    @Test
+    public void testAllocatingEstimatedQuotas() throws Exception {
+        // With estimates, a shard estimated at zero still gets some of the limit.
+        int[] quotas = SimpleDBSplitPlanner.allocateQuotas(new long[] { 0, 1000, 1000 }, 10, false);
+        assertEquals(1, quotas[0]);
+        assertEquals(10, quotas[0] + quotas[1] + quotas[2]);
+        
+        // And the entire limit gets used, even when the estimates add up to less than that.
+        quotas = SimpleDBSplitPlanner.allocateQuotas(new long[] { 0, 10, 30 }, 100, false);
+        assertTrue(quotas[0] >= 1);
+        assertTrue(quotas[2] > quotas[1]);
+        assertEquals(100, quotas[0] + quotas[1] + quotas[2]);
+    }
+    
+    @Test
+    public void testLimitedEstimatedSplits() throws Exception {
+        // Every count comes back as zero, so every shard is estimated as empty.
+        SimpleDB sdb = mock(SimpleDB.class);
+        List<Map<String, String[]>> countResult = new ArrayList<Map<String, String[]>>();
+        Map<String, String[]> count = new HashMap<String, String[]>();
+        count.put("Count", new String[] { "0" });
+        countResult.add(count);
+        when(sdb.select(anyString(), (String)isNull())).thenReturn(countResult);
+        
+        SimpleDBConfiguration sdbConf = makeConf("`a` = 'b'", 1000);
+        sdbConf.setEstimateSplitSizes(true);
+        List<SimpleDBInputSplit> splits = new SimpleDBSplitPlanner(sdb, sdbConf).getSplits();
+        
+        // Sampling could have missed matches, so neither shard gets skipped, and the entire
+        // limit gets handed out.
+        assertEquals(2, splits.size());
+        assertEquals(1000, splits.get(0).getSelectLimit() + splits.get(1).getSelectLimit());
+    }
+    
+    @Test
+    public void testConcurrentSplitForSmallLimit() throws Exception {
+        SimpleDB sdb = mock(SimpleDB.class);
+        SimpleDBConfiguration sdbConf = makeConf("`a` = 'b'", 20);
+        sdbConf.setConcurrentReadLimit(100);
+        
+        List<InputSplit> splits = new SimpleDBSplitPlanner(sdb, sdbConf).getInputSplits();
+        assertEquals(1, splits.size());
+        
+        SimpleDBMultiInputSplit split = (SimpleDBMultiInputSplit)splits.get(0);
+        assertTrue(split.isConcurrent());
+        assertEquals(20, split.getSelectLimit());
+        assertEquals(2, split.getLocations().length);
+        
+        // We shouldn't have made any requests to size the shards.
+        verify(sdb, never()).domainMetaData(anyString());
+        verify(sdb, never()).select(anyString(), anyString());
+    }
+    
+    @Test
+    public void testQueryUsesCount() throws Exception {
+        SimpleDB sdb = mock(SimpleDB.class);
+        List<Map<String, String[]>> countResult = new ArrayList<Map<String, String[]>>();
+        Map<String, String[]> count = new HashMap<String, String[]>();
+        count.put("Count", new String[] { "7" });
+        countResult.add(count);
+        when(sdb.select(anyString(), (String)isNull())).thenReturn(countResult);
+        
+        List<SimpleDBInputSplit> splits = new SimpleDBSplitPlanner(sdb, makeConf("`a` = \"b\"", SimpleDBUtils.NO_SELECT_LIMIT)).getSplits();
+        
+        assertEquals(2, splits.size());
+        assertEquals(7, splits.get(0).getNumItems());
+        verify(sdb, never()).domainMetaData(anyString());
+    }
+    
+    @Test
+    public void testResumingFromCheckpoint() throws Exception {
+        final String checkpointDir = "build/test/SimpleDBSplitPlannerTest/testResumingFromCheckpoint/checkpoints";
+        
+        SimpleDB sdb = mock(SimpleDB.class);
+        when(sdb.domainMetaData("table-1-of-2")).thenReturn(makeMetadata(10, 1000));
+        when(sdb.domainMetaData("table-2-of-2")).thenReturn(makeMetadata(100, 5000));
+        
+        SimpleDBConfiguration sdbConf = makeConf("", SimpleDBUtils.NO_SELECT_LIMIT);
+        sdbConf.setCheckpointDir(checkpointDir);
+        SimpleDBCheckpoint.delete(sdbConf.getJobConf(), checkpointDir, "table-1-of-2");
+        SimpleDBCheckpoint.delete(sdbConf.getJobConf(), checkpointDir, "table-2-of-2");
+        String selectStatement = SimpleDBUtils.makeSelectStatement("table-2-of-2", "", SimpleDBUtils.NO_SELECT_LIMIT);
+        SimpleDBCheckpoint.write(sdbConf.getJobConf(), checkpointDir, "table-2-of-2", "attempt_201010180000_0001_m_000001_0", new SimpleDBCheckpoint(selectStatement, "token", 50));
+        SimpleDBCheckpoint.write(sdbConf.getJobConf(), checkpointDir, "table-2-of-2", "attempt_201010180000_0001_m_000001_1", new SimpleDBCheckpoint(selectStatement, "token2", 20));
+        
+        // Resuming from a previous job's checkpoints has to be turned on.
+        List<SimpleDBInputSplit> splits = new SimpleDBSplitPlanner(sdb, sdbConf).getSplits();
+        assertNull(splits.get(1).getStartToken());
+        
+        // We should resume from whichever attempt got furthest.
+        sdbConf.setResumeFailedJobs(true);
+        splits = new SimpleDBSplitPlanner(sdb, sdbConf).getSplits();
+        assertEquals(2, splits.size());
+        assertNull(splits.get(0).getStartToken());
+        assertEquals("token", splits.get(1).getStartToken());
+        assertEquals(50, splits.get(1).getStartItemCount());
+        
+        // But we can limit which attempts' checkpoints get used.
+        SimpleDBCheckpoint checkpoint = SimpleDBCheckpoint.read(sdbConf.getJobConf(), checkpointDir, "table-2-of-2", Arrays.asList("attempt_201010180000_0001_m_000001_1"), selectStatement);
+        assertEquals("token2", checkpoint.getNextToken());
+        assertNull(SimpleDBCheckpoint.read(sdbConf.getJobConf(), checkpointDir, "table-2-of-2", new ArrayList<String>(), selectStatement));
+        
+        // A checkpoint from a different query shouldn't be used.
+        sdbConf.setQuery("`a` = 'b'");
+        assertNull(SimpleDBCheckpoint.read(sdbConf.getJobConf(), checkpointDir, "table-2-of-2", null,
+                        SimpleDBUtils.makeSelectStatement("table-2-of-2", sdbConf.getQuery(), SimpleDBUtils.NO_SELECT_LIMIT)));
+        
+        // Nor should one that was selecting different attributes, as SimpleDB would reject the token.
+        sdbConf.setQuery("");
+        sdbConf.setSchemeFields(new Fields("key", "value"));
+        sdbConf.setItemFieldName("key");
+        splits = new SimpleDBSplitPlanner(sdb, sdbConf).getSplits();
+        assertNull(splits.get(1).getStartToken());
+        
+        SimpleDBCheckpoint.delete(sdbConf.getJobConf(), checkpointDir, "table-2-of-2");
+    }
+    
+    @Test
+    public void testCombiningSmallSplits() throws Exception {
+        SimpleDBConfiguration sdbConf = makeConf("", SimpleDBUtils.NO_SELECT_LIMIT);
+        sdbConf.setCombineSplitItems(100);
+        SimpleDBSplitPlanner planner = new SimpleDBSplitPlanner(mock(SimpleDB.class), sdbConf);
+        
+        List<SimpleDBInputSplit> splits = new ArrayList<SimpleDBInputSplit>();
+        splits.add(new SimpleDBInputSplit(40, "table-1-of-5"));
+        splits.add(new SimpleDBInputSplit(500, "table-2-of-5"));
+        splits.add(new SimpleDBInputSplit(50, "table-3-of-5"));
+        splits.add(new SimpleDBInputSplit(30, "table-4-of-5"));
+        splits.add(new SimpleDBInputSplit(60, "table-5-of-5"));
+        
+        List<InputSplit> combined = planner.combineSplits(splits);
+        assertEquals(3, combined.size());
+        assertTrue(combined.get(0) instanceof SimpleDBInputSplit);
+        assertEquals("table-2-of-5", combined.get(0).getLocations()[0]);
+        
+        // Small shards get grouped in order, without exceeding the target.
+        SimpleDBMultiInputSplit multiSplit = (SimpleDBMultiInputSplit)combined.get(1);
+        assertEquals(2, multiSplit.getSplits().size());
+        assertEquals(90, multiSplit.getNumItems());
+        assertEquals("table-1-of-5", multiSplit.getLocations()[0]);
+        assertEquals("table-3-of-5", multiSplit.getLocations()[1]);
+        
+        multiSplit = (SimpleDBMultiInputSplit)combined.get(2);
+        assertEquals(90, multiSplit.getNumItems());
+        assertEquals("table-4-of-5", multiSplit.getLocations()[0]);
+        
+        // Make sure the combined split survives serialization.
+        DataOutputBuffer out = new DataOutputBuffer();
+        multiSplit.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        SimpleDBMultiInputSplit copy = new SimpleDBMultiInputSplit();
+        copy.readFields(in);
+        assertEquals(multiSplit.getLength(), copy.getLength());
+        assertEquals(90, copy.getNumItems());
+        assertEquals("table-5-of-5", copy.getLocations()[1]);
+        
+        // With combining disabled, we should get back what we passed in.
+        planner = new SimpleDBSplitPlanner(mock(SimpleDB.class), makeConf("", SimpleDBUtils.NO_SELECT_LIMIT));
+        assertEquals(5, planner.combineSplits(splits).size());
+    }
+}
@@ -80,6 +80,30 @@ public class SimpleDBTapTest {
         Assert.assertFalse(tap1.equals(tap3));
     }
     
+    @Test
+    public void testSchemeEquality() throws Exception {
+        SimpleDBScheme scheme1 = new SimpleDBScheme(new Fields("a"), new Fields("a"), "`a` > '0'");
+        SimpleDBScheme scheme2 = new SimpleDBScheme(new Fields("a"), new Fields("a"), "`a` > '0'");
+        Assert.assertEquals(scheme1, scheme2);
+        Assert.assertEquals(scheme1.hashCode(), scheme2.hashCode());
+        
+        // A sample of the items isn't the same source as all of them.
+        scheme2.setSampleFraction(0.1, 1L);
+        Assert.assertFalse(scheme1.equals(scheme2));
+        scheme1.setSampleFraction(0.1, 2L);
+        Assert.assertFalse(scheme1.equals(scheme2));
+        scheme1.setSampleFraction(0.1, 1L);
+        Assert.assertEquals(scheme1, scheme2);
+        
+        scheme2.setSelectLimit(100);
+        Assert.assertFalse(scheme1.equals(scheme2));
+        scheme1.setSelectLimit(100);
+        Assert.assertEquals(scheme1, scheme2);
+        
+        scheme2.setEstimateSplitSizes(true);
+        Assert.assertFalse(scheme1.equals(scheme2));
+    }
+    
     @Test
     public void testMaxThreads() throws Exception {
         final int numShards = 1;
@@ -92,6 +116,31 @@ public class SimpleDBTapTest {
         Assert.assertEquals(10, tap.getMaxThreads());
     }
     
+    @Test
+    public void testMaxThreadsPerShard() throws Exception {
+        // By default there's no per-shard cap on the number of threads.
+        SimpleDBConfiguration sdbConf = new SimpleDBConfiguration(new JobConf());
+        sdbConf.setMaxThreads(20);
+        Assert.assertEquals(20, sdbConf.getMaxThreadsPerShard());
+        sdbConf.setMaxThreadsPerShard(4);
+        Assert.assertEquals(4, sdbConf.getMaxThreadsPerShard());
+    }
+    
+    @Test
+    public void testInsertOnly() throws Exception {
+        SimpleDBScheme scheme = new SimpleDBScheme(new Fields("a"), new Fields("a"));
+        SimpleDBTap tap = new SimpleDBTap(scheme, "accessKey", "secretKey", "baseDomainName", 1, SinkMode.REPLACE);
+        
+        // Even with new domains, duplicate item names would get multi-valued attributes, so
+        // insert-only writes are never turned on implicitly.
+        Assert.assertFalse(tap.isInsertOnly());
+        
+        tap.setInsertOnly(true);
+        Assert.assertTrue(tap.isInsertOnly());
+        tap.setInsertOnly(false);
+        Assert.assertFalse(tap.isInsertOnly());
+    }
+    
     // TODO KKr - reenable when issue with Jetty failing is resolved.
     // @Test
     public void testTooBusyHandling() throws Exception {
@@ -15,7 +15,13 @@
  */
 package com.bixolabs.simpledb;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static junit.framework.Assert.*;
 
@@ -30,6 +36,43 @@ public class SimpleDBUtilsTest {
        assertEquals(11, out.length());
     }
     
+    @Test
+    public void testHashMatchesUTF8Bytes() throws Exception {
+        String[] itemNames = new String[] {
+            "",
+            "item-1",
+            "caf\u00e9",
+            "\u65e5\u672c\u8a9e",
+            "\ud83d\ude00 pair",
+            "unpaired \ud83d high",
+            "unpaired \ude00 low",
+            "trailing \ud83d",
+        };
+        
+        for (String itemName : itemNames) {
+            assertEquals(itemName, SimpleDBUtils.joaat_hash(itemName.getBytes("UTF-8")), SimpleDBUtils.getHash(itemName));
+        }
+    }
+    
+    @Test
+    public void testFormatItemHash() {
+        final String negativeFormat = "0%010d";
+        final String positiveFormat = "1%010d";
+        
+        int[] hashes = new int[] { 0, 1, -1, 12345, -12345, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 1 };
+        for (int hash : hashes) {
+            String expected = (hash < 0) ? String.format(negativeFormat, Math.abs(hash)) : String.format(positiveFormat, hash);
+            assertEquals(expected, SimpleDBUtils.formatItemHash(hash));
+        }
+        
+        for (int i = 0; i < 1000; i++) {
+            String itemName = "item-" + i;
+            int hash = SimpleDBUtils.getHash(itemName);
+            assertEquals(SimpleDBUtils.getItemHash(itemName), SimpleDBUtils.formatItemHash(hash));
+            assertEquals(SimpleDBUtils.getShardIndex(itemName, 7), SimpleDBUtils.getShardIndex(hash, 7));
+        }
+    }
+    
     @Test
     public void testRoundTripDomainNames() {
         final int numShards = 10;
@@ -40,4 +83,123 @@ public class SimpleDBUtilsTest {
             assertEquals(numShards, SimpleDBUtils.getShardCount(domainName));
         }
     }
+    
+    @Test
+    public void testShardHashRanges() {
+        final int numShards = 3;
+        List<List<String[]>> shardRanges = new ArrayList<List<String[]>>();
+        for (int i = 0; i < numShards; i++) {
+            long[] hashRange = SimpleDBUtils.getShardHashRange(i, numShards);
+            shardRanges.add(SimpleDBUtils.getItemHashRanges(hashRange[0], hashRange[1]));
+        }
+        
+        // Every item should have a hash that falls into the ranges for its shard.
+        for (int i = 0; i < 1000; i++) {
+            String itemName = "item-" + i;
+            String itemHash = SimpleDBUtils.getItemHash(itemName);
+            int shardIndex = SimpleDBUtils.getShardIndex(itemName, numShards);
+            
+            for (int j = 0; j < numShards; j++) {
+                boolean inRange = false;
+                for (String[] range : shardRanges.get(j)) {
+                    if ((itemHash.compareTo(range[0]) >= 0) && (itemHash.compareTo(range[1]) <= 0)) {
+                        inRange = true;
+                    }
+                }
+                
+                assertEquals(itemName + " in shard " + j, j == shardIndex, inRange);
+            }
+        }
+    }
+    
+    @Test
+    public void testSampleExpression() {
+        final String shardName = "table-2-of-3";
+        String expression = SimpleDBUtils.makeSampleExpression(shardName, 3, 0.1, 1L);
+        assertEquals(expression, SimpleDBUtils.makeSampleExpression(shardName, 3, 0.1, 1L));
+        assertFalse(expression.equals(SimpleDBUtils.makeSampleExpression(shardName, 3, 0.1, 2L)));
+        
+        // Make sure we stay under SimpleDB's limit of 20 comparisons per expression.
+        List<String[]> ranges = new ArrayList<String[]>();
+        Matcher m = Pattern.compile(">= '(\\d+)' and `[^`]+` <= '(\\d+)'").matcher(expression);
+        while (m.find()) {
+            ranges.add(new String[] { m.group(1), m.group(2) });
+        }
+        
+        assertTrue(ranges.size() > 0);
+        assertTrue(ranges.size() * 2 <= 14);
+        
+        // About 10% of the items in the shard should fall into the sample's ranges.
+        int numInShard = 0;
+        int numInSample = 0;
+        for (int i = 0; i < 30000; i++) {
+            String itemName = "item-" + i;
+            if (SimpleDBUtils.getShardIndex(itemName, 3) != 1) {
+                continue;
+            }
+            
+            numInShard += 1;
+            String itemHash = SimpleDBUtils.getItemHash(itemName);
+            for (String[] range : ranges) {
+                if ((itemHash.compareTo(range[0]) >= 0) && (itemHash.compareTo(range[1]) <= 0)) {
+                    numInSample += 1;
+                    break;
+                }
+            }
+        }
+        
+        double fraction = (double)numInSample / (double)numInShard;
+        assertTrue("Sample fraction was " + fraction, (fraction > 0.07) && (fraction < 0.13));
+    }
+    
+    @Test
+    public void testContentHash() {
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("a", "1");
+        attributes.put("b", "2");
+        String hash = SimpleDBUtils.getContentHash(attributes);
+        assertEquals(32, hash.length());
+        
+        // Our special attributes don't change the hash.
+        attributes.put(SimpleDBUtils.ITEM_HASH_ATTR_NAME, SimpleDBUtils.getItemHash("item"));
+        attributes.put(SimpleDBUtils.CONTENT_HASH_ATTR_NAME, hash);
+        assertEquals(hash, SimpleDBUtils.getContentHash(attributes));
+        
+        Map<String, String> other = new HashMap<String, String>();
+        other.put("b", "2");
+        other.put("a", "1");
+        assertEquals(hash, SimpleDBUtils.getContentHash(other));
+        
+        other.put("b", "3");
+        assertFalse(hash.equals(SimpleDBUtils.getContentHash(other)));
+        
+        // Make sure we can't get the same hash by moving text between names and values.
+        other.clear();
+        other.put("a1", "");
+        other.put("b", "2");
+        assertFalse(hash.equals(SimpleDBUtils.getContentHash(other)));
+    }
+    
+    @Test
+    public void testCombineExpressions() {
+        assertEquals("", SimpleDBUtils.combineExpressions(null, ""));
+        assertEquals("`a` = '1'", SimpleDBUtils.combineExpressions("`a` = '1'", null));
+        assertEquals("(`a` = '1') and (`b` = '2')", SimpleDBUtils.combineExpressions("`a` = '1'", "`b` = '2'"));
+    }
+    
+    @Test
+    public void testSelectStatements() {
+        assertEquals("select * from `d` where `a` = '1' limit 10", SimpleDBUtils.makeSelectStatement("d", "`a` = '1'", 10));
+        assertEquals("select `b`, `c` from `d`", SimpleDBUtils.makeSelectStatement("d", Arrays.asList("b", "c"), "", SimpleDBUtils.NO_SELECT_LIMIT));
+        assertEquals("select itemName() from `d`", SimpleDBUtils.makeSelectStatement("d", new ArrayList<String>(), null, SimpleDBUtils.NO_SELECT_LIMIT));
+        
+        // Too many unique attributes (including ones in the where clause) means we have to select everything.
+        List<String> attributes = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            attributes.add("attr" + i);
+        }
+        
+        assertTrue(SimpleDBUtils.makeSelectStatement("d", attributes, "`attr0` = '1'", SimpleDBUtils.NO_SELECT_LIMIT).startsWith("select `attr0`"));
+        assertTrue(SimpleDBUtils.makeSelectStatement("d", attributes, "`other` = '1'", SimpleDBUtils.NO_SELECT_LIMIT).startsWith("select * "));
+    }
 }
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class SimpleDBWriteBufferTest {
+
+    private static Map<String, String> makeAttributes(String... namesAndValues) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            result.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        
+        return result;
+    }
+    
+    @Test
+    public void testMergingWithinLinger() {
+        SimpleDBWriteBuffer buffer = new SimpleDBWriteBuffer(100);
+        buffer.add("item-1", makeAttributes("a", "1", "b", "1"), 0);
+        buffer.add("item-2", makeAttributes("a", "1"), 10);
+        buffer.add("item-1", makeAttributes("b", "2"), 20);
+        
+        assertEquals(2, buffer.size());
+        assertTrue(buffer.removeExpired(50).isEmpty());
+        
+        // Only the first item has been around long enough.
+        Map<String, Map<String, String>> expired = buffer.removeExpired(100);
+        assertEquals(1, expired.size());
+        Map<String, String> item = expired.get("item-1");
+        assertEquals("1", item.get("a"));
+        assertEquals("2", item.get("b"));
+        
+        assertEquals(1, buffer.removeAll().size());
+        assertEquals(0, buffer.size());
+    }
+    
+    @Test
+    public void testMaxItems() {
+        SimpleDBWriteBuffer buffer = new SimpleDBWriteBuffer(1000, 2);
+        buffer.add("item-1", makeAttributes("a", "1"), 0);
+        buffer.add("item-2", makeAttributes("a", "1"), 0);
+        buffer.add("item-3", makeAttributes("a", "1"), 0);
+        
+        Map<String, Map<String, String>> expired = buffer.removeExpired(0);
+        assertEquals(1, expired.size());
+        assertTrue(expired.containsKey("item-1"));
+        assertEquals(2, buffer.size());
+    }
+}
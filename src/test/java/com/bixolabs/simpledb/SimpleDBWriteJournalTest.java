@@ -0,0 +1,108 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+
+public class SimpleDBWriteJournalTest {
+
+    private static Map<String, Map<String, String>> makeBatch(String... itemNames) {
+        Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+        for (String itemName : itemNames) {
+            Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("value", itemName + "-value");
+            result.put(itemName, attributes);
+        }
+        
+        return result;
+    }
+    
+    @Test
+    public void testPendingBatches() throws Exception {
+        final String journalDir = "build/test/SimpleDBWriteJournalTest/testPendingBatches/journals";
+        final List<String> attemptIds = Collections.singletonList(TaskAttemptUtils.NO_ATTEMPT_ID);
+        JobConf conf = new JobConf();
+        
+        SimpleDBWriteJournal journal = SimpleDBWriteJournal.create(conf, journalDir, "part-00000", TaskAttemptUtils.NO_ATTEMPT_ID);
+        long id1 = journal.append("table-1-of-2", makeBatch("item-1", "item-2"));
+        journal.append("table-2-of-2", makeBatch("item-3"));
+        long id3 = journal.append("table-1-of-2", makeBatch("item-4"));
+        journal.markDone(id1);
+        journal.markDone(id3);
+        assertEquals(1, journal.getPendingBatches());
+        
+        // Simulate a task that died before everything was written.
+        journal.close(false);
+        
+        List<SimpleDBWriteJournal.Batch> pending = SimpleDBWriteJournal.readPending(conf, journalDir, "part-00000", attemptIds);
+        assertEquals(1, pending.size());
+        assertEquals("table-2-of-2", pending.get(0).getShardName());
+        assertEquals("item-3-value", pending.get(0).getItems().get("item-3").get("value"));
+        
+        // Starting a new journal replaces the old one.
+        journal = SimpleDBWriteJournal.create(conf, journalDir, "part-00000", TaskAttemptUtils.NO_ATTEMPT_ID);
+        assertEquals(0, SimpleDBWriteJournal.readPending(conf, journalDir, "part-00000", attemptIds).size());
+        journal.close(true);
+        
+        Path path = new Path(new Path(journalDir, "part-00000"), TaskAttemptUtils.NO_ATTEMPT_ID);
+        FileSystem fs = path.getFileSystem(conf);
+        assertFalse(fs.exists(path));
+    }
+    
+    @Test
+    public void testJournalPerAttempt() throws Exception {
+        final String journalDir = "build/test/SimpleDBWriteJournalTest/testJournalPerAttempt/journals";
+        final String deadAttemptId = "attempt_201010180000_0001_r_000000_0";
+        final String liveAttemptId = "attempt_201010180000_0001_r_000000_1";
+        JobConf conf = new JobConf();
+        
+        // Two attempts at the same task, each of which has a batch that's still pending.
+        SimpleDBWriteJournal deadJournal = SimpleDBWriteJournal.create(conf, journalDir, "part-00000", deadAttemptId);
+        SimpleDBWriteJournal liveJournal = SimpleDBWriteJournal.create(conf, journalDir, "part-00000", liveAttemptId);
+        deadJournal.append("table-1-of-1", makeBatch("item-1"));
+        liveJournal.append("table-1-of-1", makeBatch("item-2"));
+        deadJournal.close(false);
+        liveJournal.close(false);
+        
+        // Only the batches from the requested attempts get read.
+        List<SimpleDBWriteJournal.Batch> pending = SimpleDBWriteJournal.readPending(conf, journalDir, "part-00000", Arrays.asList(deadAttemptId));
+        assertEquals(1, pending.size());
+        assertNotNull(pending.get(0).getItems().get("item-1"));
+        assertEquals(2, SimpleDBWriteJournal.readPending(conf, journalDir, "part-00000", Arrays.asList(deadAttemptId, liveAttemptId)).size());
+        
+        SimpleDBWriteJournal.delete(conf, journalDir, "part-00000", Arrays.asList(deadAttemptId));
+        assertEquals(0, SimpleDBWriteJournal.readPending(conf, journalDir, "part-00000", Arrays.asList(deadAttemptId)).size());
+        assertEquals(1, SimpleDBWriteJournal.readPending(conf, journalDir, "part-00000", Arrays.asList(liveAttemptId)).size());
+    }
+    
+    @Test
+    public void testNoJournal() throws Exception {
+        final String journalDir = "build/test/SimpleDBWriteJournalTest/testNoJournal/journals";
+        assertEquals(0, SimpleDBWriteJournal.readPending(new JobConf(), journalDir, "part-00000", Arrays.asList(TaskAttemptUtils.NO_ATTEMPT_ID)).size());
+    }
+}
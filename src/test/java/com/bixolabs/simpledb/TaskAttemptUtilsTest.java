@@ -0,0 +1,44 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+
+public class TaskAttemptUtilsTest {
+
+    @Test
+    public void testAttemptIds() throws Exception {
+        assertTrue(TaskAttemptUtils.isAttemptId("attempt_201010180000_0001_m_000001_0"));
+        assertFalse(TaskAttemptUtils.isAttemptId(TaskAttemptUtils.NO_ATTEMPT_ID));
+        assertFalse(TaskAttemptUtils.isAttemptId("_attempt_201010180000_0001_m_000001_0"));
+        
+        assertTrue(TaskAttemptUtils.isSameTask("attempt_201010180000_0001_m_000001_0", "attempt_201010180000_0001_m_000001_1"));
+        assertFalse(TaskAttemptUtils.isSameTask("attempt_201010180000_0001_m_000001_0", "attempt_201010180000_0001_m_000002_0"));
+        assertFalse(TaskAttemptUtils.isSameTask("attempt_201010180000_0001_m_000001_0", "attempt_201010180000_0001_r_000001_0"));
+        assertFalse(TaskAttemptUtils.isSameTask(TaskAttemptUtils.NO_ATTEMPT_ID, TaskAttemptUtils.NO_ATTEMPT_ID));
+    }
+    
+    @Test
+    public void testOutsideOfTask() throws Exception {
+        JobConf conf = new JobConf();
+        assertEquals(TaskAttemptUtils.NO_ATTEMPT_ID, TaskAttemptUtils.getAttemptId(conf));
+        assertTrue(TaskAttemptUtils.getDeadAttempts(conf).isEmpty());
+    }
+}
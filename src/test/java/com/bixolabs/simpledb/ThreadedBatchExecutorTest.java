@@ -0,0 +1,229 @@
+/**
+ * Copyright 2010 TransPac Software, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bixolabs.simpledb;
+
+import static junit.framework.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class ThreadedBatchExecutorTest {
+
+    private static class BlockedTask implements Runnable {
+        private CountDownLatch _latch;
+        
+        public BlockedTask(CountDownLatch latch) {
+            _latch = latch;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                _latch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    @Test
+    public void testQueueingWithoutBlocking() throws Exception {
+        ThreadedBatchExecutor executor = new ThreadedBatchExecutor(1, 10, 1000);
+        CountDownLatch latch = new CountDownLatch(1);
+        
+        // Even though the one thread is busy, we can keep queuing up batches.
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            executor.execute(new BlockedTask(latch), 100, 1000);
+        }
+        
+        assertTrue(System.currentTimeMillis() - startTime < 500);
+        assertEquals(5, executor.getPendingBatches());
+        assertEquals(500, executor.getPendingBytes());
+        
+        latch.countDown();
+        assertTrue(executor.terminate(1000));
+        assertEquals(0, executor.getPendingBatches());
+        assertEquals(5, executor.getMaxPendingBatches());
+    }
+    
+    @Test
+    public void testByteLimit() throws Exception {
+        ThreadedBatchExecutor executor = new ThreadedBatchExecutor(2, 10, 1000);
+        CountDownLatch latch = new CountDownLatch(1);
+        
+        executor.execute(new BlockedTask(latch), 600, 1000);
+        
+        try {
+            executor.execute(new BlockedTask(latch), 600, 100);
+            fail("Should have been rejected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        
+        assertTrue(executor.getTotalWaitTime() >= 100);
+        assertEquals(1, executor.getPendingBatches());
+        
+        latch.countDown();
+        assertTrue(executor.terminate(1000));
+    }
+    
+    @Test
+    public void testBatchLimit() throws Exception {
+        final ThreadedBatchExecutor executor = new ThreadedBatchExecutor(1, 2, 1000);
+        final CountDownLatch latch = new CountDownLatch(1);
+        
+        executor.execute(new BlockedTask(latch), 1, 1000);
+        executor.execute(new BlockedTask(latch), 1, 1000);
+        
+        // Free up room in the queue a bit later, which should let the next batch in.
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                
+                latch.countDown();
+            }
+        }.start();
+        
+        executor.execute(new BlockedTask(latch), 1, 5000);
+        assertTrue(executor.getTotalWaitTime() >= 100);
+        assertTrue(executor.terminate(1000));
+    }
+    
+    @Test
+    public void testLimitPerKey() throws Exception {
+        ThreadedBatchExecutor executor = new ThreadedBatchExecutor(4, 2, 100, 1000);
+        CountDownLatch latch = new CountDownLatch(1);
+        
+        for (int i = 0; i < 5; i++) {
+            executor.execute("shard-0", new BlockedTask(latch), 1, 1000);
+        }
+        
+        executor.execute("shard-1", new BlockedTask(latch), 1, 1000);
+        
+        // Even though there are idle threads, shard-0 can only use two of them.
+        Thread.sleep(100);
+        assertEquals(2, executor.getRunningBatches("shard-0"));
+        assertEquals(1, executor.getRunningBatches("shard-1"));
+        assertEquals(6, executor.getPendingBatches());
+        
+        latch.countDown();
+        assertTrue(executor.terminate(1000));
+        assertEquals(0, executor.getRunningBatches("shard-0"));
+    }
+    
+    @Test
+    public void testRoundRobin() throws Exception {
+        ThreadedBatchExecutor executor = new ThreadedBatchExecutor(1, 1, 100, 1000);
+        CountDownLatch latch = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        
+        // Keep the one thread busy while we queue up a burst for shard-0, then one for shard-1.
+        executor.execute("shard-2", new BlockedTask(latch), 1, 1000);
+        for (int i = 0; i < 3; i++) {
+            executor.execute("shard-0", new Runnable() {
+                @Override
+                public void run() {
+                    order.add("shard-0");
+                }
+            }, 1, 1000);
+        }
+        
+        executor.execute("shard-1", new Runnable() {
+            @Override
+            public void run() {
+                order.add("shard-1");
+            }
+        }, 1, 1000);
+        
+        latch.countDown();
+        assertTrue(executor.terminate(1000));
+        
+        assertEquals(4, order.size());
+        assertEquals("shard-0", order.get(0));
+        assertEquals("shard-1", order.get(1));
+        assertEquals("shard-0", order.get(2));
+    }
+    
+    @Test
+    public void testRetryFreesThread() throws Exception {
+        final ThreadedBatchExecutor executor = new ThreadedBatchExecutor(1, 1, 100, 1000);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        
+        // The first attempt for shard-0 fails, and is retried after a delay. Meanwhile the one
+        // thread should be free to run the batch for shard-1.
+        executor.execute("shard-0", new Runnable() {
+            private boolean _failed = false;
+            
+            @Override
+            public void run() {
+                if (!_failed) {
+                    _failed = true;
+                    executor.retry("shard-0", this, 1, 200);
+                } else {
+                    order.add("shard-0");
+                }
+            }
+        }, 1, 1000);
+        
+        executor.execute("shard-1", new Runnable() {
+            @Override
+            public void run() {
+                order.add("shard-1");
+            }
+        }, 1, 1000);
+        
+        Thread.sleep(100);
+        assertEquals(1, executor.getDelayedBatches());
+        assertEquals(1, executor.getPendingBatches());
+        assertEquals(1, order.size());
+        assertEquals("shard-1", order.get(0));
+        
+        assertTrue(executor.terminate(1000));
+        assertEquals(2, order.size());
+        assertEquals("shard-0", order.get(1));
+        assertEquals(0, executor.getDelayedBatches());
+        assertEquals(1, executor.getTotalRetries());
+    }
+    
+    @Test
+    public void testDraining() throws Exception {
+        ThreadedBatchExecutor executor = new ThreadedBatchExecutor(2, 1, 10, 1000);
+        CountDownLatch latch = new CountDownLatch(1);
+        
+        executor.execute("shard-0", new BlockedTask(latch), 1, 1000);
+        
+        // Queue is full, so we can't add another batch, and nothing changes while we wait.
+        assertFalse(executor.tryExecute("shard-1", new BlockedTask(latch), 1000, 100));
+        assertEquals(1, executor.awaitPendingChange(1, 100));
+        
+        latch.countDown();
+        assertEquals(0, executor.awaitPendingChange(1, 1000));
+        assertTrue(executor.terminate(1000));
+    }
+}